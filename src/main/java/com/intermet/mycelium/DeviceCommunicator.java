@@ -6,28 +6,50 @@ import com.intermet.mycelium.command_panels.CommandPanel;
 import jssc.SerialPort;
 import jssc.SerialPortException;
 import org.usb4java.*;
-
+import temp.device.ChunkedBulkWriter;
+import temp.device.DirectBufferPool;
+import temp.device.FrameDecoder;
+import temp.device.SerialConfig;
+import temp.device.SerialReceiver;
+import temp.device.UsbContext;
+import temp.device.UsbResponseReader;
+import temp.device.UsbTransferEngine;
+
+import javax.swing.*;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 public class DeviceCommunicator {
     private JsonNode currentLexicon;
     private CommandPanel activePanel;
     private String protocol;
-    private boolean isConnected = false;
+    private volatile boolean isConnected = false;
 
     // USB-specific fields
-    private Context context;
     private DeviceHandle deviceHandle;
     private Device usbDevice;
     private SerialPort serialPort;
+    private SerialReceiver serialReceiver;
     private byte outEndpoint = -1;  // Endpoint for sending data
     private byte inEndpoint = -1;   // Endpoint for receiving data
+    private int inMaxPacketSize = 0; // wMaxPacketSize of the IN endpoint
     private short vendorId;
     private short productId;
+    private UsbTransferEngine transferEngine;
+
+    // Reused staging buffers for USB transfers, kept across reconnects
+    private final DirectBufferPool bufferPool = new DirectBufferPool();
+
+    // Every USB OUT operation (command, query, print job) is appended to
+    // this chain and starts once the one before it has finished, so their
+    // transfers never interleave on the endpoint. Guarded by outLock.
+    private final Object outLock = new Object();
+    private CompletableFuture<?> outTail = CompletableFuture.completedFuture(null);
 
     public DeviceCommunicator() {}
 
@@ -64,26 +86,23 @@ public class DeviceCommunicator {
                 vendorId = parseHexId(vendorIdStr);
                 productId = parseHexId(productIdStr);
 
-                // Initialize the libusb context
-                context = new Context();
-                int result = LibUsb.init(context);
-                if (result != LibUsb.SUCCESS) {
-                    throw new LibUsbException("Unable to initialize libusb", result);
+                // The libusb context lives for the whole process
+                if (!UsbContext.EnsureInit()) {
+                    return false;
                 }
 
-                // Find and open the device
-                usbDevice = findDevice(vendorId, productId);
+                // Look the device up in the hotplug-maintained index
+                usbDevice = UsbContext.FindDevice(vendorId, productId);
                 if (usbDevice == null) {
                     System.err.println("USB device not found with VID: " +
                             String.format("0x%04X", vendorId) +
                             ", PID: " + String.format("0x%04X", productId));
-                    LibUsb.exit(context);
                     return false;
                 }
 
                 // Open the device
                 deviceHandle = new DeviceHandle();
-                result = LibUsb.open(usbDevice, deviceHandle);
+                int result = LibUsb.open(usbDevice, deviceHandle);
                 if (result != LibUsb.SUCCESS) {
                     throw new LibUsbException("Unable to open USB device", result);
                 }
@@ -111,6 +130,9 @@ public class DeviceCommunicator {
                 // Get the configuration and find endpoints
                 findEndpoints();
 
+                // Transfers are submitted asynchronously from here on
+                transferEngine = UsbContext.GetTransferEngine();
+
                 isConnected = true;
                 System.out.println("Successfully connected to USB device");
 
@@ -168,12 +190,19 @@ public class DeviceCommunicator {
             serialPort.openPort();
 
             // Configure from lexicon
-            serialPort.setParams(
-                    57600,  // from serialConfig.baudRate
-                    SerialPort.DATABITS_8,
-                    SerialPort.STOPBITS_1,
-                    SerialPort.PARITY_NONE
-            );
+            SerialConfig config = SerialConfig.FromLexicon(currentLexicon);
+            config.apply(serialPort);
+            System.out.println("Serial line: " + config);
+
+            // Bytes are picked up as they arrive instead of polled for
+            serialReceiver = new SerialReceiver(serialPort, config.readBufferSize,
+                    FrameDecoder.FromLexicon(currentLexicon), frame -> {
+                        // The frame is only valid for this call
+                        byte[] data = new byte[frame.remaining()];
+                        frame.get(data);
+                        deliverSerial(data);
+                    });
+            serialReceiver.start();
 
             isConnected = true;
             return true;
@@ -205,8 +234,10 @@ public class DeviceCommunicator {
                 if ((type & LibUsb.TRANSFER_TYPE_MASK) == LibUsb.TRANSFER_TYPE_BULK) {
                     if ((address & LibUsb.ENDPOINT_IN) != 0) {
                         inEndpoint = address;
+                        inMaxPacketSize = endpoint.wMaxPacketSize() & 0x7FF;
                         System.out.println("Found IN endpoint: " +
-                                String.format("0x%02X", address));
+                                String.format("0x%02X", address) +
+                                ", max packet " + inMaxPacketSize);
                     } else {
                         outEndpoint = address;
                         System.out.println("Found OUT endpoint: " +
@@ -229,42 +260,20 @@ public class DeviceCommunicator {
         return buffer.toString();
     }
 
-    private Device findDevice(short vendorId, short productId) {
-        // Get the list of USB devices
-        DeviceList list = new DeviceList();
-        int result = LibUsb.getDeviceList(context, list);
-        if (result < 0) {
-            throw new LibUsbException("Unable to get device list", result);
-        }
-
+    public void disconnect() {
         try {
-            // Iterate through all devices
-            for (Device device : list) {
-                DeviceDescriptor descriptor = new DeviceDescriptor();
-                result = LibUsb.getDeviceDescriptor(device, descriptor);
-                System.out.println("vid [" + descriptor.idVendor() + "] " +
-                        "pid [" + descriptor.idProduct() + "]");
-                if (result != LibUsb.SUCCESS) {
-                    continue;
-                }
-
+            if (serialReceiver != null) {
+                serialReceiver.stop();
+                serialReceiver = null;
+            }
 
-                if (descriptor.idVendor() == vendorId &&
-                        descriptor.idProduct() == productId) {
-                    // Found our device, increase reference count before returning
-                    LibUsb.refDevice(device);
-                    return device;
-                }
+            // Reap this device's outstanding transfers before the handle
+            // goes away; the engine itself is shared
+            if (transferEngine != null && deviceHandle != null) {
+                transferEngine.cancelAndDrain(deviceHandle);
             }
-            return null;
-        } finally {
-            // Free the device list but not the devices themselves
-            LibUsb.freeDeviceList(list, false);
-        }
-    }
+            transferEngine = null;
 
-    public void disconnect() {
-        try {
             if (deviceHandle != null) {
                 if (isConnected) {
                     // Release the interface
@@ -283,16 +292,12 @@ public class DeviceCommunicator {
                 usbDevice = null;
             }
 
-            if (context != null) {
-                LibUsb.exit(context);
-                context = null;
-                System.out.println("Exited libusb context");
-            }
         } catch (Exception e) {
             System.err.println("Error during disconnect: " + e.getMessage());
         } finally {
             outEndpoint = -1;
             inEndpoint = -1;
+            inMaxPacketSize = 0;
             isConnected = false;
         }
     }
@@ -314,22 +319,19 @@ public class DeviceCommunicator {
             return;
         }
         if ("streaming mode".equals(commandName)) {
-            if (activePanel != null) {
+            if (activePanel != null && serialReceiver != null) {
                 try {
+                    // Completes as soon as the CRLF-terminated reply is in,
+                    // rather than after a fixed sleep
+                    CompletableFuture<byte[]> response = new CompletableFuture<>();
+                    serialReceiver.expect(response, new byte[] {'\r', '\n'}, -1, 1000);
                     serialPort.writeString("/SRN?\r\n");
-                    Thread.sleep(100);
-                    String response = serialPort.readString();
-                    activePanel.updateResponse(response.getBytes(StandardCharsets.US_ASCII));
-                } catch (Exception ignored) {}
-            }
-        } else if (commandName == null) {
-            if (activePanel != null) {
-                try {
-                    String response = serialPort.readString();
-                    activePanel.updateResponse(response.getBytes(StandardCharsets.US_ASCII));
+                    response.thenAccept(this::deliverSerial);
                 } catch (Exception ignored) {}
             }
         }
+        // A null command used to poll the port; the receiver now delivers
+        // whatever arrives on its own
 
         JsonNode command = findCommand(commandName);
         if (command == null) {
@@ -357,62 +359,38 @@ public class DeviceCommunicator {
 
         // Actually send the command over USB
         if ("USB".equalsIgnoreCase(protocol) && outEndpoint != -1) {
-            try {
-                ByteBuffer buffer = ByteBuffer.allocateDirect(fullCommand.length);
-                buffer.put(fullCommand);
-                buffer.rewind();
-
-                IntBuffer transferred = IntBuffer.allocate(1);
-                int result = LibUsb.bulkTransfer(deviceHandle, outEndpoint, buffer,
-                        transferred, 5000);  // 5 second timeout
-
-                if (result == LibUsb.SUCCESS) {
-                    System.out.println("Sent " + transferred.get(0) + " bytes successfully");
-                } else {
-                    System.err.println("Failed to send data: " + LibUsb.errorName(result));
-                }
-
-                // If this is a query command, we might expect a response
-                if (command.has("interface")) {
-                    JsonNode interfaceNode = command.get("interface");
-                    boolean isQuery = false;
-                    if (interfaceNode.isArray()) {
-                        for (JsonNode iface : interfaceNode) {
-                            if ("query".equals(iface.asText())) {
-                                isQuery = true;
-                                break;
-                            }
-                        }
-                    }
-
-                    if (isQuery && inEndpoint != -1) {
-                        // Read response for query commands
-                        ByteBuffer responseBuffer = ByteBuffer.allocateDirect(64);
-                        IntBuffer received = IntBuffer.allocate(1);
-                        result = LibUsb.bulkTransfer(deviceHandle, inEndpoint,
-                                responseBuffer, received, 1000);  // 1 second timeout
-
-                        if (result == LibUsb.SUCCESS && received.get(0) > 0) {
-                            byte[] responseData = new byte[received.get(0)];
-                            responseBuffer.get(responseData);
-                            System.out.println("Received response: " + bytesToHex(responseData));
-
-                            if (activePanel != null) {
-                                activePanel.updateResponse(responseData);
-                            }
-                        } else if (result == LibUsb.ERROR_TIMEOUT) {
-                            // Timeout is OK for commands that don't respond
-                            System.out.println("No response received (timeout)");
-                        } else if (result != LibUsb.SUCCESS) {
-                            System.err.println("Error reading response: " + LibUsb.errorName(result));
+            boolean isQuery = false;
+            if (command.has("interface")) {
+                JsonNode interfaceNode = command.get("interface");
+                if (interfaceNode.isArray()) {
+                    for (JsonNode iface : interfaceNode) {
+                        if ("query".equals(iface.asText())) {
+                            isQuery = true;
+                            break;
                         }
                     }
                 }
-
-            } catch (Exception e) {
-                System.err.println("Failed to send command: " + e.getMessage());
-                e.printStackTrace();
             }
+            boolean expectResponse = isQuery && inEndpoint != -1;
+
+            // 5 second timeout; the caller does not wait for it. A query
+            // keeps its place in the chain until its response is read.
+            submitOut(() -> {
+                ByteBuffer buffer = bufferPool.acquireFilled(fullCommand);
+                return transferEngine.bulkOut(deviceHandle, outEndpoint, buffer, 5000)
+                        .whenComplete((sent, e) -> bufferPool.release(buffer))
+                        .thenCompose(sent -> {
+                            System.out.println("Sent " + sent + " bytes successfully");
+                            // If this is a query command, we expect a response
+                            return expectResponse
+                                    ? readResponse(command)
+                                    : CompletableFuture.<Void>completedFuture(null);
+                        });
+            }).exceptionally(e -> {
+                System.err.println("Failed to send command: " +
+                        unwrap(e).getMessage());
+                return null;
+            });
         } else if (!("USB".equalsIgnoreCase(protocol))) {
             System.out.println("Protocol " + protocol + " not yet implemented");
         } else {
@@ -423,50 +401,131 @@ public class DeviceCommunicator {
     /**
      * Sends raw data to the printer without looking up commands in lexicon
      * @param data Complete byte array to send
-     * @return true if successful, false otherwise
+     * @return completes with true once the whole job has been written, or
+     *         false if it could not be; the caller does not wait for it
      */
-    public boolean sendRawData(byte[] data) {
+    public CompletableFuture<Boolean> sendRawData(byte[] data) {
         if (!isConnected) {
             System.err.println("Not connected");
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
         if (!"USB".equalsIgnoreCase(protocol)) {
             System.err.println("Protocol " + protocol + " not yet implemented");
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
         if (outEndpoint == -1) {
             System.err.println("No output endpoint available");
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
-        try {
-            System.out.println("Sending " + data.length + " bytes to device");
+        System.out.println("Sending " + data.length + " bytes to device");
+
+        // Print jobs go out as a pipeline of chunks, each with its own
+        // timeout, once everything sent before them has finished
+        return submitOut(() -> new ChunkedBulkWriter(transferEngine, bufferPool,
+                        deviceHandle, outEndpoint, ChunkedBulkWriter.DEF_CHUNK_SIZE,
+                        ChunkedBulkWriter.DEF_MAX_IN_FLIGHT,
+                        ChunkedBulkWriter.DEF_CHUNK_TIMEOUT_MS)
+                        .write(ByteBuffer.wrap(data), null))
+                .handle((sent, e) -> {
+                    if (e != null) {
+                        System.err.println("Failed to send raw data: " +
+                                unwrap(e).getMessage());
+                        return false;
+                    }
+                    System.out.println("Sent " + sent + " bytes successfully");
+                    return true;
+                });
+    }
 
-            ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
-            buffer.put(data);
-            buffer.rewind();
+    // Appends op to the OUT chain. It starts once everything submitted
+    // before it has finished, successfully or not, and fails without
+    // running if the device has been disconnected in the meantime.
+    private <T> CompletableFuture<T> submitOut(Supplier<CompletableFuture<T>> op) {
+        synchronized (outLock) {
+            CompletableFuture<T> next = outTail
+                    .handle((ignored, e) -> null)
+                    .thenCompose(ignored -> isConnected
+                            ? op.get()
+                            : CompletableFuture.<T>failedFuture(
+                                    new IllegalStateException("Not connected")));
+            outTail = next;
+            return next;
+        }
+    }
 
-            IntBuffer transferred = IntBuffer.allocate(1);
-            int result = LibUsb.bulkTransfer(deviceHandle, outEndpoint, buffer,
-                    transferred, 10000);  // 10 second timeout for print jobs
+    // Called on jssc's event thread
+    private void deliverSerial(byte[] data) {
+        CommandPanel panel = activePanel;
+        if (panel != null) {
+            SwingUtilities.invokeLater(() -> panel.updateResponse(data));
+        }
+    }
 
-            if (result == LibUsb.SUCCESS) {
-                System.out.println("Sent " + transferred.get(0) + " bytes successfully");
-                return true;
-            } else {
-                System.err.println("Failed to send data: " + LibUsb.errorName(result));
-                return false;
-            }
+    private CompletableFuture<Void> readResponse(JsonNode command) {
+        // Keep reading until a short packet, the declared length or the
+        // declared terminator; 1 second timeout per read
+        UsbResponseReader reader = new UsbResponseReader(transferEngine,
+                bufferPool, deviceHandle, inEndpoint, inMaxPacketSize);
+        byte[] terminator = command.has("responseTerminator")
+                ? command.get("responseTerminator").asText()
+                        .getBytes(StandardCharsets.US_ASCII)
+                : null;
+
+        return reader.read(expectedResponseLength(command), terminator, 1000,
+                        UsbResponseReader.DEF_MAX_RESPONSE_LENGTH)
+                .handle((response, e) -> {
+                    Throwable cause = (e == null) ? null : unwrap(e);
+                    if (cause == null && response.hasRemaining()) {
+                        byte[] responseData = new byte[response.remaining()];
+                        response.get(responseData);
+                        System.out.println("Received response: " + bytesToHex(responseData));
+
+                        // Completions arrive on the libusb event thread
+                        CommandPanel panel = activePanel;
+                        if (panel != null) {
+                            SwingUtilities.invokeLater(() ->
+                                    panel.updateResponse(responseData));
+                        }
+                    } else if (cause instanceof LibUsbException &&
+                            ((LibUsbException) cause).getErrorCode() == LibUsb.ERROR_TIMEOUT) {
+                        // Timeout is OK for commands that don't respond
+                        System.out.println("No response received (timeout)");
+                    } else if (cause != null) {
+                        System.err.println("Error reading response: " + cause.getMessage());
+                    }
+                    if (response != null) {
+                        bufferPool.release(response);
+                    }
+                    return null;
+                });
+    }
 
-        } catch (Exception e) {
-            System.err.println("Failed to send raw data: " + e.getMessage());
-            e.printStackTrace();
-            return false;
+    private int expectedResponseLength(JsonNode command) {
+        if (command.has("responseLength")) {
+            return command.get("responseLength").asInt(-1);
+        }
+
+        // Fixed-width response types imply their own length
+        switch (command.path("responseType").asText()) {
+            case "uint8":
+                return 1;
+            case "uint16":
+                return 2;
+            case "uint32":
+                return 4;
+            default:
+                return -1;
         }
     }
 
+    private Throwable unwrap(Throwable e) {
+        return (e instanceof CompletionException && e.getCause() != null)
+                ? e.getCause() : e;
+    }
+
     private short parseHexId(String hexStr) {
         String cleaned = hexStr.replace("0x", "")
                 .replace("0X", "");
@@ -519,4 +578,8 @@ public class DeviceCommunicator {
     public boolean isConnected() {
         return isConnected;
     }
+
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
 }
\ No newline at end of file
@@ -19,6 +19,9 @@ import com.formdev.flatlaf.FlatLightLaf;
 import com.intermet.mycelium.command_panels.CommandPanel;
 import com.intermet.mycelium.command_panels.SimpleCommandPanel;
 import jssc.SerialPortList;
+import org.usb4java.Device;
+import temp.device.SerialProbeService;
+import temp.device.UsbContext;
 
 public class MyceliumHub extends JFrame {
     private JPanel rootPanel;
@@ -54,6 +57,10 @@ public class MyceliumHub extends JFrame {
     private JComboBox<String> commandDropdown;
     private JComboBox<String> serialPortSelector;
     private boolean usingSerial = false;
+    /* What the last probe found on each port, for the selector to show */
+    private final Map<String, SerialProbeService.ProbeResult> serialProbeResults =
+            new HashMap<>();
+    private int serialProbeGeneration = 0;
 
 
 
@@ -76,6 +83,74 @@ public class MyceliumHub extends JFrame {
         commandPanelCache = new HashMap<String, CommandPanel>();
         deviceCommunicator = new DeviceCommunicator();
         pluginLoaders = new HashMap<>();
+
+        initUsbHotplug();
+    }
+
+    /* Brings up the shared libusb context and listens for devices coming and
+    * going, so the status line reflects reality without anyone pressing
+    * Connect. Failure here just means USB devices can't be used. */
+    private void initUsbHotplug() {
+        try {
+            if (!UsbContext.EnsureInit()) {
+                System.err.println("USB unavailable: libusb failed to initialize");
+                return;
+            }
+        } catch (Throwable t) {
+            System.err.println("USB unavailable: " + t.getMessage());
+            return;
+        }
+
+        UsbContext.AddListener(new UsbContext.Listener() {
+            @Override
+            public void deviceArrived(Device device, short vendorId, short productId) {
+                SwingUtilities.invokeLater(() -> onUsbDeviceArrived(vendorId, productId));
+            }
+
+            @Override
+            public void deviceLeft(Device device, short vendorId, short productId) {
+                SwingUtilities.invokeLater(() -> onUsbDeviceLeft(vendorId, productId));
+            }
+        });
+    }
+
+    private boolean isCurrentUsbDevice(short vendorId, short productId) {
+        if (currentLexicon == null ||
+                !"USB".equalsIgnoreCase(currentLexicon.path("protocol").asText())) {
+            return false;
+        }
+        try {
+            return parseHexId(currentLexicon.path("vendorId").asText()) == vendorId &&
+                    parseHexId(currentLexicon.path("productId").asText()) == productId;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void onUsbDeviceArrived(short vendorId, short productId) {
+        if (isCurrentUsbDevice(vendorId, productId) && !deviceCommunicator.isConnected()) {
+            connectionStatusLabel.setText("Device attached, ready to connect");
+            connectionStatusLabel.setForeground(MyceliumColors.secondary);
+        }
+    }
+
+    private void onUsbDeviceLeft(short vendorId, short productId) {
+        if (!isCurrentUsbDevice(vendorId, productId)) {
+            return;
+        }
+
+        if (deviceCommunicator.isConnected()) {
+            deviceCommunicator.disconnect();
+            connectButton.setText("Connect");
+            commandDropdown.setEnabled(false);
+            commandDropdown.setVisible(false);
+        }
+        connectionStatusLabel.setText("Device removed");
+        connectionStatusLabel.setForeground(MyceliumColors.tertiary);
+    }
+
+    private short parseHexId(String hexStr) {
+        return (short) Integer.parseInt(hexStr.replace("0x", "").replace("0X", ""), 16);
     }
 
     private void initializeGUI() {
@@ -166,6 +241,10 @@ public class MyceliumHub extends JFrame {
                     setBackground(MyceliumColors.foreground);
                     setForeground(MyceliumColors.background);
                 }
+                SerialProbeService.ProbeResult probe = serialProbeResults.get(value);
+                if (probe != null && probe.isIdentified()) {
+                    setText(value + "  -  " + probe.serial);
+                }
                 return this;
             }
         });
@@ -270,6 +349,7 @@ public class MyceliumHub extends JFrame {
             if (deviceCommunicator != null && deviceCommunicator.isConnected()) {
                 deviceCommunicator.disconnect();
             }
+            UsbContext.Shutdown();
         }));
     }
 
@@ -514,6 +594,8 @@ public class MyceliumHub extends JFrame {
 
     private void refreshSerialPorts(boolean enabled) {
         serialPortSelector.removeAllItems();
+        serialProbeResults.clear();
+        ++serialProbeGeneration;
 
         if (enabled) {
             String portNames[] = SerialPortList.getPortNames();
@@ -526,12 +608,50 @@ public class MyceliumHub extends JFrame {
                     serialPortSelector.addItem(port);
                     serialPortSelector.setEnabled(true);
                 }
+                probeSerialPorts(portNames);
             }
         } else {
             serialPortSelector.setEnabled(false);
         }
     }
 
+    /* Asks every port what is on it, if the lexicon says how, and labels
+     * the ports with the answers as they come back. The UI isn't held up,
+     * but each probe holds its port open for up to the lexicon's identify
+     * timeoutMs, so a connect in the meantime may find the port busy. */
+    private void probeSerialPorts(String[] portNames) {
+        SerialProbeService probe = (currentLexicon != null)
+                ? SerialProbeService.FromLexicon(currentLexicon) : null;
+        if (probe == null) {
+            return;
+        }
+
+        int generation = serialProbeGeneration;
+        connectionStatusLabel.setText("Identifying devices...");
+        probe.probe(portNames).thenAccept(results -> SwingUtilities.invokeLater(() -> {
+            if (generation != serialProbeGeneration) {
+                return;
+            }
+            serialProbeResults.putAll(results);
+
+            int found = 0;
+            String first = null;
+            for (SerialProbeService.ProbeResult r : results.values()) {
+                System.out.println("Probe " + r);
+                if (r.isIdentified()) {
+                    ++found;
+                    first = (first == null) ? r.port : first;
+                }
+            }
+            if (first != null) {
+                serialPortSelector.setSelectedItem(first);
+            }
+            serialPortSelector.repaint();
+            connectionStatusLabel.setText("Ready to connect (" + found + " of " +
+                    results.size() + " ports identified)");
+        }));
+    }
+
     private void updateDeviceField(JLabel label, JsonNode root, String fieldName) {
         if (root.has(fieldName)) {
             label.setText(root.get(fieldName).asText());
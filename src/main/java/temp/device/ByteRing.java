@@ -0,0 +1,104 @@
+package temp.device;
+
+/* A fixed-size FIFO of bytes. The capacity is rounded up to a power of two
+ * so wrapping is a mask. When a write doesn't fit, the oldest bytes are
+ * dropped to make room and counted as overrun; for a receive buffer, losing
+ * stale bytes beats stalling the port. Not thread-safe; the owner locks. */
+public final class ByteRing {
+    private final byte[] buf;
+    private final int mask;
+    private long head;  /* total bytes ever read */
+    private long tail;  /* total bytes ever written */
+    private long overrun;
+
+    public ByteRing(int capacity) {
+        int cap = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+        buf = new byte[cap];
+        mask = cap - 1;
+    }
+
+    public int capacity() {
+        return buf.length;
+    }
+
+    public int available() {
+        return (int) (tail - head);
+    }
+
+    public long getOverrunCount() {
+        return overrun;
+    }
+
+    public void write(byte[] src, int off, int len) {
+        if (len > buf.length) {
+            /* Only the newest capacity's worth can survive anyway */
+            overrun += len - buf.length;
+            off += len - buf.length;
+            len = buf.length;
+        }
+
+        int free = buf.length - available();
+        if (len > free) {
+            overrun += len - free;
+            head += len - free;
+        }
+
+        int at = (int) (tail & mask);
+        int first = Math.min(len, buf.length - at);
+        System.arraycopy(src, off, buf, at, first);
+        System.arraycopy(src, off + first, buf, 0, len - first);
+        tail += len;
+    }
+
+    /* Byte i positions past the read position */
+    public byte get(int i) {
+        return buf[(int) ((head + i) & mask)];
+    }
+
+    /* Offset of the first occurrence of pattern at or after from, relative
+     * to the read position, or -1. */
+    public int indexOf(byte[] pattern, int from) {
+        int avail = available();
+        outer:
+        for (int i = from; i <= avail - pattern.length; ++i) {
+            for (int j = 0; j < pattern.length; ++j) {
+                if (get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    public int read(byte[] dst, int off, int len) {
+        len = Math.min(len, available());
+        int at = (int) (head & mask);
+        int first = Math.min(len, buf.length - at);
+        System.arraycopy(buf, at, dst, off, first);
+        System.arraycopy(buf, 0, dst, off + first, len - first);
+        head += len;
+        return len;
+    }
+
+    /* Hands everything available to decoder, in at most two pieces because
+     * of the wrap, without copying it out first. */
+    public void drainTo(FrameDecoder decoder, FrameDecoder.FrameHandler handler) {
+        int len = available();
+        int at = (int) (head & mask);
+        int first = Math.min(len, buf.length - at);
+        head += len;
+        decoder.decode(buf, at, first, handler);
+        decoder.decode(buf, 0, len - first, handler);
+    }
+
+    public byte[] read(int len) {
+        byte[] out = new byte[Math.min(len, available())];
+        read(out, 0, out.length);
+        return out;
+    }
+
+    public void clear() {
+        head = tail;
+    }
+}
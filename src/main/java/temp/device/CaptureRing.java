@@ -0,0 +1,281 @@
+package temp.device;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* An off-heap byte ring with one writer and any number of readers, for long
+ * captures of a device's output.
+ *
+ * The memory is allocated once, outside the Java heap, so hours of capture
+ * put nothing in front of the garbage collector. The writer (the serial
+ * receiver) appends; every reader has its own Cursor and sees every byte
+ * from the point it opened, through read-only windows onto the ring itself,
+ * so a decoder, a recorder and a panel can all follow the same stream
+ * without any of them copying it.
+ *
+ * What happens when the writer catches up with the slowest reader is the
+ * Policy:
+ *   OVERWRITE - the writer never waits. A reader that falls a whole ring
+ *               behind loses the oldest bytes; it is moved forward and told
+ *               how many it missed. Right for live views, where fresh data
+ *               matters more than complete data.
+ *   BLOCK     - the writer waits for the slowest reader, which pushes back
+ *               on the port (and, with flow control, on the device). Right
+ *               for recorders that must not drop anything.
+ *
+ * Positions are absolute byte counts since the ring was created, so they
+ * never wrap. */
+public final class CaptureRing {
+    public static final int DEF_CAPACITY = 4 << 20;
+
+    public enum Policy { OVERWRITE, BLOCK }
+
+    /* Called with up to two windows per read because of the wrap. window is
+     * read-only, positioned at the new bytes, and only valid during the
+     * call. */
+    public interface Reader {
+        void onBytes(ByteBuffer window);
+    }
+
+    private final ByteBuffer ring;
+    private final ByteBuffer writeView;
+    private final int capacity;
+    private final int mask;
+    private final Policy policy;
+
+    /* Bytes ever written; published after the bytes themselves */
+    private final AtomicLong tail = new AtomicLong();
+    private final List<Cursor> cursors = new CopyOnWriteArrayList<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private final Condition spaceAvailable = lock.newCondition();
+    private volatile int waitingReaders;
+    private volatile boolean writerWaiting;
+    private volatile boolean closed;
+
+    public CaptureRing(int capacity, Policy policy) {
+        int cap = Integer.highestOneBit(Math.max(1024, capacity - 1)) << 1;
+        this.ring = ByteBuffer.allocateDirect(cap);
+        this.writeView = ring.duplicate();
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.policy = policy;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getWritePosition() {
+        return tail.get();
+    }
+
+    /* Starts a reader at the current write position */
+    public Cursor open() {
+        Cursor c = new Cursor(tail.get());
+        cursors.add(c);
+        return c;
+    }
+
+    /* Wakes anyone waiting and stops the writer blocking */
+    public void close() {
+        closed = true;
+        lock.lock();
+        try {
+            dataAvailable.signalAll();
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Single writer only. Under BLOCK this waits until every reader has
+     * room for the whole write, or the ring is closed. */
+    public void write(byte[] src, int off, int len) throws InterruptedException {
+        while (len > 0) {
+            int n = Math.min(len, capacity);
+            long t = tail.get();
+            if (policy == Policy.BLOCK) {
+                awaitSpace(t, n);
+            }
+
+            int at = (int) (t & mask);
+            int first = Math.min(n, capacity - at);
+            writeView.clear().position(at);
+            writeView.put(src, off, first);
+            if (n > first) {
+                writeView.position(0);
+                writeView.put(src, off + first, n - first);
+            }
+
+            tail.set(t + n);
+            off += n;
+            len -= n;
+            signalReaders();
+        }
+    }
+
+    private void awaitSpace(long t, int n) throws InterruptedException {
+        if (t + n - slowest(t) <= capacity) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            writerWaiting = true;
+            while (!closed && t + n - slowest(t) > capacity) {
+                spaceAvailable.await(50, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            writerWaiting = false;
+            lock.unlock();
+        }
+    }
+
+    private long slowest(long t) {
+        long min = t;
+        for (Cursor c : cursors) {
+            min = Math.min(min, c.position);
+        }
+        return min;
+    }
+
+    private void signalReaders() {
+        if (waitingReaders == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            dataAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalWriter() {
+        if (!writerWaiting) {
+            return;
+        }
+        lock.lock();
+        try {
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* One reader's place in the stream. A cursor is meant to be used by one
+     * thread at a time. */
+    public final class Cursor {
+        private volatile long position;
+        private long lost;
+        private final ByteBuffer window = ring.asReadOnlyBuffer();
+
+        private Cursor(long position) {
+            this.position = position;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        /* Bytes this reader missed because the writer lapped it */
+        public long getLostCount() {
+            return lost;
+        }
+
+        public int available() {
+            return (int) Math.min(capacity, tail.get() - position);
+        }
+
+        /* Hands everything new to reader and moves past it. Returns the
+         * number of bytes handed over. Under OVERWRITE, if the writer got
+         * into the region while it was being read, the bytes involved are
+         * counted as lost, since the reader may have seen them half
+         * overwritten. */
+        public int read(Reader reader) {
+            long t = tail.get();
+            long p = position;
+
+            if (t - p > capacity) {
+                lost += t - p - capacity;
+                p = t - capacity;
+            }
+            int n = (int) (t - p);
+            if (n == 0) {
+                return 0;
+            }
+
+            int at = (int) (p & mask);
+            int first = Math.min(n, capacity - at);
+            window.limit(at + first).position(at);
+            reader.onBytes(window);
+            if (n > first) {
+                window.limit(n - first).position(0);
+                reader.onBytes(window);
+            }
+
+            if (policy == Policy.OVERWRITE) {
+                long overwritten = tail.get() - capacity - p;
+                if (overwritten > 0) {
+                    lost += Math.min(overwritten, n);
+                }
+            }
+
+            position = t;
+            signalWriter();
+            return n;
+        }
+
+        /* As read(), feeding a frame decoder */
+        public int drainTo(FrameDecoder decoder, FrameDecoder.FrameHandler handler) {
+            return read(window -> decoder.decode(window, handler));
+        }
+
+        /* Waits until there is something to read, the ring is closed, or
+         * the timeout passes. Returns true if there is something to read. */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            if (tail.get() != position) {
+                return true;
+            }
+
+            long nanos = unit.toNanos(timeout);
+            lock.lock();
+            try {
+                ++waitingReaders;
+                while (tail.get() == position && !closed && nanos > 0) {
+                    nanos = dataAvailable.awaitNanos(nanos);
+                }
+            } finally {
+                --waitingReaders;
+                lock.unlock();
+            }
+            return tail.get() != position;
+        }
+
+        /* Jumps to the newest data, dropping whatever hasn't been read */
+        public void skipToEnd() {
+            position = tail.get();
+            signalWriter();
+        }
+
+        public void close() {
+            cursors.remove(this);
+            signalWriter();
+        }
+    }
+}
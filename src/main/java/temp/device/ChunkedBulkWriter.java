@@ -0,0 +1,217 @@
+package temp.device;
+
+import org.usb4java.DeviceHandle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* Streams a large payload to a bulk OUT endpoint as a pipeline of fixed-size
+ * chunks, keeping up to maxInFlight of them submitted at once.
+ *
+ * Sending a whole label raster as one transfer means one timeout covers the
+ * entire job, and nothing goes out until the raster is complete. Here each
+ * chunk has its own timeout, the device is kept busy while the next chunk is
+ * staged, and the source can be an InputStream so a job can start sending
+ * before it has been fully rendered.
+ *
+ * Chunks are staged in pooled buffers and written in order. The first failed
+ * chunk fails the job; chunks already submitted behind it are allowed to
+ * finish, but nothing further is submitted.
+ *
+ * A job can be given a ChunkGate, which is called between chunks and may
+ * send something of its own there, e.g. a command that shouldn't wait for
+ * a whole raster. */
+public final class ChunkedBulkWriter {
+    public static final int DEF_CHUNK_SIZE = 16 * 1024;
+    public static final int DEF_MAX_IN_FLIGHT = 4;
+    public static final long DEF_CHUNK_TIMEOUT_MS = 5000;
+
+    /* Called on the libusb event thread as each chunk is acknowledged, so
+     * it must return quickly: every transfer on every device waits while it
+     * runs. totalBytes is -1 when the source length isn't known up front. */
+    public interface ProgressListener {
+        void onProgress(long bytesSent, long totalBytes);
+    }
+
+    /* Called from the writer thread before each chunk is staged. Whatever it
+     * submits to the endpoint before returning goes out between the chunk
+     * before and the chunk after. */
+    public interface ChunkGate {
+        void atBoundary() throws InterruptedException;
+    }
+
+    private final UsbTransferEngine engine;
+    private final DirectBufferPool pool;
+    private final DeviceHandle handle;
+    private final byte endpoint;
+    private final int chunkSize;
+    private final int maxInFlight;
+    private final long chunkTimeoutMs;
+
+    public ChunkedBulkWriter(UsbTransferEngine engine, DirectBufferPool pool,
+                             DeviceHandle handle, byte endpoint, int chunkSize,
+                             int maxInFlight, long chunkTimeoutMs) {
+        if (chunkSize < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException(ERR_STR_BAD_PIPELINE);
+        }
+
+        this.engine = engine;
+        this.pool = pool;
+        this.handle = handle;
+        this.endpoint = endpoint;
+        this.chunkSize = chunkSize;
+        this.maxInFlight = maxInFlight;
+        this.chunkTimeoutMs = chunkTimeoutMs;
+    }
+
+    /* Sends source's remaining bytes. source is only read, never retained
+     * after the returned future completes. The future yields the number of
+     * bytes the device acknowledged. */
+    public CompletableFuture<Long> write(ByteBuffer source, ProgressListener listener) {
+        return write(source, listener, null);
+    }
+
+    public CompletableFuture<Long> write(ByteBuffer source, ProgressListener listener,
+                                         ChunkGate gate) {
+        ByteBuffer view = source.duplicate();
+        long total = view.remaining();
+
+        return run(total, listener, gate, chunk -> {
+            int n = Math.min(chunk.remaining(), view.remaining());
+            if (n == 0) {
+                return -1;
+            }
+            ByteBuffer slice = view.duplicate();
+            slice.limit(slice.position() + n);
+            chunk.put(slice);
+            view.position(view.position() + n);
+            return n;
+        });
+    }
+
+    /* Sends everything in, until EOF, then closes it. totalHint is only used
+     * for progress reporting; pass -1 if unknown. Each chunk is filled
+     * completely before it is submitted, except the last. */
+    public CompletableFuture<Long> write(InputStream in, long totalHint,
+                                         ProgressListener listener) {
+        return write(in, totalHint, listener, null);
+    }
+
+    public CompletableFuture<Long> write(InputStream in, long totalHint,
+                                         ProgressListener listener, ChunkGate gate) {
+        ReadableByteChannel channel = Channels.newChannel(in);
+
+        return run(totalHint, listener, gate, chunk -> {
+            int filled = 0;
+            while (chunk.hasRemaining()) {
+                int n = channel.read(chunk);
+                if (n < 0) {
+                    break;
+                }
+                filled += n;
+            }
+            if (!chunk.hasRemaining() || filled > 0) {
+                return filled;
+            }
+            channel.close();
+            return -1;
+        });
+    }
+
+    /* Fills a staged chunk from the source, returning how many bytes were
+     * placed in it, or -1 at end of input. */
+    private interface ChunkSource {
+        int fill(ByteBuffer chunk) throws IOException;
+    }
+
+    private CompletableFuture<Long> run(long total, ProgressListener listener,
+                                        ChunkGate gate, ChunkSource source) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+
+        /* Filling from an InputStream can block, so each job gets its own
+         * thread rather than running on the caller's. */
+        Thread worker = new Thread(() -> pump(total, listener, gate, source, result),
+                "usb-bulk-writer");
+        worker.setDaemon(true);
+        worker.start();
+
+        return result;
+    }
+
+    private void pump(long total, ProgressListener listener, ChunkGate gate,
+                      ChunkSource source, CompletableFuture<Long> result) {
+        Semaphore slots = new Semaphore(maxInFlight);
+        AtomicLong acknowledged = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        long submitted = 0;
+
+        try {
+            while (failure.get() == null) {
+                slots.acquire();
+                if (gate != null) {
+                    gate.atBoundary();
+                }
+
+                ByteBuffer chunk = pool.acquire(chunkSize);
+                int n = source.fill(chunk);
+                if (n <= 0) {
+                    pool.release(chunk);
+                    slots.release();
+                    if (n < 0) {
+                        break;
+                    }
+                    continue;
+                }
+                chunk.flip();
+
+                long offset = submitted;
+                submitted += n;
+                engine.bulkOut(handle, endpoint, chunk, chunkTimeoutMs)
+                        .whenComplete((sent, e) -> {
+                            pool.release(chunk);
+                            if (e != null) {
+                                failure.compareAndSet(null, new IOException(
+                                        "Bulk write failed at offset " + offset, e));
+                            } else {
+                                long done = acknowledged.addAndGet(sent);
+                                if (listener != null) {
+                                    listener.onProgress(done, total);
+                                }
+                            }
+                            slots.release();
+                        });
+            }
+
+            /* Wait for the tail of the pipeline to drain */
+            slots.acquire(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        } catch (IOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+            try {
+                slots.acquire(maxInFlight);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Throwable t = failure.get();
+        if (t != null) {
+            result.completeExceptionally(t);
+        } else {
+            result.complete(acknowledged.get());
+        }
+    }
+
+    private static final String CLASS = ChunkedBulkWriter.class.getSimpleName();
+    private static final String ERR_STR_BAD_PIPELINE = CLASS + " requires a " +
+            "positive chunk size and at least one chunk in flight.\n";
+}
@@ -0,0 +1,110 @@
+package temp.device;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* What sendCommand() gives back: one request, from the moment it is queued
+ * until it is answered. The id is unique for the session, to tie log lines
+ * and answers to requests.
+ *
+ * getResponse() completes with the device's answer, or with null for a
+ * command that expects none once it has been written. It fails if the
+ * request is rejected (queue full, not connected), times out, or is dropped
+ * by a disconnect. */
+public final class CommandHandle {
+    public enum State { QUEUED, SENT, DONE }
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+    private final long id = NEXT_ID.getAndIncrement();
+    private final String command;
+    private final Priority priority;
+    private final CompletableFuture<byte[]> response = new CompletableFuture<>();
+    private final long queuedNanos = System.nanoTime();
+    private volatile long sentNanos;
+    private final AtomicReference<State> state = new AtomicReference<>(State.QUEUED);
+
+    CommandHandle(String command) {
+        this(command, Priority.INTERACTIVE);
+    }
+
+    CommandHandle(String command, Priority priority) {
+        this.command = command;
+        this.priority = priority;
+        response.whenComplete((r, e) -> state.set(State.DONE));
+    }
+
+    /* For requests handled on the spot, e.g. special commands */
+    static CommandHandle Completed(String command) {
+        CommandHandle h = new CommandHandle(command);
+        h.complete(null);
+        return h;
+    }
+
+    static CommandHandle Failed(String command, Throwable cause) {
+        CommandHandle h = new CommandHandle(command);
+        h.fail(cause);
+        return h;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /* The lexicon name, or null */
+    public String getCommand() {
+        return command;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public CompletableFuture<byte[]> getResponse() {
+        return response;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /* Time spent waiting in the queue; so far, if still queued */
+    public long getQueuedNanos() {
+        long sent = sentNanos;
+        return ((sent != 0) ? sent : System.nanoTime()) - queuedNanos;
+    }
+
+    /* Only a request that hasn't been sent yet can be cancelled. The queue
+     * and cancel() each claim the request from QUEUED in one step, so exactly
+     * one of them wins. */
+    public boolean cancel() {
+        return state.compareAndSet(State.QUEUED, State.DONE) &&
+                response.completeExceptionally(new CancellationException());
+    }
+
+    /* False if the request was cancelled or finished first, and must not be
+     * sent */
+    boolean markSent() {
+        if (!state.compareAndSet(State.QUEUED, State.SENT)) {
+            return false;
+        }
+        sentNanos = System.nanoTime();
+        return true;
+    }
+
+    void complete(byte[] answer) {
+        response.complete(answer);
+    }
+
+    void fail(Throwable cause) {
+        response.completeExceptionally(cause);
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + ((command != null) ? " " + command : "") + " " + priority +
+                " " + state.get();
+    }
+}
@@ -0,0 +1,354 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/* Sends commands as fast as the device takes them and no faster, as the
+ * lexicon declares:
+ *
+ *   "pacing": { "minIntervalMs": 20, "maxInFlight": 4 }    the whole device
+ *   "commands": [ { "name": "...", "minIntervalMs": 250,   one command, on
+ *                   "maxInFlight": 1, ... } ]               top of that
+ *
+ * minIntervalMs is the least time between the starts of two sends;
+ * maxInFlight is how many may be unfinished (written and still waiting for
+ * a response) at once. Missing means no limit. A lexicon that declares
+ * neither anywhere isn't paced at all and sends go straight through.
+ *
+ * Otherwise commands are released strictly in the order they were
+ * submitted, since responses are matched to queries in that order: if the
+ * command at the front has to wait, everything behind it waits too. They
+ * are released on the pacer's own thread, at the moment they become due,
+ * so nothing ever sleeps. */
+public final class CommandPacer {
+    /* Release once the command is finished, successfully or not; its
+     * in-flight slot is held until then. Releasing twice is harmless. */
+    public interface Permit {
+        void release();
+    }
+
+    private static final Permit NO_PERMIT = () -> {};
+
+    private final Limits device;
+    private final Map<String, Limits> perCommand;
+    private final boolean enabled;
+
+    /* Guarded by this */
+    private final ArrayDeque<Queued> queue = new ArrayDeque<>();
+    private final Map<String, Lane> lanes = new HashMap<>();
+    private final Lane deviceLane = new Lane();
+    private boolean wakeScheduled;
+    private long wakeAt;
+
+    /* Statistics, guarded by this */
+    private long sent;
+    private long firstSentNanos;
+    private long lastSentNanos;
+    private long maxWaitNanos;
+
+    private ScheduledExecutorService timer;
+    private boolean closed;
+
+    private CommandPacer(Limits device, Map<String, Limits> perCommand) {
+        this.device = device;
+        this.perCommand = perCommand;
+        boolean any = device.isLimited();
+        for (Limits l : perCommand.values()) {
+            any |= l.isLimited();
+        }
+        this.enabled = any;
+    }
+
+    public static CommandPacer FromLexicon(JsonNode lexicon) {
+        Limits device = Limits.From(lexicon.path(LexiconStrings.pacing));
+        Map<String, Limits> perCommand = new HashMap<>();
+        for (JsonNode command : lexicon.path("commands")) {
+            Limits l = Limits.From(command);
+            if (command.has("name") && l.isLimited()) {
+                perCommand.put(command.get("name").asText(), l);
+            }
+        }
+        return new CommandPacer(device, perCommand);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /* Calls send with a permit once the command may go. command names the
+     * lexicon command, or is null for anything else, which only counts
+     * against the device's limits. */
+    public void submit(String command, Consumer<Permit> send) {
+        if (!enabled) {
+            send.accept(NO_PERMIT);
+            return;
+        }
+
+        synchronized (this) {
+            queue.addLast(new Queued(command, send, System.nanoTime(), null));
+        }
+        schedulePump(0);
+    }
+
+    /* For a caller with a thread of its own to spend, e.g. a command
+     * queue's writer: waits its turn, as submit() would, and returns the
+     * permit, or null if the wait was dropped by clear() or close(). */
+    public Permit acquire(String command) throws InterruptedException {
+        if (!enabled) {
+            return NO_PERMIT;
+        }
+
+        CompletableFuture<Permit> granted = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+            /* A grant nobody is waiting for any more goes straight back */
+            queue.addLast(new Queued(command, permit -> {
+                if (!granted.complete(permit)) {
+                    permit.release();
+                }
+            }, System.nanoTime(), granted));
+        }
+        schedulePump(0);
+        try {
+            return granted.get();
+        } catch (InterruptedException e) {
+            if (!granted.cancel(false)) {
+                granted.join().release();
+            }
+            throw e;
+        } catch (ExecutionException | CancellationException e) {
+            return null;
+        }
+    }
+
+    /* Drops everything waiting, e.g. on disconnect; sends already released
+     * keep their permits. */
+    public synchronized void clear() {
+        drop();
+    }
+
+    /* Stops the pacer's thread; anything still waiting is dropped */
+    public synchronized void close() {
+        drop();
+        closed = true;
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized long getSentCount() {
+        return sent;
+    }
+
+    /* Average rate from the first send to the last */
+    public synchronized double getCommandsPerSecond() {
+        if (sent < 2) {
+            return 0;
+        }
+        return (sent - 1) * 1e9 / Math.max(1, lastSentNanos - firstSentNanos);
+    }
+
+    public synchronized String getStatsString() {
+        return String.format("%d sent, %.1f commands/s, %d queued, longest wait %d ms",
+                sent, getCommandsPerSecond(), queue.size(),
+                TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+    }
+
+    /* Runs on the pacer thread. Releases everything at the front that may
+     * go now, then arranges to be called again when the next one may. */
+    private void pump() {
+        while (true) {
+            Queued q;
+            Lane lane;
+            long now = System.nanoTime();
+
+            synchronized (this) {
+                wakeScheduled = false;
+                q = queue.peekFirst();
+                if (q == null) {
+                    return;
+                }
+
+                Limits limits = limitsFor(q.command);
+                lane = (limits != null) ? lanes.computeIfAbsent(q.command, k -> new Lane())
+                        : null;
+
+                if (deviceLane.inFlight >= device.maxInFlight ||
+                        (lane != null && lane.inFlight >= limits.maxInFlight)) {
+                    /* A release will pump again */
+                    return;
+                }
+
+                long wait = 0;
+                if (deviceLane.started) {
+                    wait = deviceLane.lastStart + device.minIntervalNanos - now;
+                }
+                if (lane != null && lane.started) {
+                    wait = Math.max(wait, lane.lastStart + limits.minIntervalNanos - now);
+                }
+                if (wait > 0) {
+                    scheduleWake(wait);
+                    return;
+                }
+
+                queue.pollFirst();
+                deviceLane.start(now);
+                if (lane != null) {
+                    lane.start(now);
+                }
+                if (sent++ == 0) {
+                    firstSentNanos = now;
+                }
+                lastSentNanos = now;
+                maxWaitNanos = Math.max(maxWaitNanos, now - q.queuedAt);
+            }
+
+            Grant grant = new Grant(lane);
+            try {
+                q.send.accept(grant);
+            } catch (RuntimeException e) {
+                System.err.println(CLASS + ": send failed: " + e.getMessage());
+                grant.release();
+            }
+        }
+    }
+
+    /* Called with the lock held */
+    private void drop() {
+        for (Queued q : queue) {
+            if (q.waiter != null) {
+                q.waiter.cancel(false);
+            }
+        }
+        queue.clear();
+    }
+
+    private Limits limitsFor(String command) {
+        return (command != null) ? perCommand.get(command) : null;
+    }
+
+    /* Called with the lock held */
+    private void scheduleWake(long delayNanos) {
+        long at = System.nanoTime() + delayNanos;
+        if (wakeScheduled && wakeAt - at <= 0) {
+            return;
+        }
+        wakeScheduled = true;
+        wakeAt = at;
+        schedulePump(delayNanos);
+    }
+
+    private void schedulePump(long delayNanos) {
+        ScheduledExecutorService t = timer();
+        if (t != null) {
+            t.schedule(this::pump, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /* null once closed */
+    private synchronized ScheduledExecutorService timer() {
+        if (closed) {
+            return null;
+        }
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "command-pacer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return timer;
+    }
+
+    private final class Grant implements Permit {
+        private final Lane lane;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Grant(Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (CommandPacer.this) {
+                --deviceLane.inFlight;
+                if (lane != null) {
+                    --lane.inFlight;
+                }
+            }
+            schedulePump(0);
+        }
+    }
+
+    /* What a device or command has under way; guarded by the pacer */
+    private static final class Lane {
+        boolean started;
+        long lastStart;
+        int inFlight;
+
+        void start(long now) {
+            started = true;
+            lastStart = now;
+            ++inFlight;
+        }
+    }
+
+    private static final class Limits {
+        final long minIntervalNanos;
+        final int maxInFlight;
+
+        Limits(long minIntervalNanos, int maxInFlight) {
+            this.minIntervalNanos = minIntervalNanos;
+            this.maxInFlight = maxInFlight;
+        }
+
+        static Limits From(JsonNode node) {
+            long interval = Math.max(0, node.path(LexiconStrings.minIntervalMs).asLong(0));
+            int inFlight = node.path(LexiconStrings.maxInFlight).asInt(Integer.MAX_VALUE);
+            return new Limits(TimeUnit.MILLISECONDS.toNanos(interval),
+                    (inFlight > 0) ? inFlight : Integer.MAX_VALUE);
+        }
+
+        boolean isLimited() {
+            return minIntervalNanos > 0 || maxInFlight != Integer.MAX_VALUE;
+        }
+    }
+
+    private static final class Queued {
+        final String command;
+        final Consumer<Permit> send;
+        final long queuedAt;
+        /* Set if someone is blocked in acquire() on it */
+        final CompletableFuture<Permit> waiter;
+
+        Queued(String command, Consumer<Permit> send, long queuedAt,
+               CompletableFuture<Permit> waiter) {
+            this.command = command;
+            this.send = send;
+            this.queuedAt = queuedAt;
+            this.waiter = waiter;
+        }
+    }
+
+    private static final String CLASS = CommandPacer.class.getSimpleName();
+}
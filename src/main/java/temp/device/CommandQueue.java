@@ -0,0 +1,349 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/* The one way commands and jobs reach a device. Callers, usually on the
+ * EDT, only queue a request and get its CommandHandle back; a single writer
+ * thread per device takes requests one at a time, waits for the
+ * CommandPacer to let each command go, and sends it.
+ *
+ * The writer doesn't wait for an answer before sending the next request:
+ * each send hands back a future, and the pacer's permit is held until that
+ * completes. So as many commands are outstanding at once as the lexicon's
+ * maxInFlight allows (no limit if it doesn't say), and with a deep queue
+ * throughput is set by the link, not by the round trip. Answers find their
+ * requests in order, or by tag or pattern (see ResponseCorrelator).
+ *
+ * Requests are taken by Priority, in order within each class, so a click
+ * doesn't wait behind a label batch. Jobs (submitJob) are BULK, go one at a
+ * time and aren't paced. A command waits at most for the job already
+ * running, not for the whole batch, and less where the transport can slip
+ * it in between the job's chunks. An exclusive job, e.g. a serial dump that
+ * can't share the line, has the device to itself until it finishes.
+ *
+ * Nothing starves: every agingMs a request waits counts as one class of
+ * priority, so a poll that has waited 1 s (by default) goes ahead of a
+ * fresh click, and a job that has waited 2 s goes ahead of both.
+ *
+ *   "pacing": { "queueCapacity": 64, "agingMs": 1000 }
+ *
+ * The queue is bounded; a request that doesn't fit is rejected at once
+ * rather than blocking the caller. */
+public final class CommandQueue {
+    public static final int DEF_CAPACITY = 64;
+    public static final long DEF_AGING_MS = 1000;
+    private static final int MAX_JOBS_IN_FLIGHT = 1;
+
+    private final String name;
+    private final CommandPacer pacer;
+    private final int capacity;
+    private final long agingNanos;
+    private Thread writer;
+    private volatile boolean closed;
+
+    /* Guarded by this */
+    private final EnumMap<Priority, Lane> lanes = new EnumMap<>(Priority.class);
+    private int depth;
+    private int inFlight;
+    private int jobsInFlight;
+    private boolean exclusiveInFlight;
+    private long rejected;
+
+    public CommandQueue(String name, int capacity, long agingMs, CommandPacer pacer) {
+        this.name = name;
+        this.pacer = pacer;
+        this.capacity = Math.max(1, capacity);
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, agingMs));
+
+        for (Priority p : Priority.values()) {
+            lanes.put(p, new Lane());
+        }
+    }
+
+    public static CommandQueue FromLexicon(JsonNode lexicon, CommandPacer pacer) {
+        JsonNode p = lexicon.path(LexiconStrings.pacing);
+        return new CommandQueue(lexicon.path(LexiconStrings.deviceName).asText("device"),
+                p.path(LexiconStrings.queueCapacity).asInt(DEF_CAPACITY),
+                p.path(LexiconStrings.agingMs).asLong(DEF_AGING_MS), pacer);
+    }
+
+    /* Queues a command at its handle's priority. send is called on the
+     * writer thread once the pacer lets it go; its future completes with
+     * the answer (a byte[]), or anything else once the command is finished.
+     * Returns false, and fails handle, if the queue is full. */
+    public boolean submit(CommandHandle handle, Supplier<CompletableFuture<?>> send) {
+        return add(new Request(handle, send, false, false));
+    }
+
+    /* Queues a job, BULK whatever its handle says, and not paced. An
+     * exclusive job waits for everything in flight to finish, and holds
+     * everything else back until it does. */
+    public boolean submitJob(CommandHandle handle, boolean exclusive,
+                             Supplier<CompletableFuture<?>> send) {
+        return add(new Request(handle, send, true, exclusive));
+    }
+
+    /* Fails everything still queued, e.g. on disconnect */
+    public void clear() {
+        List<Request> dropped = new ArrayList<>();
+        synchronized (this) {
+            for (Lane lane : lanes.values()) {
+                dropped.addAll(lane.requests);
+                lane.requests.clear();
+            }
+            depth = 0;
+        }
+        for (Request r : dropped) {
+            r.handle.fail(new IllegalStateException(ERR_STR_DROPPED));
+        }
+    }
+
+    public void close() {
+        closed = true;
+        clear();
+        synchronized (this) {
+            if (writer != null) {
+                writer.interrupt();
+            }
+        }
+    }
+
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    public synchronized int getDepth(Priority priority) {
+        return lanes.get(priority).requests.size();
+    }
+
+    public synchronized long getSentCount() {
+        long n = 0;
+        for (Lane lane : lanes.values()) {
+            n += lane.sent;
+        }
+        return n;
+    }
+
+    public synchronized long getSentCount(Priority priority) {
+        return lanes.get(priority).sent;
+    }
+
+    /* The longest any request of the class has waited to be sent */
+    public synchronized long getMaxWaitMs(Priority priority) {
+        return TimeUnit.NANOSECONDS.toMillis(lanes.get(priority).maxWaitNanos);
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    public synchronized String getStatsString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Priority, Lane> e : lanes.entrySet()) {
+            Lane lane = e.getValue();
+            sb.append(String.format("%s: %d sent, %d queued, wait avg %.1f ms, max %d ms; ",
+                    e.getKey(), lane.sent, lane.requests.size(),
+                    (lane.sent == 0) ? 0.0 : lane.waitNanos / 1e6 / lane.sent,
+                    TimeUnit.NANOSECONDS.toMillis(lane.maxWaitNanos)));
+        }
+        return sb.append(rejected).append(" rejected").toString();
+    }
+
+    private boolean add(Request r) {
+        synchronized (this) {
+            if (!closed && depth < capacity) {
+                lanes.get(r.priority).requests.addLast(r);
+                ++depth;
+                startWriter();
+                notifyAll();
+                return true;
+            }
+            ++rejected;
+        }
+        r.handle.fail(new RejectedExecutionException(closed ? ERR_STR_CLOSED
+                : ErrStrFull(capacity)));
+        return false;
+    }
+
+    /* Called with the lock held */
+    private void startWriter() {
+        if (writer == null && !closed) {
+            writer = new Thread(this::drain, "command-writer-" + name);
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private void drain() {
+        while (!closed) {
+            Request r;
+            try {
+                r = next();
+            } catch (InterruptedException e) {
+                break;
+            }
+            CommandPacer.Permit permit = null;
+            if (!r.job) {
+                try {
+                    permit = pacer.acquire(r.handle.getCommand());
+                } catch (InterruptedException e) {
+                    /* Closed while r waited for its slot; it is already taken
+                     * off the queue, so clear() won't fail it */
+                    finished(r);
+                    r.handle.fail(new IllegalStateException(ERR_STR_DROPPED));
+                    break;
+                }
+            }
+            if (!r.job && permit == null) {
+                finished(r);
+                r.handle.fail(new IllegalStateException(ERR_STR_DROPPED));
+                continue;
+            }
+
+            if (!r.handle.markSent()) {
+                /* Cancelled while waiting for the pacer */
+                if (permit != null) {
+                    permit.release();
+                }
+                finished(r);
+                continue;
+            }
+            CompletableFuture<?> done;
+            try {
+                done = r.send.get();
+            } catch (RuntimeException e) {
+                System.err.println(CLASS + ": send failed: " + e.getMessage());
+                done = CompletableFuture.failedFuture(e);
+            }
+
+            CommandPacer.Permit held = permit;
+            done.whenComplete((answer, e) -> {
+                if (held != null) {
+                    held.release();
+                }
+                finished(r);
+                if (e instanceof CompletionException && e.getCause() != null) {
+                    r.handle.fail(e.getCause());
+                } else if (e != null) {
+                    r.handle.fail(e);
+                } else {
+                    r.handle.complete((answer instanceof byte[]) ? (byte[]) answer : null);
+                }
+            });
+        }
+        clear();
+    }
+
+    /* Blocks until some request may go, and takes the one that should */
+    private synchronized Request next() throws InterruptedException {
+        Request r;
+        while ((r = pick()) == null) {
+            wait();
+        }
+
+        Lane lane = lanes.get(r.priority);
+        lane.requests.pollFirst();
+        --depth;
+        ++inFlight;
+        if (r.job) {
+            ++jobsInFlight;
+        }
+        exclusiveInFlight |= r.exclusive;
+
+        long waited = System.nanoTime() - r.queuedAt;
+        ++lane.sent;
+        lane.waitNanos += waited;
+        lane.maxWaitNanos = Math.max(lane.maxWaitNanos, waited);
+        return r;
+    }
+
+    /* Called with the lock held. The head of each class is a candidate if
+     * it may go now; of those, the best after aging wins, the oldest on a
+     * tie. An exclusive job that would win holds everything back until the
+     * device is idle, or it would never find it so. Requests cancelled while
+     * queued are dropped on the way. */
+    private Request pick() {
+        if (exclusiveInFlight) {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        Request best = null;
+        long bestRank = 0;
+        for (Lane lane : lanes.values()) {
+            Request r;
+            while ((r = lane.requests.peekFirst()) != null &&
+                    r.handle.getResponse().isDone()) {
+                lane.requests.pollFirst();
+                --depth;
+            }
+            if (r == null || (r.job && jobsInFlight >= MAX_JOBS_IN_FLIGHT &&
+                    !r.exclusive)) {
+                continue;
+            }
+            long rank = r.priority.ordinal() * agingNanos - (now - r.queuedAt);
+            if (best == null || rank < bestRank ||
+                    (rank == bestRank && r.queuedAt < best.queuedAt)) {
+                best = r;
+                bestRank = rank;
+            }
+        }
+        return (best != null && best.exclusive && inFlight > 0) ? null : best;
+    }
+
+    private synchronized void finished(Request r) {
+        --inFlight;
+        if (r.job) {
+            --jobsInFlight;
+        }
+        if (r.exclusive) {
+            exclusiveInFlight = false;
+        }
+        notifyAll();
+    }
+
+    /* One priority class: its requests, in order, and what it has sent */
+    private static final class Lane {
+        final ArrayDeque<Request> requests = new ArrayDeque<>();
+        long sent;
+        long waitNanos;
+        long maxWaitNanos;
+    }
+
+    private static final class Request {
+        final CommandHandle handle;
+        final Supplier<CompletableFuture<?>> send;
+        final Priority priority;
+        final boolean job;
+        final boolean exclusive;
+        final long queuedAt = System.nanoTime();
+
+        Request(CommandHandle handle, Supplier<CompletableFuture<?>> send, boolean job,
+                boolean exclusive) {
+            this.handle = handle;
+            this.send = send;
+            this.priority = job ? Priority.BULK : handle.getPriority();
+            this.job = job;
+            this.exclusive = exclusive;
+        }
+    }
+
+    private static final String CLASS = CommandQueue.class.getSimpleName();
+    private static final String ERR_STR_CLOSED = CLASS + " is closed.\n";
+    private static final String ERR_STR_DROPPED = CLASS + " dropped a request that " +
+            "had not been sent.\n";
+    private static String ErrStrFull(int capacity) {
+        return String.format("%s is full (%d requests waiting).\n", CLASS, capacity);
+    }
+}
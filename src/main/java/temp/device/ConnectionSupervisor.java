@@ -0,0 +1,247 @@
+package temp.device;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Keeps a connection alive across unplugs and transport errors.
+ *
+ * Whoever notices the transport is gone (a NO_DEVICE or PIPE transfer
+ * failure, a hotplug removal, a serial write error) calls transportLost().
+ * The supervisor then tears the transport down and tries to bring it back,
+ * waiting longer after each failed attempt: the delay doubles from
+ * initialBackoffMs up to maxBackoffMs, and each wait is jittered between half
+ * and all of that so several devices lost together don't retry in lock step.
+ * A hotplug arrival can cut the wait short with attemptNow().
+ *
+ * While it is recovering, work submitted through enqueue() is held in a
+ * bounded FIFO and replayed, in order, once the connection is back. Anything
+ * that doesn't fit is dropped and counted. All of this runs on one daemon
+ * thread, which keeps teardown off the libusb event thread, where it would
+ * deadlock waiting for its own completions. */
+public final class ConnectionSupervisor {
+    public static final long DEF_INITIAL_BACKOFF_MS = 250;
+    public static final long DEF_MAX_BACKOFF_MS = 30_000;
+    public static final int DEF_QUEUE_CAPACITY = 64;
+
+    /* Implemented by the communicator. Both are called on the supervisor's
+     * thread. */
+    public interface Connector {
+        void teardown();
+        boolean reconnect();
+    }
+
+    private final Connector connector;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final ArrayBlockingQueue<Runnable> queue;
+    private final ScheduledExecutorService executor;
+
+    /* Guarded by this */
+    private boolean enabled;
+    private boolean recovering;
+    private boolean replaying;
+    private int attempt;
+    private long lostAt;
+    private ScheduledFuture<?> nextAttempt;
+
+    private volatile long lastReconnectMs = -1;
+    private volatile int maxQueueDepth;
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public ConnectionSupervisor(Connector connector) {
+        this(connector, DEF_INITIAL_BACKOFF_MS, DEF_MAX_BACKOFF_MS, DEF_QUEUE_CAPACITY);
+    }
+
+    public ConnectionSupervisor(Connector connector, long initialBackoffMs,
+                                long maxBackoffMs, int queueCapacity) {
+        this.connector = connector;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-supervisor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /* Supervision is on while the user wants to be connected. Turning it off
+     * abandons any recovery in progress and drops queued work. */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            recovering = false;
+            replaying = false;
+            if (nextAttempt != null) {
+                nextAttempt.cancel(false);
+                nextAttempt = null;
+            }
+            queue.clear();
+        }
+    }
+
+    public synchronized boolean isRecovering() {
+        return recovering;
+    }
+
+    /* Safe to call from any thread, any number of times per loss */
+    public synchronized void transportLost(String reason) {
+        if (!enabled || (recovering && !replaying)) {
+            return;
+        }
+
+        System.err.println(CLASS + ": transport lost (" + reason + "), reconnecting");
+        recovering = true;
+        replaying = false;
+        lostAt = System.currentTimeMillis();
+        attempt = 0;
+        executor.execute(() -> {
+            connector.teardown();
+            schedule(initialBackoffMs / 2);
+        });
+    }
+
+    /* Tries right away instead of waiting out the backoff, e.g. because the
+     * device just reappeared. */
+    public synchronized void attemptNow() {
+        if (!recovering || nextAttempt == null) {
+            return;
+        }
+        if (nextAttempt.cancel(false)) {
+            nextAttempt = executor.schedule(this::tryReconnect, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /* Holds work until the connection is back, and returns true. Returns
+     * false if the supervisor isn't recovering, in which case the caller
+     * should just do the work itself, or if the work doesn't fit, in which
+     * case it is dropped and counted, and the caller should give up on it;
+     * isRecovering() tells the two apart. */
+    public synchronized boolean enqueue(Runnable work) {
+        if (!recovering) {
+            return false;
+        }
+        if (!queue.offer(work)) {
+            dropped.incrementAndGet();
+            System.err.println(CLASS + ": queue full, dropping work");
+            return false;
+        }
+        maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+        return true;
+    }
+
+    /* Metrics */
+
+    /* Time from loss to the connection being back, for the last recovery,
+     * or -1 if there hasn't been one. */
+    public long getLastReconnectMillis() {
+        return lastReconnectMs;
+    }
+
+    public long getReconnectCount() {
+        return reconnects.get();
+    }
+
+    public long getAttemptCount() {
+        return attempts.get();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public String getStatsString() {
+        return String.format("reconnects=%d attempts=%d lastReconnectMs=%d " +
+                        "queueDepth=%d maxQueueDepth=%d dropped=%d",
+                getReconnectCount(), getAttemptCount(), getLastReconnectMillis(),
+                getQueueDepth(), getMaxQueueDepth(), getDroppedCount());
+    }
+
+    private synchronized void schedule(long delayMs) {
+        if (!recovering) {
+            return;
+        }
+        nextAttempt = executor.schedule(this::tryReconnect, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void tryReconnect() {
+        synchronized (this) {
+            if (!recovering) {
+                return;
+            }
+            nextAttempt = null;
+        }
+
+        attempts.incrementAndGet();
+        if (!connector.reconnect()) {
+            long backoff;
+            synchronized (this) {
+                ++attempt;
+                backoff = backoffFor(attempt);
+            }
+            schedule(backoff);
+            return;
+        }
+
+        synchronized (this) {
+            lastReconnectMs = System.currentTimeMillis() - lostAt;
+            replaying = true;
+        }
+        reconnects.incrementAndGet();
+        System.out.println(CLASS + ": reconnected after " + lastReconnectMs + " ms, " +
+                "replaying " + queue.size() + " queued");
+        replay();
+    }
+
+    /* Runs queued work in order. New work keeps queuing behind it until the
+     * queue is seen empty, so nothing overtakes what was held. If the
+     * transport is lost again part way, the rest waits for the next
+     * recovery. */
+    private void replay() {
+        while (true) {
+            Runnable work;
+            synchronized (this) {
+                if (!replaying) {
+                    return;
+                }
+                work = queue.poll();
+                if (work == null) {
+                    recovering = false;
+                    replaying = false;
+                    return;
+                }
+            }
+
+            try {
+                work.run();
+            } catch (RuntimeException e) {
+                System.err.println(CLASS + ": queued work failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /* Equal jitter: half the exponential delay, plus up to half again */
+    private long backoffFor(int attempt) {
+        long exp = initialBackoffMs << Math.min(attempt, 20);
+        long capped = Math.min(maxBackoffMs, exp);
+        long half = capped / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    private static final String CLASS = ConnectionSupervisor.class.getSimpleName();
+}
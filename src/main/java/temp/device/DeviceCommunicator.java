@@ -8,34 +8,110 @@ import org.usb4java.*;
 import temp.LogLevel;
 
 import javax.swing.*;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static temp.ErrorHandler.LogFatalAndExit;
 import static temp.Logger.LogSession;
 import static temp.Logger.LogSessionExcp;
 
+/* The two directions of a connection are independent. Everything that goes
+ * OUT on the command pipe (commands, raw jobs, streamed jobs) is handed to a
+ * single owner, the OUT chain, which submits one operation after another in
+ * call order without blocking the caller. IN is owned by a continuous reader
+ * that routes bytes to whichever query is waiting for them, or to the panel
+ * as unsolicited output. A query therefore never holds up the next write.
+ * Commands and jobs reach the OUT side through the device's CommandQueue,
+ * whose one writer thread sends them by priority, so callers never wait on
+ * the device and a click never waits behind a queued batch. A command can
+ * still wait for the job already on the wire, unless the lexicon lets USB
+ * jobs be interrupted between chunks, "bulkTransfer": { "preemptible": true };
+ * see BulkGate. A serial download is one job unless the device can send its
+ * memory a range at a time; see syncStoredData().
+ *
+ * Connection state is only changed by connect()/disconnect(), which are
+ * synchronized; everything the send paths read is volatile. */
 public class DeviceCommunicator {
-    private JsonNode currentLexicon;
-    private CommandPanel activePanel;
-    private Protocol protocol = Protocol.UNKNOWN;
-    private boolean isConnected = false;
+    private volatile JsonNode currentLexicon;
+    private volatile CommandPanel activePanel;
+    private volatile Protocol protocol = Protocol.UNKNOWN;
+    private volatile CommandPacer pacer;
+    private volatile CommandQueue commandQueue;
+    private volatile ResponseCorrelator correlator;
+    private volatile TelemetryPipeline telemetry;
+    private volatile boolean isConnected = false;
     private boolean headless = false;
 
     /* USB-specific fields */
-    private Context context;
-    private DeviceHandle deviceHandle;
-    private Device usbDevice;
-    private byte outEndpoint = -1;
-    private byte inEndpoint = -1;
-    private short vendorId;
-    private short productId;
+    private volatile DeviceHandle deviceHandle;
+    private volatile Device usbDevice;
+    private volatile byte outEndpoint = -1;
+    private volatile byte inEndpoint = -1;
+    private UsbEndpointInfo interruptInEndpoint;
+    private final List<UsbEndpointInfo> endpoints = new ArrayList<>();
+    private final List<UsbInterfaceClaim> claimedInterfaces = new ArrayList<>();
+    private final Map<Byte, UsbEndpointStream> endpointStreams = new HashMap<>();
+    private volatile short vendorId;
+    private volatile short productId;
+    private volatile UsbTransferEngine transferEngine;
+    private volatile ChunkedBulkWriter bulkWriter;
+    private volatile UsbResponseRouter responseRouter;
+    private UsbInterruptReader interruptReader;
+    private volatile CompletableFuture<UsbDeviceStrings> deviceStrings;
+    private final List<DeviceStatusListener> statusListeners = new CopyOnWriteArrayList<>();
+
+    /* Staging buffers for USB transfers. Owned for the communicator's whole
+     * lifetime so they survive reconnects. */
+    private final DirectBufferPool bufferPool = new DirectBufferPool();
+
+    /* Brings the connection back after it is lost; see connect() */
+    private final ConnectionSupervisor supervisor =
+            new ConnectionSupervisor(new SupervisedConnector());
+    private final UsbContext.Listener hotplugListener = new HotplugWatcher();
+    private volatile String lastPortOrPath;
+
+    /* OUT side: the tail of the chain of pending writes, guarded by outLock */
+    private final Object outLock = new Object();
+    private CompletableFuture<?> outTail = CompletableFuture.completedFuture(null);
+    /* The preemptible USB job on the OUT chain, if any; guarded by outLock */
+    private BulkGate activeGate;
 
     /* Serial-specific fields */
-    private SerialPort serialPort;
-
-    public DeviceCommunicator() {}
+    private volatile SerialPort serialPort;
+    private volatile SerialReceiver serialReceiver;
+    private volatile SerialConfig serialConfig;
+    /* Outlives the connection, so readers keep their place across a
+     * reconnect; replaced only if the lexicon asks for a different one */
+    private volatile CaptureRing serialCapture;
+
+    /* Every other protocol, through its TransportProvider */
+    private volatile Transport transport;
+
+    public DeviceCommunicator() {
+        UsbContext.AddListener(hotplugListener);
+    }
 
     /* Public API */
 
@@ -47,6 +123,21 @@ public class DeviceCommunicator {
 
         currentLexicon = lexicon;
         setProtocol();
+
+        telemetry = TelemetryPipeline.FromLexicon(lexicon);
+
+        correlator = ResponseCorrelator.FromLexicon(lexicon);
+
+        CommandQueue oldQueue = commandQueue;
+        CommandPacer old = pacer;
+        pacer = CommandPacer.FromLexicon(lexicon);
+        commandQueue = CommandQueue.FromLexicon(lexicon, pacer);
+        if (oldQueue != null) {
+            oldQueue.close();
+        }
+        if (old != null) {
+            old.close();
+        }
     }
 
     public void setActivePanel(CommandPanel panel) {
@@ -61,14 +152,394 @@ public class DeviceCommunicator {
         return isConnected;
     }
 
-    public boolean connect(String portOrPath) {
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /* Where a streaming device's readings go once parsed; add a sink to
+     * receive them. null if the lexicon declares no recordFormat. Replaced
+     * when the lexicon is. */
+    public TelemetryPipeline getTelemetry() {
+        return telemetry;
+    }
+
+    /* How fast commands are going out, and how many are waiting their turn;
+     * null until a lexicon is set */
+    public CommandPacer getPacer() {
+        return pacer;
+    }
+
+    /* Commands waiting to go out; null until a lexicon is set */
+    public CommandQueue getCommandQueue() {
+        return commandQueue;
+    }
+
+    /* Reconnect and queue metrics */
+    public ConnectionSupervisor getSupervisor() {
+        return supervisor;
+    }
+
+    /* Status listeners are called on the libusb event thread as interrupt
+     * reports arrive. They persist across reconnects. */
+    public void addStatusListener(DeviceStatusListener listener) {
+        statusListeners.add(listener);
+    }
+
+    public void removeStatusListener(DeviceStatusListener listener) {
+        statusListeners.remove(listener);
+    }
+
+    /* Manufacturer, product and serial number, read in the background after
+     * connecting. Fails if not connected over USB. */
+    public CompletableFuture<UsbDeviceStrings> getDeviceStrings() {
+        CompletableFuture<UsbDeviceStrings> strings = deviceStrings;
+        return (strings != null) ? strings : CompletableFuture.failedFuture(
+                new IllegalStateException(ERR_STR_NO_USB_DEVICE));
+    }
+
+    /* Everything received on the serial port, for readers that want the raw
+     * stream (recorders, monitors). null until the first serial connect.
+     * Readers should check isClosed() now and then: a connect with a
+     * lexicon asking for a different size or policy replaces the ring. */
+    public CaptureRing getSerialCapture() {
+        return serialCapture;
+    }
+
+    /* Every endpoint on the claimed interfaces, in descriptor order */
+    public List<UsbEndpointInfo> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    /* Returns the independent stream for a bulk endpoint on one of the
+     * claimed interfaces, opening it on first use, or null if there is no
+     * such endpoint. Streams on different endpoints run in parallel. The
+     * command pipes are owned by the communicator and aren't handed out. */
+    public synchronized UsbEndpointStream getEndpointStream(byte address) {
+        if (!isConnected || protocol != Protocol.USB ||
+                address == inEndpoint || address == outEndpoint) {
+            return null;
+        }
+        return getEndpointStreamLocked(address);
+    }
+
+    private synchronized UsbEndpointStream getEndpointStreamLocked(byte address) {
+        UsbEndpointStream stream = endpointStreams.get(address);
+        if (stream != null) {
+            return stream;
+        }
+
+        for (UsbEndpointInfo info : endpoints) {
+            if (info.address == address && info.isBulk()) {
+                stream = new UsbEndpointStream(transferEngine, bufferPool,
+                        deviceHandle, info, bulkChunkSize(), bulkMaxInFlight(),
+                        supervisor::transportLost);
+                endpointStreams.put(address, stream);
+                return stream;
+            }
+        }
+        return null;
+    }
+
+    /* Streams a print job (or any other large payload) to the USB OUT
+     * endpoint as it is produced. length is only used for progress and may
+     * be -1. The returned future yields the number of bytes acknowledged. */
+    public CompletableFuture<Long> sendRawStream(InputStream in, long length,
+            ChunkedBulkWriter.ProgressListener listener) {
+        if (!isConnected || protocol != Protocol.USB || bulkWriter == null) {
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException(ERR_STR_STREAM_UNAVAILABLE));
+        }
+        return submitJob("rawStream", false,
+                () -> submitBulkOut(gate -> bulkWriter.write(in, length, listener, gate))
+                        .whenComplete((n, e) -> checkTransportLoss(e)));
+    }
+
+    /* Runs a command whose lexicon entry has "responseType": "dataStream"
+     * (the XQ2's readStoredData, say) and writes everything it returns into
+     * file as it arrives; see MappedDownloadSink. The transfer ends after
+     * the command's "responseLength", if it has one, or once the device has
+     * been quiet for its "idleTimeoutMs". The returned future yields the
+     * number of bytes downloaded. listener may be null. */
+    public CompletableFuture<Long> downloadStoredData(String commandName, Path file,
+            ChunkedBulkWriter.ProgressListener listener) {
+        JsonNode command = (currentLexicon != null) ? findCommand(commandName) : null;
+        if (command == null || !isStreamCommand(command)) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    ErrStrNotDataStream(commandName)));
+        }
+        if (!isConnected || protocol != Protocol.USB_SERIAL) {
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException(ERR_STR_DOWNLOAD_UNAVAILABLE));
+        }
+
+        byte[] commandBytes = parseHexBytes(command.get("commandCode").asText());
+        long expected = command.path(LexiconStrings.responseLength).asLong(-1);
+        return submitJob(commandName, true, () -> {
+            MappedDownloadSink sink;
+            try {
+                sink = openSink(file, 0, expected, listener);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return downloadSerial(commandBytes, command, sink, expected);
+        });
+    }
+
+    /* As downloadStoredData(), but into the device's own file under
+     * downloads/, checkpointed as it goes (see DownloadCheckpoint) so that
+     * nothing confirmed is ever fetched twice:
+     *   - if the last download for this serial number didn't finish, this
+     *     one carries on from the last whole record it confirmed;
+     *   - if it did, and the command has a "resumeCommand", only records
+     *     after the ones already held are asked for and appended;
+     *   - otherwise the whole memory is downloaded again.
+     * Carrying on needs the device to start part way through, which the
+     * lexicon declares with a "resumeCommand": the command as ASCII text,
+     * with {record} or {offset} standing for the first record, or byte,
+     * wanted. "recordLength" gives the size of a record in bytes. Without a
+     * resumeCommand the device sends everything again and what is already
+     * held is dropped as it arrives, which saves rewriting it but not the
+     * wait. The returned future yields the checkpoint as it stands at the
+     * end.
+     *
+     * The line is the download's until it ends, so a command sent meanwhile
+     * waits for all of it. If the device can send part of its memory, the
+     * command says how with a "rangeCommand" (as resumeCommand, plus
+     * {records} or {length} for how much), and the download goes a
+     * "rangeLength" bytes (DEF_RANGE_LENGTH by default) at a time, each
+     * range a job of its own, so anything queued goes out in between. */
+    public CompletableFuture<DownloadCheckpoint> syncStoredData(String commandName,
+            String deviceSerial, ChunkedBulkWriter.ProgressListener listener) {
+        JsonNode command = (currentLexicon != null) ? findCommand(commandName) : null;
+        if (command == null || !isStreamCommand(command)) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    ErrStrNotDataStream(commandName)));
+        }
+        if (!isConnected || protocol != Protocol.USB_SERIAL) {
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException(ERR_STR_DOWNLOAD_UNAVAILABLE));
+        }
+        if (command.has(LexiconStrings.rangeCommand)) {
+            CompletableFuture<DownloadCheckpoint> result = new CompletableFuture<>();
+            syncNextRange(commandName, command, deviceSerial, listener, true, result);
+            return result;
+        }
+        return submitJob(commandName, true,
+                () -> syncSerial(command, deviceSerial, listener));
+    }
+
+    /* Queues the next range once the last is in, behind whatever was queued
+     * while it ran */
+    private void syncNextRange(String commandName, JsonNode command, String deviceSerial,
+            ChunkedBulkWriter.ProgressListener listener, boolean first,
+            CompletableFuture<DownloadCheckpoint> result) {
+        submitJob(commandName, true, () -> syncRange(command, deviceSerial, listener, first))
+                .whenComplete((checkpoint, e) -> {
+                    if (e != null) {
+                        result.completeExceptionally(e);
+                    } else if (checkpoint.isComplete()) {
+                        result.complete(checkpoint);
+                    } else {
+                        syncNextRange(commandName, command, deviceSerial, listener,
+                                false, result);
+                    }
+                });
+    }
+
+    /* Fetches one range, from where the checkpoint stands. The download is
+     * complete once a range comes back short, or empty, or reaches the
+     * command's responseLength. */
+    private CompletableFuture<DownloadCheckpoint> syncRange(JsonNode command,
+            String deviceSerial, ChunkedBulkWriter.ProgressListener listener, boolean first) {
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.Load(
+                getLexiconString(LexiconStrings.deviceName, "device"), deviceSerial);
+        int recordLength = Math.max(1, command.path(LexiconStrings.recordLength).asInt(1));
+        long total = command.path(LexiconStrings.responseLength).asLong(-1);
+        long rangeLength = Math.max(1, command.path(LexiconStrings.rangeLength)
+                .asLong(DEF_RANGE_LENGTH) / recordLength) * recordLength;
+
+        if (checkpoint.getRecordLength() != recordLength) {
+            checkpoint.restart(recordLength);
+        }
+        if (first) {
+            System.out.println((checkpoint.isComplete() ? "Fetching new records for "
+                    : checkpoint.getBytes() > 0 ? "Resuming download for "
+                    : "Downloading all stored data for ") + checkpoint);
+        }
+        checkpoint.reopen();
+        long start = checkpoint.getBytes();
+        long length = (total >= 0) ? Math.min(rangeLength, total - start) : rangeLength;
+
+        try {
+            if (length <= 0) {
+                checkpoint.markComplete(start);
+                checkpoint.save();
+                return CompletableFuture.completedFuture(checkpoint);
+            }
+
+            byte[] commandBytes = command.get(LexiconStrings.rangeCommand).asText()
+                    .replace("{record}", Long.toString(checkpoint.getRecords()))
+                    .replace("{offset}", Long.toString(start))
+                    .replace("{records}", Long.toString(length / recordLength))
+                    .replace("{length}", Long.toString(length))
+                    .getBytes(StandardCharsets.US_ASCII);
+
+            CheckpointingListener progress = new CheckpointingListener(checkpoint, listener);
+            MappedDownloadSink sink = openSink(checkpoint.getDataFile(), start, total, progress);
+            checkpoint.save();
+            progress.sink = sink;
+
+            CompletableFuture<Long> received = new CompletableFuture<>();
+            streamSerial(commandBytes, sink, length, idleTimeoutOf(command), received);
+
+            return received.handle((n, e) -> {
+                try {
+                    if (e == null || (rootCause(e) instanceof TimeoutException
+                            && sink.getBytesWritten() == start)) {
+                        /* A device with nothing more says nothing */
+                        long end = sink.finish();
+                        if (end - start < length || (total >= 0 && end >= total)) {
+                            checkpoint.markComplete(end);
+                        } else {
+                            checkpoint.advance(end);
+                        }
+                    } else {
+                        sink.force();
+                        checkpoint.advance(sink.getBytesWritten());
+                        sink.abort();
+                    }
+                    checkpoint.save();
+                } catch (IOException ioe) {
+                    sink.abort();
+                    throw new CompletionException(ioe);
+                }
+                if (e != null && !checkpoint.isComplete()) {
+                    throw new CompletionException(rootCause(e));
+                }
+                return checkpoint;
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /* The checkpoint is read when the download starts, not when it is queued */
+    private CompletableFuture<DownloadCheckpoint> syncSerial(JsonNode command,
+            String deviceSerial, ChunkedBulkWriter.ProgressListener listener) {
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.Load(
+                getLexiconString(LexiconStrings.deviceName, "device"), deviceSerial);
+        int recordLength = Math.max(1, command.path(LexiconStrings.recordLength).asInt(1));
+        String resumeCommand = command.path(LexiconStrings.resumeCommand).asText(null);
+        long total = command.path(LexiconStrings.responseLength).asLong(-1);
+
+        boolean resuming = !checkpoint.isComplete() && checkpoint.getBytes() > 0;
+        boolean incremental = checkpoint.isComplete() && resumeCommand != null;
+        if (checkpoint.getRecordLength() != recordLength || !(resuming || incremental)) {
+            checkpoint.restart(recordLength);
+            resuming = incremental = false;
+        }
+        checkpoint.reopen();
+        long start = checkpoint.getBytes();
+
+        byte[] commandBytes;
+        long streamLength;
+        long skip = 0;
+        if (start > 0 && resumeCommand != null) {
+            commandBytes = resumeCommand
+                    .replace("{record}", Long.toString(checkpoint.getRecords()))
+                    .replace("{offset}", Long.toString(start))
+                    .getBytes(StandardCharsets.US_ASCII);
+            streamLength = (total >= 0) ? Math.max(0, total - start) : -1;
+        } else {
+            commandBytes = parseHexBytes(command.get("commandCode").asText());
+            streamLength = total;
+            skip = start;
+        }
+        System.out.println((incremental ? "Fetching new records for " : resuming
+                ? "Resuming download for " : "Downloading all stored data for ") + checkpoint);
+
+        CheckpointingListener progress = new CheckpointingListener(checkpoint, listener);
+        MappedDownloadSink sink;
+        try {
+            sink = openSink(checkpoint.getDataFile(), start, total, progress);
+            checkpoint.save();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        progress.sink = sink;
+        sink.setSkip(skip);
+
+        boolean upToDateIfSilent = incremental;
+        CompletableFuture<Long> received = new CompletableFuture<>();
+        streamSerial(commandBytes, sink, streamLength, idleTimeoutOf(command), received);
+
+        return received.handle((n, e) -> {
+            try {
+                if (e == null || (upToDateIfSilent && rootCause(e) instanceof TimeoutException
+                        && sink.getBytesWritten() == start)) {
+                    /* A device with nothing new says nothing */
+                    checkpoint.markComplete(sink.finish());
+                } else {
+                    sink.force();
+                    checkpoint.advance(sink.getBytesWritten());
+                    sink.abort();
+                }
+                checkpoint.save();
+            } catch (IOException ioe) {
+                sink.abort();
+                throw new CompletionException(ioe);
+            }
+            if (e != null && !checkpoint.isComplete()) {
+                throw new CompletionException(rootCause(e));
+            }
+            return checkpoint;
+        });
+    }
+
+    /* Once connected, the connection is supervised: if the transport is
+     * lost, it is reconnected in the background and commands sent in the
+     * meantime are queued and replayed. Only disconnect() ends that. A
+     * connect that fails outright is reported and not retried. */
+    public synchronized boolean connect(String portOrPath) {
         if (currentLexicon == null) {
             nonFatalError(ERR_STR_LEXICON_NOT_SET);
             return false;
-        } else if (isConnected) {
-            disconnect();
         }
 
+        supervisor.setEnabled(false);
+        if (isConnected) {
+            closeTransport();
+        }
+
+        lastPortOrPath = portOrPath;
+        boolean connected = openTransport(portOrPath);
+        supervisor.setEnabled(connected);
+        return connected;
+    }
+
+    public synchronized void disconnect() {
+        supervisor.setEnabled(false);
+        if (commandQueue != null) {
+            commandQueue.clear();
+        }
+        if (pacer != null) {
+            pacer.clear();
+        }
+        closeTransport();
+        if (correlator != null) {
+            correlator.clear(new IllegalStateException(ERR_STR_DISCONNECTED));
+        }
+    }
+
+    /* Disconnects, and stops listening for devices coming and going. The
+     * hotplug listener list is static, so a communicator that isn't closed
+     * stays reachable from it for good. */
+    public synchronized void close() {
+        disconnect();
+        UsbContext.RemoveListener(hotplugListener);
+    }
+
+    private synchronized boolean openTransport(String portOrPath) {
         logConnectionAttempt();
 
         switch (protocol) {
@@ -77,12 +548,11 @@ public class DeviceCommunicator {
             case USB_SERIAL:
                 return connectSerial(portOrPath);
             default:
-                System.err.println("Unsupported protocol: " + protocol);
-                return false;
+                return connectTransport(portOrPath);
         }
     }
 
-    public void disconnect() {
+    private synchronized void closeTransport() {
         switch (protocol) {
             case USB:
                 disconnectUsb();
@@ -91,64 +561,186 @@ public class DeviceCommunicator {
                 disconnectSerial();
                 break;
             default:
+                disconnectTransport();
                 break;
         }
         isConnected = false;
     }
 
-    public void sendCommand(String commandName) {
-        if (!isConnected || currentLexicon == null) {
+    /* Queues the command and returns at once; the handle follows it to its
+     * answer. Never blocks, so it is safe on the EDT. The command goes at
+     * the priority its lexicon entry gives, or see Priority. */
+    public CommandHandle sendCommand(String commandName) {
+        return sendCommand(commandName, null);
+    }
+
+    /* As sendCommand(), at priority unless that is null. A data stream is a
+     * job whatever it is sent as; see CommandQueue. */
+    public CommandHandle sendCommand(String commandName, Priority priority) {
+        if (!isUsable() || currentLexicon == null) {
             System.err.println("Not connected or no lexicon loaded");
-            return;
+            return CommandHandle.Failed(commandName,
+                    new IllegalStateException(ERR_STR_NOT_USABLE));
         }
 
         if (handleSpecialCommand(commandName)) {
-            return;
+            return CommandHandle.Completed(commandName);
         }
 
         JsonNode command = findCommand(commandName);
         if (command == null) {
             System.err.println("Command not found: " + commandName);
-            return;
+            return CommandHandle.Failed(commandName,
+                    new IllegalArgumentException(ErrStrNoSuchCommand(commandName)));
         }
 
         if (!command.has("commandCode")) {
             System.err.println("Command [" + commandName + "] has no command code");
-            return;
+            return CommandHandle.Failed(commandName,
+                    new IllegalArgumentException(ErrStrNoSuchCommand(commandName)));
         }
 
         byte[] commandBytes = parseHexBytes(command.get("commandCode").asText());
         byte[] parameters = (activePanel != null) ? activePanel.getCommandData() : new byte[0];
         byte[] fullCommand = combineBytes(commandBytes, parameters);
+        if (priority == null) {
+            priority = Priority.FromLexicon(command,
+                    isStreamCommand(command) ? Priority.BULK : Priority.INTERACTIVE);
+        }
+        CommandHandle handle = new CommandHandle(commandName, priority);
+
+        /* Resolved now, so a replay sends what the panel held at the time */
+        if (supervisor.enqueue(() -> dispatchCommand(handle, fullCommand, command))) {
+            System.out.println("Queued until reconnected: " + bytesToHex(fullCommand));
+            return handle;
+        }
+        if (supervisor.isRecovering()) {
+            /* The replay queue is full */
+            handle.fail(new RejectedExecutionException(ERR_STR_REPLAY_FULL));
+            return handle;
+        }
+        dispatchCommand(handle, fullCommand, command);
+        return handle;
+    }
+
+    public boolean sendRawData(byte[] data) {
+        if (!isUsable()) {
+            System.err.println("Not connected");
+            return false;
+        }
+
+        if (supervisor.enqueue(() -> dispatchRawData(data))) {
+            System.out.println("Queued " + data.length + " bytes until reconnected");
+            return true;
+        }
+        if (supervisor.isRecovering()) {
+            System.err.println("Replay queue full, " + data.length + " bytes not sent");
+            return false;
+        }
+        return dispatchRawData(data);
+    }
+
+    /* Connected, or expected to be again soon */
+    private boolean isUsable() {
+        return isConnected || supervisor.isRecovering();
+    }
 
+    /* Into the device's queue; its writer sends it when the pacer lets it,
+     * and holds its slot until the command has finished: answered, timed
+     * out, or failed. */
+    private void dispatchCommand(CommandHandle handle, byte[] fullCommand, JsonNode command) {
+        boolean queued;
+        if (isStreamCommand(command)) {
+            /* A serial dump has the port to itself until it ends */
+            queued = commandQueue.submitJob(handle, protocol == Protocol.USB_SERIAL,
+                    () -> sendNow(fullCommand, command));
+        } else {
+            queued = commandQueue.submit(handle, () -> sendNow(fullCommand, command));
+        }
+        if (!queued) {
+            System.err.println("Command queue full, not sent: " + bytesToHex(fullCommand));
+        }
+    }
+
+    /* Queues op as a job (see CommandQueue); the returned future follows
+     * op's, or fails if the job is rejected or dropped before it starts */
+    private <T> CompletableFuture<T> submitJob(String name, boolean exclusive,
+                                               Supplier<CompletableFuture<T>> op) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CommandHandle handle = new CommandHandle(name, Priority.BULK);
+        handle.getResponse().whenComplete((ignored, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            }
+        });
+        commandQueue.submitJob(handle, exclusive, () -> {
+            CompletableFuture<T> f = op.get();
+            f.whenComplete((v, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(rootCause(e));
+                } else {
+                    result.complete(v);
+                }
+            });
+            return f;
+        });
+        return result;
+    }
+
+    /* The returned future completes when the command has finished */
+    private CompletableFuture<?> sendNow(byte[] fullCommand, JsonNode command) {
         System.out.println("Sending to device: " + bytesToHex(fullCommand));
 
+        if (protocol == Protocol.USB_SERIAL && isStreamCommand(command)) {
+            /* Sent from a panel, there's nobody to name the file */
+            Path file = DefaultDownloadPath(getLexiconString(LexiconStrings.deviceName,
+                    "device"));
+            long expected = command.path(LexiconStrings.responseLength).asLong(-1);
+            MappedDownloadSink sink;
+            try {
+                sink = openSink(file, 0, expected, null);
+            } catch (IOException e) {
+                System.err.println("Download failed: " + e.getMessage());
+                return CompletableFuture.completedFuture(null);
+            }
+            return downloadSerial(fullCommand, command, sink, expected).whenComplete((n, e) -> {
+                if (e == null) {
+                    System.out.println("Downloaded " + n + " bytes to " + file);
+                } else {
+                    System.err.println("Download failed: " + rootCause(e).getMessage());
+                }
+            });
+        }
+
         switch (protocol) {
             case USB:
-                sendUsbCommand(fullCommand, command);
-                break;
+                return sendUsbCommand(fullCommand, command);
             case USB_SERIAL:
-                sendSerialCommand(fullCommand);
-                break;
+                return sendSerialCommand(fullCommand, command);
             default:
-                System.err.println("Send not implemented for protocol: " + protocol);
+                return sendTransportCommand(fullCommand, command);
         }
     }
 
-    public boolean sendRawData(byte[] data) {
-        if (!isConnected) {
-            System.err.println("Not connected");
+    /* Raw data is a job like any other; true once it is queued */
+    private boolean dispatchRawData(byte[] data) {
+        CommandHandle handle = new CommandHandle(null, Priority.BULK);
+        if (!commandQueue.submitJob(handle, false, () -> sendRawNow(data))) {
+            System.err.println("Command queue full, " + data.length + " bytes not sent");
             return false;
         }
+        return true;
+    }
 
+    /* The returned future completes when the data has been written */
+    private CompletableFuture<?> sendRawNow(byte[] data) {
         switch (protocol) {
             case USB:
                 return sendRawUsb(data);
             case USB_SERIAL:
                 return sendRawSerial(data);
             default:
-                System.err.println("Raw send not implemented for protocol: " + protocol);
-                return false;
+                return sendRawTransport(data);
         }
     }
 
@@ -164,50 +756,101 @@ public class DeviceCommunicator {
             vendorId = parseHexId(vendorIdStr);
             productId = parseHexId(productIdStr);
 
-            context = new Context();
-            int result = LibUsb.init(context);
-            if (result != LibUsb.SUCCESS) {
-                throw new LibUsbException("Unable to initialize libusb", result);
+            /* One libusb context serves the whole process; the device index
+             * it keeps makes this a lookup rather than a bus walk. */
+            if (!UsbContext.EnsureInit()) {
+                return false;
             }
 
-            usbDevice = findUsbDevice(vendorId, productId);
+            usbDevice = UsbContext.FindDevice(vendorId, productId);
             if (usbDevice == null) {
                 System.err.println("USB device not found - VID: " + formatHex16(vendorId) +
                         ", PID: " + formatHex16(productId));
-                LibUsb.exit(context);
                 return false;
             }
 
+            /* If the device is where it was last time and unchanged, its
+             * endpoint layout is taken from the profile rather than walked. */
+            UsbDeviceProfile profile = UsbDeviceProfile.Load(currentLexicon);
+            boolean profiled = profile != null && profile.matches(usbDevice, currentLexicon);
+
             deviceHandle = new DeviceHandle();
-            result = LibUsb.open(usbDevice, deviceHandle);
+            int result = LibUsb.open(usbDevice, deviceHandle);
             if (result != LibUsb.SUCCESS) {
                 throw new LibUsbException("Unable to open USB device", result);
             }
 
-            detachKernelDriverIfNeeded();
-            claimInterface();
-            findEndpoints();
+            claimInterfaces();
+            if (profiled) {
+                for (UsbEndpointInfo info : profile.getEndpoints()) {
+                    recordEndpoint(info);
+                }
+            } else {
+                findEndpoints();
+                profile = UsbDeviceProfile.Describe(usbDevice, currentLexicon, endpoints);
+            }
+
+            transferEngine = UsbContext.GetTransferEngine();
+            bulkWriter = createBulkWriter();
+            if (inEndpoint != -1) {
+                responseRouter = new UsbResponseRouter(bufferPool,
+                        getEndpointStreamLocked(inEndpoint), this::onUnsolicited);
+                responseRouter.start();
+            }
+            if (interruptInEndpoint != null) {
+                interruptReader = new UsbInterruptReader(transferEngine, bufferPool,
+                        deviceHandle, interruptInEndpoint,
+                        StatusReportDecoder.FromLexicon(currentLexicon), statusListeners,
+                        supervisor::transportLost);
+                interruptReader.start();
+            }
 
             isConnected = true;
-            System.out.println("Successfully connected to USB device");
-            logUsbDeviceInfo();
+            System.out.println("Successfully connected to USB device" +
+                    (profiled ? " (cached layout, " + profile.getLocation() + ")" : ""));
+            readDeviceStrings(profile, !profiled);
 
             return true;
 
         } catch (Exception e) {
             System.err.println("Failed to connect to USB device: " + e.getMessage());
             e.printStackTrace();
-            disconnect();
+            /* Only what this attempt opened; if it was a reconnect, the
+             * supervisor keeps trying and keeps what it holds for replay */
+            disconnectUsb();
             return false;
         }
     }
 
     private void disconnectUsb() {
         try {
+            /* Outstanding transfers must be reaped before the handle closes.
+             * The engine is shared, so only this device's are cancelled. */
+            bulkWriter = null;
+            if (responseRouter != null) {
+                responseRouter.close();
+                responseRouter = null;
+            }
+            if (interruptReader != null) {
+                interruptReader.stop();
+                interruptReader = null;
+            }
+            synchronized (this) {
+                for (UsbEndpointStream stream : endpointStreams.values()) {
+                    stream.stopReceiving();
+                }
+                endpointStreams.clear();
+            }
+            if (transferEngine != null && deviceHandle != null) {
+                transferEngine.cancelAndDrain(deviceHandle);
+            }
+            awaitDeviceStrings();
+            transferEngine = null;
+
             if (deviceHandle != null) {
-                if (isConnected) {
-                    LibUsb.releaseInterface(deviceHandle, 0);
-                    System.out.println("Released USB interface");
+                for (UsbInterfaceClaim claim : claimedInterfaces) {
+                    LibUsb.releaseInterface(deviceHandle, claim.number);
+                    System.out.println("Released USB " + claim);
                 }
                 LibUsb.close(deviceHandle);
                 deviceHandle = null;
@@ -219,142 +862,255 @@ public class DeviceCommunicator {
                 usbDevice = null;
             }
 
-            if (context != null) {
-                LibUsb.exit(context);
-                context = null;
-                System.out.println("Exited libusb context");
-            }
         } catch (Exception e) {
             System.err.println("Error during USB disconnect: " + e.getMessage());
         } finally {
             outEndpoint = -1;
             inEndpoint = -1;
+            interruptInEndpoint = null;
+            endpoints.clear();
+            claimedInterfaces.clear();
         }
     }
 
-    private void sendUsbCommand(byte[] fullCommand, JsonNode command) {
+    private CompletableFuture<?> sendUsbCommand(byte[] fullCommand, JsonNode command) {
         if (outEndpoint == -1) {
             System.err.println("No output endpoint available");
-            return;
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException(ERR_STR_NO_OUT_ENDPOINT));
         }
 
-        try {
-            int bytesSent = usbBulkWrite(fullCommand, 5000);
-            System.out.println("Sent " + bytesSent + " bytes successfully");
-
-            if (isQueryCommand(command) && inEndpoint != -1) {
-                readUsbResponse();
+        UsbResponseRouter router = responseRouter;
+        boolean expectResponse = isQueryCommand(command) && router != null;
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+
+        /* The query is registered when its write reaches the front of the OUT
+         * chain, so responses line up with commands in the order they went
+         * out. The chain moves on as soon as the write completes. */
+        CompletableFuture<Integer> written = submitUrgentOut(() -> {
+            if (expectResponse) {
+                router.expect(response, expectedResponseLength(command),
+                        responseTerminator(command), 1000,
+                        UsbResponseReader.DEF_MAX_RESPONSE_LENGTH);
             }
-
-        } catch (Exception e) {
-            System.err.println("Failed to send USB command: " + e.getMessage());
-            e.printStackTrace();
+            return usbBulkWrite(fullCommand, 5000);
+        }).whenComplete((bytesSent, e) -> {
+            if (e != null) {
+                System.err.println("Failed to send USB command: " +
+                        rootCause(e).getMessage());
+                response.completeExceptionally(rootCause(e));
+                checkTransportLoss(e);
+            } else {
+                System.out.println("Sent " + bytesSent + " bytes successfully");
+            }
+        });
+
+        if (expectResponse) {
+            /* The response buffer goes back to the pool; the answer is a copy */
+            CompletableFuture<byte[]> answer = new CompletableFuture<>();
+            response.whenComplete((buffer, e) -> {
+                byte[] data = onUsbResponse(buffer, e);
+                if (e != null) {
+                    answer.completeExceptionally(rootCause(e));
+                } else {
+                    answer.complete(data);
+                }
+            });
+            return answer;
         }
+        return written;
     }
 
-    private boolean sendRawUsb(byte[] data) {
+    private CompletableFuture<?> sendRawUsb(byte[] data) {
         if (outEndpoint == -1) {
             System.err.println("No output endpoint available");
-            return false;
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException(ERR_STR_NO_OUT_ENDPOINT));
         }
 
-        try {
-            System.out.println("Sending " + data.length + " bytes to USB device");
-            int bytesSent = usbBulkWrite(data, 10000);
-            System.out.println("Sent " + bytesSent + " bytes successfully");
-            return true;
+        /* The job is chunked and pipelined to the device in the background;
+         * the outcome is logged when it completes. */
+        System.out.println("Sending " + data.length + " bytes to USB device");
+        return submitBulkOut(gate -> bulkWriter.write(ByteBuffer.wrap(data), null, gate))
+                .whenComplete((bytesSent, e) -> {
+                    if (e != null) {
+                        System.err.println("Failed to send raw USB data: " +
+                                rootCause(e).getMessage());
+                        checkTransportLoss(e);
+                    } else {
+                        System.out.println("Sent " + bytesSent + " bytes successfully");
+                    }
+                });
+    }
 
-        } catch (Exception e) {
-            System.err.println("Failed to send raw USB data: " + e.getMessage());
-            e.printStackTrace();
-            return false;
+    /* Appends an operation to the OUT chain. It starts once everything
+     * submitted before it has finished (successfully or not), so commands
+     * and jobs never interleave on the wire, and the caller never waits. */
+    private <T> CompletableFuture<T> submitOut(Supplier<CompletableFuture<T>> op) {
+        synchronized (outLock) {
+            CompletableFuture<T> next = outTail
+                    .handle((ignored, e) -> null)
+                    .thenCompose(ignored -> isConnected
+                            ? op.get()
+                            : CompletableFuture.<T>failedFuture(
+                                    new IllegalStateException(ERR_STR_NOT_CONNECTED)));
+            outTail = next;
+            return next;
         }
     }
 
-    private int usbBulkWrite(byte[] data, int timeoutMs) {
-        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
-        buffer.put(data);
-        buffer.rewind();
+    /* As submitOut(), but while a preemptible job is on the chain, op goes
+     * out at its next chunk boundary instead of after it */
+    private <T> CompletableFuture<T> submitUrgentOut(Supplier<CompletableFuture<T>> op) {
+        synchronized (outLock) {
+            if (activeGate != null) {
+                CompletableFuture<T> result = new CompletableFuture<>();
+                activeGate.offer(() -> Pipe(op, result));
+                return result;
+            }
+            return submitOut(op);
+        }
+    }
 
-        IntBuffer transferred = IntBuffer.allocate(1);
-        int result = LibUsb.bulkTransfer(deviceHandle, outEndpoint, buffer, transferred, timeoutMs);
+    /* Appends a USB job to the OUT chain, with a gate for commands to get
+     * through by if the lexicon allows it */
+    private CompletableFuture<Long> submitBulkOut(
+            Function<ChunkedBulkWriter.ChunkGate, CompletableFuture<Long>> job) {
+        if (!currentLexicon.path(LexiconStrings.bulkTransfer)
+                .path(LexiconStrings.preemptible).asBoolean(false)) {
+            return submitOut(() -> job.apply(null));
+        }
+        synchronized (outLock) {
+            BulkGate gate = new BulkGate();
+            activeGate = gate;
+            return submitOut(() -> job.apply(gate)).whenComplete((n, e) -> gate.close());
+        }
+    }
 
-        if (result != LibUsb.SUCCESS) {
-            throw new LibUsbException("Failed to send data", result);
+    /* Starts op, and completes result as op's future does; the returned
+     * future completes with it, successfully either way */
+    private static <T> CompletableFuture<Void> Pipe(Supplier<CompletableFuture<T>> op,
+                                                    CompletableFuture<T> result) {
+        CompletableFuture<T> f;
+        try {
+            f = op.get();
+        } catch (RuntimeException e) {
+            f = CompletableFuture.failedFuture(e);
         }
+        return f.handle((v, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(v);
+            }
+            return null;
+        });
+    }
 
-        return transferred.get(0);
+    private ChunkedBulkWriter createBulkWriter() {
+        return new ChunkedBulkWriter(transferEngine, bufferPool, deviceHandle,
+                outEndpoint, bulkChunkSize(), bulkMaxInFlight(),
+                ChunkedBulkWriter.DEF_CHUNK_TIMEOUT_MS);
     }
 
-    private void readUsbResponse() {
-        ByteBuffer responseBuffer = ByteBuffer.allocateDirect(64);
-        IntBuffer received = IntBuffer.allocate(1);
+    private int bulkChunkSize() {
+        return currentLexicon.path(LexiconStrings.bulkTransfer)
+                .path(LexiconStrings.chunkSize).asInt(ChunkedBulkWriter.DEF_CHUNK_SIZE);
+    }
 
-        int result = LibUsb.bulkTransfer(deviceHandle, inEndpoint, responseBuffer, received, 1000);
+    private int bulkMaxInFlight() {
+        return currentLexicon.path(LexiconStrings.bulkTransfer)
+                .path(LexiconStrings.maxInFlight).asInt(ChunkedBulkWriter.DEF_MAX_IN_FLIGHT);
+    }
 
-        if (result == LibUsb.SUCCESS && received.get(0) > 0) {
-            byte[] responseData = new byte[received.get(0)];
-            responseBuffer.get(responseData);
-            System.out.println("Received response: " + bytesToHex(responseData));
+    private CompletableFuture<Integer> usbBulkWrite(byte[] data, int timeoutMs) {
+        ByteBuffer buffer = bufferPool.acquireFilled(data);
 
-            if (activePanel != null) {
-                activePanel.updateResponse(responseData);
-            }
-        } else if (result == LibUsb.ERROR_TIMEOUT) {
-            System.out.println("No response received (timeout)");
-        } else if (result != LibUsb.SUCCESS) {
-            System.err.println("Error reading response: " + LibUsb.errorName(result));
-        }
+        CompletableFuture<Integer> pending =
+                transferEngine.bulkOut(deviceHandle, outEndpoint, buffer, timeoutMs);
+        /* libusb owns the buffer until the transfer completes either way */
+        pending.whenComplete((n, e) -> bufferPool.release(buffer));
+        return pending;
     }
 
-    private Device findUsbDevice(short vendorId, short productId) {
-        DeviceList list = new DeviceList();
-        int result = LibUsb.getDeviceList(context, list);
-        if (result < 0) {
-            throw new LibUsbException("Unable to get device list", result);
+    /* Returns a copy of the response, or null if there wasn't one */
+    private byte[] onUsbResponse(ByteBuffer response, Throwable e) {
+        byte[] responseData = null;
+        if (e == null && response.hasRemaining()) {
+            responseData = new byte[response.remaining()];
+            response.get(responseData);
+            System.out.println("Received response: " + bytesToHex(responseData));
+            deliverResponse(responseData);
+        } else if (e != null && usbErrorCode(e) == LibUsb.ERROR_TIMEOUT) {
+            System.out.println("No response received (timeout)");
+        } else if (e != null && usbErrorCode(e) != LibUsb.ERROR_INTERRUPTED) {
+            System.err.println("Error reading response: " + rootCause(e).getMessage());
         }
+        if (response != null) {
+            bufferPool.release(response);
+        }
+        return responseData;
+    }
 
-        try {
-            for (Device device : list) {
-                DeviceDescriptor descriptor = new DeviceDescriptor();
-                result = LibUsb.getDeviceDescriptor(device, descriptor);
-                System.out.println("Found device - VID: " + formatHex16(descriptor.idVendor()) +
-                        ", PID: " + formatHex16(descriptor.idProduct()));
-
-                if (result != LibUsb.SUCCESS) {
-                    continue;
-                }
+    /* Output the device sent without being asked, e.g. an error or status
+     * line. It goes to the panel like any other response. */
+    private void onUnsolicited(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        System.out.println("Received unsolicited: " + bytesToHex(bytes));
+        deliverResponse(bytes);
+    }
 
-                if (descriptor.idVendor() == vendorId && descriptor.idProduct() == productId) {
-                    LibUsb.refDevice(device);
-                    return device;
-                }
-            }
-            return null;
-        } finally {
-            LibUsb.freeDeviceList(list, false);
+    /* USB completions arrive on the libusb event thread. Panels expect to be
+     * updated from the EDT, as they are on the serial path. */
+    private void deliverResponse(byte[] responseData) {
+        CommandPanel panel = activePanel;
+        if (panel != null) {
+            SwingUtilities.invokeLater(() -> panel.updateResponse(responseData));
         }
     }
 
-    private void detachKernelDriverIfNeeded() {
-        int result = LibUsb.kernelDriverActive(deviceHandle, 0);
+    private void detachKernelDriverIfNeeded(int ifaceNumber) {
+        int result = LibUsb.kernelDriverActive(deviceHandle, ifaceNumber);
         if (result == 1) {
-            result = LibUsb.detachKernelDriver(deviceHandle, 0);
+            result = LibUsb.detachKernelDriver(deviceHandle, ifaceNumber);
             if (result != LibUsb.SUCCESS) {
                 System.err.println("Cannot detach kernel driver: " + LibUsb.errorName(result));
             } else {
-                System.out.println("Detached kernel driver");
+                System.out.println("Detached kernel driver from interface " + ifaceNumber);
             }
         }
     }
 
-    private void claimInterface() {
-        int result = LibUsb.claimInterface(deviceHandle, 0);
-        if (result != LibUsb.SUCCESS) {
-            throw new LibUsbException("Unable to claim interface", result);
+    /* Claims every interface the lexicon declares (interface 0 if it
+     * declares none), selecting the requested alternate setting. The kernel
+     * driver is only looked at if it is actually in the way, which saves a
+     * round trip per interface on the usual path. */
+    private void claimInterfaces() {
+        for (UsbInterfaceClaim claim : UsbInterfaceClaim.FromLexicon(currentLexicon)) {
+            int result = LibUsb.claimInterface(deviceHandle, claim.number);
+            if (result == LibUsb.ERROR_BUSY) {
+                detachKernelDriverIfNeeded(claim.number);
+                result = LibUsb.claimInterface(deviceHandle, claim.number);
+            }
+            if (result != LibUsb.SUCCESS) {
+                throw new LibUsbException("Unable to claim " + claim, result);
+            }
+            claimedInterfaces.add(claim);
+
+            if (claim.altSetting != 0) {
+                result = LibUsb.setInterfaceAltSetting(deviceHandle, claim.number,
+                        claim.altSetting);
+                if (result != LibUsb.SUCCESS) {
+                    throw new LibUsbException("Unable to select " + claim, result);
+                }
+            }
         }
     }
 
+    /* Records the endpoints of every claimed interface. The first bulk IN
+     * and OUT found become the command pipes; the rest are reachable as
+     * independent streams through getEndpointStream(). */
     private void findEndpoints() {
         ConfigDescriptor config = new ConfigDescriptor();
         int result = LibUsb.getActiveConfigDescriptor(usbDevice, config);
@@ -363,22 +1119,20 @@ public class DeviceCommunicator {
         }
 
         try {
-            Interface iface = config.iface()[0];
-            InterfaceDescriptor setting = iface.altsetting()[0];
-
-            for (int i = 0; i < setting.bNumEndpoints(); i++) {
-                EndpointDescriptor endpoint = setting.endpoint()[i];
-                byte address = endpoint.bEndpointAddress();
-                byte type = endpoint.bmAttributes();
-
-                if ((type & LibUsb.TRANSFER_TYPE_MASK) == LibUsb.TRANSFER_TYPE_BULK) {
-                    if ((address & LibUsb.ENDPOINT_IN) != 0) {
-                        inEndpoint = address;
-                        System.out.println("Found IN endpoint: " + formatHex8(address));
-                    } else {
-                        outEndpoint = address;
-                        System.out.println("Found OUT endpoint: " + formatHex8(address));
+            for (UsbInterfaceClaim claim : claimedInterfaces) {
+                Interface iface = findInterface(config, claim.number);
+                if (iface == null || claim.altSetting >= iface.numAltsetting()) {
+                    throw new LibUsbException("No such " + claim, LibUsb.ERROR_NOT_FOUND);
+                }
+                InterfaceDescriptor setting = iface.altsetting()[claim.altSetting];
+
+                for (int i = 0; i < setting.bNumEndpoints(); i++) {
+                    EndpointDescriptor endpoint = setting.endpoint()[i];
+                    if (!claim.wants(endpoint.bEndpointAddress())) {
+                        continue;
                     }
+                    recordEndpoint(UsbEndpointInfo.FromDescriptor(endpoint,
+                            claim.number, claim.altSetting));
                 }
             }
         } finally {
@@ -386,37 +1140,67 @@ public class DeviceCommunicator {
         }
     }
 
-    private void logUsbDeviceInfo() {
-        DeviceDescriptor descriptor = new DeviceDescriptor();
-        int result = LibUsb.getDeviceDescriptor(usbDevice, descriptor);
-        if (result != LibUsb.SUCCESS) {
-            return;
+    /* Interface numbers are usually array indices, but nothing requires it */
+    private Interface findInterface(ConfigDescriptor config, int number) {
+        for (Interface iface : config.iface()) {
+            if (iface.numAltsetting() > 0 &&
+                    (iface.altsetting()[0].bInterfaceNumber() & 0xFF) == number) {
+                return iface;
+            }
         }
+        return null;
+    }
 
-        System.out.println("Device info:");
-        System.out.println("  USB Version: " + (descriptor.bcdUSB() >> 8) + "." + (descriptor.bcdUSB() & 0xFF));
+    private void recordEndpoint(UsbEndpointInfo info) {
+        endpoints.add(info);
+        System.out.println("Found endpoint: " + info);
 
-        String manufacturer = getStringDescriptor(descriptor.iManufacturer());
-        String product = getStringDescriptor(descriptor.iProduct());
-        String serial = getStringDescriptor(descriptor.iSerialNumber());
+        if (info.isInterrupt() && info.isIn() && interruptInEndpoint == null) {
+            interruptInEndpoint = info;
+        } else if (info.isBulk() && info.isIn() && inEndpoint == -1) {
+            inEndpoint = info.address;
+        } else if (info.isBulk() && !info.isIn() && outEndpoint == -1) {
+            outEndpoint = info.address;
+        }
+    }
 
-        if (manufacturer != null) System.out.println("  Manufacturer: " + manufacturer);
-        if (product != null) System.out.println("  Product: " + product);
-        if (serial != null) System.out.println("  Serial Number: " + serial);
+    /* String descriptors cost a control transfer each, so they are read on
+     * a background thread once the connection is already usable. The profile
+     * is written afterwards, with the strings, if anything changed. */
+    private void readDeviceStrings(UsbDeviceProfile profile, boolean layoutChanged) {
+        final Device device = usbDevice;
+        final DeviceHandle handle = deviceHandle;
+        final JsonNode lexicon = currentLexicon;
+
+        deviceStrings = CompletableFuture.supplyAsync(() -> {
+            UsbDeviceStrings strings = UsbDeviceStrings.Read(device, handle);
+            System.out.println("Device info: " + strings);
+
+            if (profile != null) {
+                UsbDeviceStrings cached = profile.getStrings();
+                boolean stringsChanged = cached == null ||
+                        !String.valueOf(cached.serial).equals(String.valueOf(strings.serial));
+                if (layoutChanged || stringsChanged) {
+                    profile.setStrings(strings);
+                    profile.save(lexicon);
+                }
+            }
+            return strings;
+        }, DESCRIPTOR_READER);
     }
 
-    private String getStringDescriptor(byte index) {
-        if (index == 0) {
-            return null;
+    /* The handle must outlive a descriptor read still in progress */
+    private void awaitDeviceStrings() {
+        CompletableFuture<UsbDeviceStrings> strings = deviceStrings;
+        deviceStrings = null;
+        if (strings == null) {
+            return;
         }
-
-        StringBuffer buffer = new StringBuffer();
-        int result = LibUsb.getStringDescriptorAscii(deviceHandle, index, buffer);
-        if (result < 0) {
-            return null;
+        try {
+            strings.get(DESCRIPTOR_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            /* Nothing to do; we're closing anyway */
         }
-
-        return buffer.toString();
     }
 
     // -------------------------------------------------------------------------
@@ -427,26 +1211,51 @@ public class DeviceCommunicator {
         try {
             System.out.println("Connecting to serial port: " + portStr);
 
+            serialConfig = SerialConfig.FromLexicon(currentLexicon);
             serialPort = new SerialPort(portStr);
             serialPort.openPort();
-            serialPort.setParams(
-                    57600,
-                    SerialPort.DATABITS_8,
-                    SerialPort.STOPBITS_1,
-                    SerialPort.PARITY_NONE
-            );
+            serialConfig.apply(serialPort);
+            System.out.println("Serial line: " + serialConfig);
+
+            /* Everything the device sends is picked up as it arrives, whether
+             * or not a query is waiting for it */
+            serialReceiver = new SerialReceiver(serialPort, serialConfig.readBufferSize,
+                    FrameDecoder.FromLexicon(currentLexicon), this::onFrame);
+            serialReceiver.setCapture(captureRingFor(serialConfig));
+            serialReceiver.setResync(currentLexicon.path(LexiconStrings.resyncLateAnswers)
+                    .asBoolean(false));
+            serialReceiver.start();
 
             isConnected = true;
             System.out.println("Successfully connected to serial port: " + portStr);
             return true;
 
-        } catch (SerialPortException e) {
+        } catch (SerialPortException | RuntimeException e) {
             System.err.println("Failed to open serial port: " + e.getMessage());
+            /* A port left open would make every later attempt PORT_BUSY */
+            disconnectSerial();
             return false;
         }
     }
 
+    private CaptureRing captureRingFor(SerialConfig config) {
+        CaptureRing ring = serialCapture;
+        if (ring != null && ring.getPolicy() == config.capturePolicy &&
+                ring.capacity() >= config.captureBufferSize) {
+            return ring;
+        }
+        if (ring != null) {
+            ring.close();
+        }
+        serialCapture = new CaptureRing(config.captureBufferSize, config.capturePolicy);
+        return serialCapture;
+    }
+
     private void disconnectSerial() {
+        if (serialReceiver != null) {
+            serialReceiver.stop();
+            serialReceiver = null;
+        }
         if (serialPort != null) {
             try {
                 if (serialPort.isOpened()) {
@@ -461,42 +1270,276 @@ public class DeviceCommunicator {
         }
     }
 
-    private void sendSerialCommand(byte[] data) {
+    private CompletableFuture<?> sendSerialCommand(byte[] data, JsonNode command) {
+        CompletableFuture<byte[]> response = null;
+        if (isQueryCommand(command)) {
+            response = expectCorrelated(data, command, SERIAL_RESPONSE_TIMEOUT_MS);
+            if (response == null) {
+                response = expectSerialResponse(serialTerminator(command),
+                        expectedResponseLength(command));
+            }
+        }
+
         try {
-            serialPort.writeBytes(data);
+            synchronized (outLock) {
+                serialConfig.write(serialPort, data);
+            }
             System.out.println("Sent " + data.length + " bytes to serial port");
 
-            Thread.sleep(100);
-            tryReadSerialResponse();
+            if (response != null) {
+                return response.whenComplete(this::onSerialResponse);
+            }
 
+        } catch (SerialPortException e) {
+            System.err.println("Failed to send serial command: " + e.getMessage());
+            if (response != null) {
+                response.completeExceptionally(e);
+            }
+            supervisor.transportLost(e.getMessage());
         } catch (Exception e) {
             System.err.println("Failed to send serial command: " + e.getMessage());
+            if (response != null) {
+                response.completeExceptionally(e);
+            }
         }
+        return (response != null) ? response : CompletableFuture.completedFuture(null);
     }
 
-    private boolean sendRawSerial(byte[] data) {
+    private CompletableFuture<?> sendRawSerial(byte[] data) {
         try {
-            serialPort.writeBytes(data);
+            synchronized (outLock) {
+                serialConfig.write(serialPort, data);
+            }
             System.out.println("Sent " + data.length + " bytes to serial port");
-            return true;
+            return CompletableFuture.completedFuture(null);
         } catch (SerialPortException e) {
             System.err.println("Failed to send raw serial data: " + e.getMessage());
-            return false;
+            supervisor.transportLost(e.getMessage());
+            return CompletableFuture.failedFuture(e);
         }
     }
 
-    private void tryReadSerialResponse() {
-        if (activePanel == null) {
+    /* The port is handed over to the download before the command goes out,
+     * so none of the dump can be mistaken for anything else. streamLength
+     * is what the device will send, or -1. The returned future yields the
+     * length of the finished file. */
+    private CompletableFuture<Long> downloadSerial(byte[] data, JsonNode command,
+            MappedDownloadSink sink, long streamLength) {
+        CompletableFuture<Long> received = new CompletableFuture<>();
+        streamSerial(data, sink, streamLength, idleTimeoutOf(command), received);
+
+        return received.handle((n, e) -> {
+            if (e != null) {
+                sink.abort();
+                throw new CompletionException(rootCause(e));
+            }
+            try {
+                return sink.finish();
+            } catch (IOException ioe) {
+                throw new CompletionException(ioe);
+            }
+        });
+    }
+
+    private void streamSerial(byte[] data, MappedDownloadSink sink, long streamLength,
+                              long idleMs, CompletableFuture<Long> received) {
+        SerialReceiver receiver = serialReceiver;
+        if (receiver == null) {
+            received.completeExceptionally(new IllegalStateException(ERR_STR_NOT_CONNECTED));
             return;
         }
 
+        receiver.stream(received, sink, streamLength, idleMs);
+        if (received.isDone()) {
+            return;
+        }
         try {
-            String response = serialPort.readString();
-            if (response != null) {
-                activePanel.updateResponse(response.getBytes(StandardCharsets.US_ASCII));
+            synchronized (outLock) {
+                serialConfig.write(serialPort, data);
             }
-        } catch (Exception e) {
-            // Response read failure is non-fatal
+            System.out.println("Downloading to " + sink.getFile());
+        } catch (SerialPortException e) {
+            received.completeExceptionally(e);
+            supervisor.transportLost(e.getMessage());
+        }
+    }
+
+    private MappedDownloadSink openSink(Path file, long startOffset, long expected,
+            ChunkedBulkWriter.ProgressListener listener) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+        return new MappedDownloadSink(file, startOffset, expected, listener);
+    }
+
+    private long idleTimeoutOf(JsonNode command) {
+        return command.path(LexiconStrings.idleTimeoutMs).asLong(DEF_DOWNLOAD_IDLE_MS);
+    }
+
+    /* Registered before the command is written, so the response can't
+     * arrive first. The write itself fails the query if it throws. */
+    private CompletableFuture<byte[]> expectSerialResponse(byte[] terminator,
+                                                           int expectedLength) {
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        SerialReceiver receiver = serialReceiver;
+        if (receiver == null) {
+            response.completeExceptionally(new IllegalStateException(ERR_STR_NOT_CONNECTED));
+        } else {
+            receiver.expect(response, terminator, expectedLength, SERIAL_RESPONSE_TIMEOUT_MS);
+        }
+        return response;
+    }
+
+    private void onSerialResponse(byte[] response, Throwable e) {
+        if (e == null) {
+            System.out.println("Received response: " + bytesToHex(response));
+            deliverResponse(response);
+        } else if (rootCause(e) instanceof TimeoutException) {
+            System.out.println("No response received (timeout)");
+        } else if (!(rootCause(e) instanceof SerialPortException ||
+                rootCause(e) instanceof IOException)) {
+            /* A failed write was reported when it failed, and a closed port
+             * on disconnect is no error */
+            System.err.println("Error reading response: " + rootCause(e).getMessage());
+        }
+    }
+
+    /* A query the lexicon says how to recognise the answer to is matched
+     * by that, wherever its answer falls among the device's output. null
+     * if it should be matched in order instead. */
+    private CompletableFuture<byte[]> expectCorrelated(byte[] data, JsonNode command,
+                                                       long timeoutMs) {
+        ResponseCorrelator c = correlator;
+        return (c != null) ? c.expect(command, data, timeoutMs) : null;
+    }
+
+    /* Output no in-order query was waiting for, from a serial device or a
+     * transport: an answer the correlator recognises, or e.g. a streaming
+     * device's next reading. Readings go to the telemetry sinks, if anyone
+     * is listening, without a copy. Anything else goes to the panel; frame
+     * is the decoder's window, and panels want their own copy. */
+    private void onFrame(ByteBuffer frame) {
+        ResponseCorrelator c = correlator;
+        if (c != null && c.offer(frame)) {
+            return;
+        }
+
+        TelemetryPipeline t = telemetry;
+        if (t != null && t.hasSinks() && t.offer(frame)) {
+            return;
+        }
+
+        byte[] data = new byte[frame.remaining()];
+        frame.get(data);
+        deliverResponse(data);
+    }
+
+    // -------------------------------------------------------------------------
+    // Pluggable Transports (TCP, UDP, ...)
+    // -------------------------------------------------------------------------
+
+    /* Any protocol a TransportProvider claims. portOrPath is the device's
+     * address, e.g. host:port; if there isn't one, the lexicon's "address"
+     * is used. Waits for the transport to open, as the built-in ones do,
+     * but no thread is held once it has. */
+    private boolean connectTransport(String portOrPath) {
+        String protocolName = getLexiconString(LexiconStrings.protocol, "");
+        TransportProvider provider = TransportProvider.For(protocolName);
+        if (provider == null) {
+            System.err.println("Unsupported protocol: " + protocolName);
+            return false;
+        }
+
+        String address = (portOrPath != null && !portOrPath.isEmpty())
+                ? portOrPath : getLexiconString(LexiconStrings.address, "");
+        Transport t = provider.create(bufferPool);
+        try {
+            System.out.println("Connecting to " + address);
+            t.open(address, currentLexicon, new TransportWatcher(t)).get();
+
+            transport = t;
+            isConnected = true;
+            System.out.println("Successfully connected to " + t.getAddress() + " " +
+                    t.getCapabilities());
+            return true;
+
+        } catch (ExecutionException e) {
+            System.err.println("Failed to connect: " + rootCause(e).getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        t.close();
+        return false;
+    }
+
+    private void disconnectTransport() {
+        Transport t = transport;
+        transport = null;
+        if (t != null) {
+            String address = t.getAddress();
+            t.close();
+            System.out.println("Closed connection to " + address);
+        }
+    }
+
+    private CompletableFuture<?> sendTransportCommand(byte[] data, JsonNode command) {
+        Transport t = transport;
+        if (t == null) {
+            System.err.println("Failed to send command: " + ERR_STR_NOT_CONNECTED);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        ByteBuffer buffer = bufferPool.acquireFilled(data);
+        CompletableFuture<byte[]> matched = isQueryCommand(command)
+                ? expectCorrelated(data, command, TRANSPORT_RESPONSE_TIMEOUT_MS) : null;
+        CompletableFuture<?> sent;
+        if (matched != null) {
+            t.write(buffer).whenComplete((n, e) -> {
+                bufferPool.release(buffer);
+                if (e != null) {
+                    matched.completeExceptionally(e);
+                }
+            });
+            return matched.whenComplete(this::onTransportResponse);
+        } else if (isQueryCommand(command)) {
+            sent = t.request(buffer, TRANSPORT_RESPONSE_TIMEOUT_MS)
+                    .whenComplete(this::onTransportResponse);
+        } else {
+            sent = t.write(buffer).whenComplete((n, e) -> {
+                if (e == null) {
+                    System.out.println("Sent " + n + " bytes to " + t.getAddress());
+                } else {
+                    System.err.println("Failed to send command: " +
+                            rootCause(e).getMessage());
+                }
+            });
+        }
+        sent.whenComplete((r, e) -> bufferPool.release(buffer));
+        return sent;
+    }
+
+    /* A failure shows up as the connection being lost */
+    private CompletableFuture<?> sendRawTransport(byte[] data) {
+        Transport t = transport;
+        if (t == null) {
+            System.err.println("Failed to send raw data: " + ERR_STR_NOT_CONNECTED);
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException(ERR_STR_NOT_CONNECTED));
+        }
+        ByteBuffer buffer = bufferPool.acquireFilled(data);
+        System.out.println("Queued " + data.length + " bytes to " + t.getAddress());
+        return t.write(buffer).whenComplete((n, e) -> bufferPool.release(buffer));
+    }
+
+    /* Anything but a timeout is the connection going, which is reported
+     * once, by the watcher */
+    private void onTransportResponse(byte[] response, Throwable e) {
+        if (e == null) {
+            System.out.println("Received response: " + bytesToHex(response));
+            deliverResponse(response);
+        } else if (rootCause(e) instanceof TimeoutException) {
+            System.out.println("No response received (timeout)");
         }
     }
 
@@ -536,19 +1579,20 @@ public class DeviceCommunicator {
         }
 
         try {
-            serialPort.writeString("/SRN?\r\n");
-            Thread.sleep(100);
-            tryReadSerialResponse();
+            CompletableFuture<byte[]> response = expectSerialResponse(CRLF, -1);
+            synchronized (outLock) {
+                serialPort.writeString("/SRN?\r\n");
+            }
+            response.whenComplete(this::onSerialResponse);
         } catch (Exception e) {
             System.err.println("Streaming mode error: " + e.getMessage());
         }
         return true;
     }
 
+    /* Used to poll the port for anything that had arrived. The receiver now
+     * delivers it as it arrives, so there is nothing left to do. */
     private boolean handleNullCommand() {
-        if (protocol == Protocol.USB_SERIAL && activePanel != null) {
-            tryReadSerialResponse();
-        }
         return true;
     }
 
@@ -577,6 +1621,10 @@ public class DeviceCommunicator {
                 return Protocol.USB;
             case "USB_SERIAL":
                 return Protocol.USB_SERIAL;
+            case "TCP":
+                return Protocol.TCP;
+            case "UDP":
+                return Protocol.UDP;
             default:
                 return Protocol.UNKNOWN;
         }
@@ -611,6 +1659,56 @@ public class DeviceCommunicator {
         return false;
     }
 
+    /* An explicit "responseLength" wins; otherwise fixed-width response
+     * types imply their own length. -1 means read until a short packet or
+     * terminator. */
+    private int expectedResponseLength(JsonNode command) {
+        if (command.has(LexiconStrings.responseLength)) {
+            return command.get(LexiconStrings.responseLength).asInt(-1);
+        }
+
+        switch (command.path(LexiconStrings.responseType).asText()) {
+            case "uint8":
+                return 1;
+            case "uint16":
+                return 2;
+            case "uint32":
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    /* Text responses on a serial line end with CRLF unless the lexicon says
+     * otherwise. */
+    private byte[] serialTerminator(JsonNode command) {
+        byte[] terminator = responseTerminator(command);
+        if (terminator == null && "text".equals(command.path(LexiconStrings.responseType).asText())) {
+            return CRLF;
+        }
+        return terminator;
+    }
+
+    private byte[] responseTerminator(JsonNode command) {
+        if (!command.has(LexiconStrings.responseTerminator)) {
+            return null;
+        }
+        return command.get(LexiconStrings.responseTerminator).asText()
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private boolean isStreamCommand(JsonNode command) {
+        return "dataStream".equals(command.path(LexiconStrings.responseType).asText());
+    }
+
+    /* downloads/<device>-<yyyyMMdd-HHmmss>.bin under the working directory */
+    private static Path DefaultDownloadPath(String deviceName) {
+        String stamp = java.time.LocalDateTime.now().format(
+                java.time.format.DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        String name = deviceName.replaceAll("[^A-Za-z0-9._-]+", "_");
+        return Paths.get(DOWNLOAD_DIR, name + "-" + stamp + ".bin");
+    }
+
     private JsonNode findCommand(String commandName) {
         if (!currentLexicon.has("commands")) {
             return null;
@@ -658,6 +1756,37 @@ public class DeviceCommunicator {
         return sb.toString().trim();
     }
 
+    private static Throwable rootCause(Throwable t) {
+        while (t.getCause() != null &&
+                (t instanceof CompletionException ||
+                        t instanceof ExecutionException)) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    /* Looks through wrappers such as ChunkedBulkWriter's IOException */
+    private static int usbErrorCode(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof LibUsbException) {
+                return ((LibUsbException) cause).getErrorCode();
+            }
+        }
+        return LibUsb.ERROR_OTHER;
+    }
+
+    /* A device that is gone, or an endpoint that stalled, won't recover by
+     * retrying the transfer; the whole connection has to be rebuilt. */
+    private void checkTransportLoss(Throwable e) {
+        if (e == null) {
+            return;
+        }
+        int code = usbErrorCode(e);
+        if (code == LibUsb.ERROR_NO_DEVICE || code == LibUsb.ERROR_PIPE) {
+            supervisor.transportLost(LibUsb.errorName(code));
+        }
+    }
+
     private String formatHex16(short value) {
         return String.format("0x%04X", value & 0xFFFF);
     }
@@ -682,6 +1811,160 @@ public class DeviceCommunicator {
         }
     }
 
+    /* Moves the checkpoint along with the download. Runs on the receiver's
+     * thread, inside the sink. */
+    private static final class CheckpointingListener
+            implements ChunkedBulkWriter.ProgressListener {
+        private final DownloadCheckpoint checkpoint;
+        private final ChunkedBulkWriter.ProgressListener next;
+        volatile MappedDownloadSink sink;
+
+        CheckpointingListener(DownloadCheckpoint checkpoint,
+                              ChunkedBulkWriter.ProgressListener next) {
+            this.checkpoint = checkpoint;
+            this.next = next;
+        }
+
+        @Override
+        public void onProgress(long bytesSent, long totalBytes) {
+            MappedDownloadSink s = sink;
+            if (s != null) {
+                s.force();
+                checkpoint.advance(bytesSent);
+                try {
+                    checkpoint.save();
+                } catch (IOException e) {
+                    System.err.println("Unable to save download checkpoint: " +
+                            e.getMessage());
+                }
+            }
+            if (next != null) {
+                next.onProgress(bytesSent, totalBytes);
+            }
+        }
+    }
+
+    /* Lets commands through between the chunks of a preemptible USB job.
+     * Each runs to completion at a boundary before the next chunk is staged,
+     * so it can't be split by the job; whatever is left when the job ends
+     * goes back on the OUT chain in order. Commands are small, but the
+     * device has to be able to take one mid-raster, which is why this is
+     * opt-in. */
+    private final class BulkGate implements ChunkedBulkWriter.ChunkGate {
+        /* Guarded by outLock */
+        private final ArrayDeque<Supplier<CompletableFuture<Void>>> urgent =
+                new ArrayDeque<>();
+
+        /* Called with outLock held */
+        void offer(Supplier<CompletableFuture<Void>> op) {
+            urgent.addLast(op);
+        }
+
+        @Override
+        public void atBoundary() throws InterruptedException {
+            while (true) {
+                Supplier<CompletableFuture<Void>> op;
+                synchronized (outLock) {
+                    op = urgent.pollFirst();
+                }
+                if (op == null) {
+                    return;
+                }
+                try {
+                    op.get().get();
+                } catch (ExecutionException e) {
+                    /* Pipe() already passed it on */
+                }
+            }
+        }
+
+        void close() {
+            synchronized (outLock) {
+                if (activeGate == this) {
+                    activeGate = null;
+                }
+                Supplier<CompletableFuture<Void>> op;
+                while ((op = urgent.pollFirst()) != null) {
+                    submitOut(op);
+                }
+            }
+        }
+    }
+
+    private final class SupervisedConnector implements ConnectionSupervisor.Connector {
+        @Override
+        public void teardown() {
+            closeTransport();
+        }
+
+        @Override
+        public boolean reconnect() {
+            synchronized (DeviceCommunicator.this) {
+                return isConnected || openTransport(lastPortOrPath);
+            }
+        }
+    }
+
+    /* Called on the transport's I/O thread. A transport that has since
+     * been replaced is ignored. */
+    private final class TransportWatcher implements Transport.Handler {
+        private final Transport owner;
+
+        TransportWatcher(Transport owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            DeviceCommunicator.this.onFrame(frame);
+        }
+
+        @Override
+        public void onLost(IOException cause) {
+            if (transport == owner && isConnected) {
+                supervisor.transportLost(cause.getMessage());
+            }
+        }
+    }
+
+    /* Unplugging is noticed here before any transfer fails, and replugging
+     * cuts the backoff short. Called on the libusb event thread. */
+    private final class HotplugWatcher implements UsbContext.Listener {
+        @Override
+        public void deviceArrived(Device device, short vid, short pid) {
+            if (protocol == Protocol.USB && isOurs(vid, pid)) {
+                supervisor.attemptNow();
+            }
+        }
+
+        /* Only the unit that is open; an identical one leaving is no loss */
+        @Override
+        public void deviceLeft(Device device, short vid, short pid) {
+            if (protocol == Protocol.USB && isConnected && isOurs(vid, pid) &&
+                    device.equals(usbDevice)) {
+                supervisor.transportLost("device unplugged");
+            }
+        }
+
+        private boolean isOurs(short vid, short pid) {
+            return vid == vendorId && pid == productId;
+        }
+    }
+
+    private static final long DESCRIPTOR_READ_TIMEOUT_MS = 2000;
+    private static final long SERIAL_RESPONSE_TIMEOUT_MS = 1000;
+    private static final long TRANSPORT_RESPONSE_TIMEOUT_MS = 2000;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final long DEF_DOWNLOAD_IDLE_MS = 2000;
+    private static final long DEF_RANGE_LENGTH = 8 * 1024;
+    private static final String DOWNLOAD_DIR = "downloads";
+    private static final ExecutorService DESCRIPTOR_READER =
+            Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "usb-descriptor-reader");
+                t.setDaemon(true);
+                return t;
+            });
+
     private static final String CLASS =
             DeviceCommunicator.class.getSimpleName();
     private static final String ERR_STR_LEXICON_NOT_SET = CLASS + " attempted" +
@@ -690,6 +1973,30 @@ public class DeviceCommunicator {
             "to set the lexicon to null!\n";
     private static final String ERR_STR_PANEL_NULL = CLASS + " attempted to " +
             "to set the CommandPanel to null!\n";
+    private static final String ERR_STR_STREAM_UNAVAILABLE = CLASS + " was " +
+            "asked to stream raw data without a connected USB device.\n";
+    private static final String ERR_STR_NO_USB_DEVICE = CLASS + " was asked " +
+            "for string descriptors without a connected USB device.\n";
+    private static final String ERR_STR_NOT_CONNECTED = CLASS + " disconnected " +
+            "before a queued write could be sent.\n";
+    private static final String ERR_STR_DISCONNECTED = CLASS + " disconnected " +
+            "before a query was answered.\n";
+    private static final String ERR_STR_NO_OUT_ENDPOINT = CLASS + " has no " +
+            "USB output endpoint to write to.\n";
+    private static final String ERR_STR_REPLAY_FULL = CLASS + " was asked to " +
+            "send a command while reconnecting, with the replay queue full.\n";
+    private static final String ERR_STR_NOT_USABLE = CLASS + " was asked to send " +
+            "a command while not connected, or without a lexicon.\n";
+    private static String ErrStrNoSuchCommand(String s) {
+        return String.format("%s was asked to send [%s], which is not a command " +
+                "with a commandCode in the lexicon.\n", CLASS, s);
+    }
+    private static final String ERR_STR_DOWNLOAD_UNAVAILABLE = CLASS + " was " +
+            "asked to download stored data without a connected serial device.\n";
+    private static String ErrStrNotDataStream(String s) {
+        return String.format("%s was asked to download with [%s], which is not " +
+                "a dataStream command in the lexicon.\n", CLASS, s);
+    }
     private static String ErrStrLexiconMissingField(String s) {
         return String.format("%s attempted to access a field [%s] in the " +
                 "lexicon, but was unable to find it.\n", CLASS, s);
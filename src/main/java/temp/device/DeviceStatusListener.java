@@ -0,0 +1,16 @@
+package temp.device;
+
+/* Receives status pushed by the device rather than polled for.
+ *
+ * Both methods are called on the thread that received the report (the libusb
+ * event thread, for USB), so implementations must return quickly and hand any
+ * UI work to the EDT. */
+public interface DeviceStatusListener {
+    /* A lexicon-declared status field changed value. Fields are reported once
+     * when the first report arrives, and afterwards only on change. */
+    void statusChanged(String field, int value);
+
+    /* Every raw report, before decoding. report is only valid for the
+     * duration of the call. */
+    default void statusReport(byte[] report, int length) {}
+}
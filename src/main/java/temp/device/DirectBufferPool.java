@@ -0,0 +1,154 @@
+package temp.device;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Size-classed pool of direct ByteBuffers for the transfer hot path.
+ *
+ * Direct allocation is slow, and the native memory behind a direct buffer is
+ * only returned when the GC gets around to the Java object, so allocating one
+ * per transfer churns native memory at any real command rate. Buffers here are
+ * bucketed by power-of-two capacity; acquire() hands back a buffer of at least
+ * the requested size with position 0 and limit set to exactly that size, and
+ * release() returns it to its bucket. Once the buckets have warmed up, steady
+ * state traffic performs no allocation at all.
+ *
+ * Requests larger than the largest class are allocated exactly and are not
+ * retained on release. Each bucket holds a bounded number of buffers, so a
+ * burst can't pin an unbounded amount of native memory. */
+public final class DirectBufferPool {
+    private static final int MIN_CLASS_SHIFT = 6;   /* 64 B, one FS packet */
+    private static final int MAX_CLASS_SHIFT = 20;  /* 1 MiB */
+    private static final int DEF_BUFFERS_PER_CLASS = 16;
+
+    private final SizeClass[] classes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong oversize = new AtomicLong();
+
+    public DirectBufferPool() {
+        this(DEF_BUFFERS_PER_CLASS);
+    }
+
+    public DirectBufferPool(int buffersPerClass) {
+        if (buffersPerClass < 1) {
+            throw new IllegalArgumentException(ERR_STR_BAD_CLASS_DEPTH);
+        }
+
+        classes = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < classes.length; ++i) {
+            classes[i] = new SizeClass(1 << (MIN_CLASS_SHIFT + i), buffersPerClass);
+        }
+    }
+
+    /* Returns a direct buffer whose limit is exactly size. The buffer must be
+     * handed back through release() once nothing references it any more,
+     * including native code such as an in-flight libusb transfer. */
+    public ByteBuffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException(ERR_STR_NEGATIVE_SIZE);
+        }
+
+        SizeClass sc = classFor(size);
+        if (sc == null) {
+            oversize.incrementAndGet();
+            misses.incrementAndGet();
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        ByteBuffer buffer = sc.pop();
+        if (buffer != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(sc.capacity);
+        }
+
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /* Convenience for the common case of staging a byte[] for an OUT
+     * transfer. The returned buffer is flipped and ready to send. */
+    public ByteBuffer acquireFilled(byte[] data) {
+        ByteBuffer buffer = acquire(data.length);
+        buffer.put(data);
+        buffer.flip();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        SizeClass sc = classFor(buffer.capacity());
+        if (sc != null && sc.capacity == buffer.capacity()) {
+            sc.push(buffer);
+        }
+        /* Anything else is an oversize or foreign buffer; let the GC have it */
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /* Misses caused by requests above the largest size class */
+    public long getOversizeCount() {
+        return oversize.get();
+    }
+
+    public String getStatsString() {
+        long h = hits.get();
+        long m = misses.get();
+        long total = h + m;
+        return String.format("hits: %d, misses: %d (oversize: %d), hit rate: %.1f%%",
+                h, m, oversize.get(), total == 0 ? 0.0 : 100.0 * h / total);
+    }
+
+    private SizeClass classFor(int size) {
+        int shift = (size <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (shift > MAX_CLASS_SHIFT) {
+            return null;
+        }
+        return classes[Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT];
+    }
+
+    /* A fixed-depth stack per class. Synchronized rather than lock-free so
+     * that push and pop never allocate queue nodes. */
+    private static final class SizeClass {
+        final int capacity;
+        private final ByteBuffer[] free;
+        private int count;
+
+        SizeClass(int capacity, int depth) {
+            this.capacity = capacity;
+            this.free = new ByteBuffer[depth];
+        }
+
+        synchronized ByteBuffer pop() {
+            if (count == 0) {
+                return null;
+            }
+            ByteBuffer buffer = free[--count];
+            free[count] = null;
+            return buffer;
+        }
+
+        synchronized void push(ByteBuffer buffer) {
+            if (count < free.length) {
+                free[count++] = buffer;
+            }
+        }
+    }
+
+    private static final String CLASS = DirectBufferPool.class.getSimpleName();
+    private static final String ERR_STR_BAD_CLASS_DEPTH = CLASS + " requires " +
+            "at least one buffer per size class.\n";
+    private static final String ERR_STR_NEGATIVE_SIZE = CLASS + " was asked " +
+            "for a buffer of negative size.\n";
+}
@@ -0,0 +1,188 @@
+package temp.device;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/* How far a device's stored data has been downloaded, so a broken transfer
+ * can pick up where it stopped and a later one can fetch only what's new.
+ *
+ * One checkpoint per device serial number, next to the data file it
+ * describes, under downloads/, in the same key=value format as config.ini:
+ *   downloads/<device>-<serial>.bin   the data, record after record
+ *   downloads/<device>-<serial>.ckpt  this
+ * bytes is always a whole number of records and never runs ahead of what
+ * has been flushed to the data file, so anything past it in the file is
+ * unconfirmed and is overwritten on resume. The checkpoint is replaced
+ * atomically, so a crash leaves the old one or the new one. Deleting both
+ * files starts the device over from nothing. */
+public final class DownloadCheckpoint {
+    private static final String DOWNLOAD_DIR = "downloads";
+    private static final String DATA_EXT = ".bin";
+    private static final String CHECKPOINT_EXT = ".ckpt";
+    private static final String COMMENT_CHAR = "#";
+    private static final String ASSIGNMENT_CHAR = "=";
+
+    private static final String KEY_SERIAL = "serial";
+    private static final String KEY_BYTES = "bytes";
+    private static final String KEY_RECORDS = "records";
+    private static final String KEY_RECORD_LENGTH = "recordLength";
+    private static final String KEY_COMPLETE = "complete";
+    private static final String KEY_LAST_SYNC = "lastSync";
+
+    private final String serial;
+    private final File checkpointFile;
+    private final File dataFile;
+
+    private long bytes;
+    private long records;
+    private int recordLength = 1;
+    private boolean complete;
+    private long lastSync;
+
+    private DownloadCheckpoint(String deviceName, String serial) {
+        String name = (deviceName + "-" + serial).replaceAll("[^A-Za-z0-9._-]", "_");
+        this.serial = serial;
+        this.checkpointFile = new File(DOWNLOAD_DIR, name + CHECKPOINT_EXT);
+        this.dataFile = new File(DOWNLOAD_DIR, name + DATA_EXT);
+    }
+
+    /* The checkpoint for this device, or a fresh one if there is none, it
+     * can't be read, or its data file has gone or been cut short. */
+    public static DownloadCheckpoint Load(String deviceName, String serial) {
+        DownloadCheckpoint c = new DownloadCheckpoint(deviceName, serial);
+        if (!c.checkpointFile.exists()) {
+            return c;
+        }
+
+        String line;
+        try (BufferedReader reader = new BufferedReader(new FileReader(c.checkpointFile))) {
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(COMMENT_CHAR))
+                    continue;
+
+                int split = line.indexOf(ASSIGNMENT_CHAR);
+                if (split == -1) continue;
+
+                String key = line.substring(0, split).trim();
+                String val = line.substring(split + 1).trim();
+
+                switch (key) {
+                    case KEY_BYTES: c.bytes = Long.parseLong(val); break;
+                    case KEY_RECORDS: c.records = Long.parseLong(val); break;
+                    case KEY_RECORD_LENGTH: c.recordLength = Integer.parseInt(val); break;
+                    case KEY_COMPLETE: c.complete = Boolean.parseBoolean(val); break;
+                    case KEY_LAST_SYNC: c.lastSync = Long.parseLong(val); break;
+                }
+            }
+        } catch (Exception e) {
+            System.err.println(CLASS + ": ignoring unreadable checkpoint " +
+                    c.checkpointFile + ": " + e.getMessage());
+            return new DownloadCheckpoint(deviceName, serial);
+        }
+
+        if (c.recordLength <= 0 || !c.dataFile.exists() || c.dataFile.length() < c.bytes) {
+            System.err.println(CLASS + ": " + c.dataFile + " doesn't match its " +
+                    "checkpoint, starting over.");
+            return new DownloadCheckpoint(deviceName, serial);
+        }
+        return c;
+    }
+
+    /* Written to a temporary file and moved into place */
+    public void save() throws IOException {
+        File dir = checkpointFile.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException(ERR_STR_NO_DIR + dir);
+        }
+
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(new FileWriter(tmp))) {
+            out.println(COMMENT_CHAR + " Stored-data download progress for " +
+                    dataFile.getName());
+            out.println(KEY_SERIAL + ASSIGNMENT_CHAR + serial);
+            out.println(KEY_BYTES + ASSIGNMENT_CHAR + bytes);
+            out.println(KEY_RECORDS + ASSIGNMENT_CHAR + records);
+            out.println(KEY_RECORD_LENGTH + ASSIGNMENT_CHAR + recordLength);
+            out.println(KEY_COMPLETE + ASSIGNMENT_CHAR + complete);
+            out.println(KEY_LAST_SYNC + ASSIGNMENT_CHAR + lastSync);
+        }
+        Files.move(tmp.toPath(), checkpointFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Records the download as confirmed up to fileOffset, rounded down to a
+     * whole record. The data up to there must already be flushed. */
+    public void advance(long fileOffset) {
+        records = fileOffset / recordLength;
+        bytes = records * recordLength;
+    }
+
+    /* A download ran to the end; everything up to fileOffset is in. */
+    public void markComplete(long fileOffset) {
+        advance(fileOffset);
+        complete = true;
+        lastSync = System.currentTimeMillis();
+    }
+
+    /* Begins a download from scratch, keeping nothing */
+    public void restart(int recordLength) {
+        this.recordLength = Math.max(1, recordLength);
+        bytes = 0;
+        records = 0;
+        complete = false;
+    }
+
+    /* Begins a download that continues from here */
+    public void reopen() {
+        complete = false;
+    }
+
+    public String getSerial() {
+        return serial;
+    }
+
+    public Path getDataFile() {
+        return dataFile.toPath();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    /* false while a download is unfinished, i.e. there is something to
+     * resume */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /* When the last download finished, in epoch milliseconds, or 0 */
+    public long getLastSync() {
+        return lastSync;
+    }
+
+    @Override
+    public String toString() {
+        return serial + ": " + records + " records (" + bytes + " bytes)" +
+                (complete ? ", complete" : ", incomplete");
+    }
+
+    private static final String CLASS = DownloadCheckpoint.class.getSimpleName();
+    private static final String ERR_STR_NO_DIR = CLASS + " was unable to create " +
+            "the download directory ";
+}
@@ -0,0 +1,132 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/* Measures how long a click waits to be sent while a stored-data download
+ * holds a serial line, through the same CommandQueue the communicator uses.
+ *
+ * The line is modelled, not real: a download job takes as long as its
+ * bytes would at the given baud rate (10 bits a byte), and a click takes
+ * one round trip. A click is queued every clickIntervalMs while the dump
+ * runs, first as one exclusive job, as a device without a "rangeCommand"
+ * is downloaded, then a range at a time, each range an exclusive job
+ * queued once the last is in, as syncStoredData() does. The report gives
+ * the wait from queueing to sending, p50, p99 and max, for each.
+ *
+ *   java -cp mycelium.jar temp.device.DownloadLatencyBenchmark
+ *           [dumpBytes] [rangeBytes] [baud]
+ */
+public final class DownloadLatencyBenchmark {
+    public static final int DEF_DUMP_BYTES = 64 * 1024;
+    public static final int DEF_RANGE_BYTES = 8 * 1024;
+    public static final int DEF_BAUD = 115200;
+    private static final long CLICK_INTERVAL_MS = 100;
+    private static final long ROUND_TRIP_MS = 20;
+    private static final int BITS_PER_BYTE = 10;
+
+    public static final class Result {
+        public final List<Long> waitsMs;
+        public final long downloadMillis;
+
+        Result(List<Long> waitsMs, long downloadMillis) {
+            this.waitsMs = waitsMs;
+            this.downloadMillis = downloadMillis;
+        }
+
+        public long percentile(double p) {
+            if (waitsMs.isEmpty()) {
+                return 0;
+            }
+            int i = (int) Math.ceil(p / 100.0 * waitsMs.size()) - 1;
+            return waitsMs.get(Math.max(0, Math.min(waitsMs.size() - 1, i)));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("download %d ms, %d clicks waited p50 %d ms, p99 %d ms, " +
+                            "max %d ms", downloadMillis, waitsMs.size(), percentile(50),
+                    percentile(99), percentile(100));
+        }
+    }
+
+    private DownloadLatencyBenchmark() {}
+
+    /* rangeBytes <= 0 downloads the dump as one job */
+    public static Result Run(int dumpBytes, int rangeBytes, int baud) throws Exception {
+        CommandQueue queue = new CommandQueue("benchmark", CommandQueue.DEF_CAPACITY,
+                CommandQueue.DEF_AGING_MS,
+                CommandPacer.FromLexicon(new ObjectMapper().createObjectNode()));
+        try {
+            int range = (rangeBytes > 0) ? rangeBytes : dumpBytes;
+            CompletableFuture<Long> downloaded = new CompletableFuture<>();
+            long start = System.currentTimeMillis();
+            NextRange(queue, 0, dumpBytes, range, baud, downloaded);
+
+            List<CommandHandle> clicks = new ArrayList<>();
+            while (!downloaded.isDone()) {
+                CommandHandle click = new CommandHandle("click", Priority.INTERACTIVE);
+                queue.submit(click, () -> Line(ROUND_TRIP_MS));
+                clicks.add(click);
+                Thread.sleep(CLICK_INTERVAL_MS);
+            }
+            long downloadMillis = downloaded.get() - start;
+
+            List<Long> waits = new ArrayList<>();
+            for (CommandHandle click : clicks) {
+                click.getResponse().get();
+                waits.add(TimeUnit.NANOSECONDS.toMillis(click.getQueuedNanos()));
+            }
+            Collections.sort(waits);
+            return new Result(waits, downloadMillis);
+        } finally {
+            queue.close();
+        }
+    }
+
+    /* Queues the range at offset, and the next once it's in */
+    private static void NextRange(CommandQueue queue, int offset, int dumpBytes, int range,
+                                  int baud, CompletableFuture<Long> downloaded) {
+        if (offset >= dumpBytes) {
+            downloaded.complete(System.currentTimeMillis());
+            return;
+        }
+        int n = Math.min(range, dumpBytes - offset);
+        long ms = ROUND_TRIP_MS + n * BITS_PER_BYTE * 1000L / baud;
+
+        CommandHandle job = new CommandHandle("readStoredData", Priority.BULK);
+        queue.submitJob(job, true, () -> Line(ms));
+        job.getResponse().whenComplete((ignored, e) -> {
+            if (e != null) {
+                downloaded.completeExceptionally(e);
+            } else {
+                NextRange(queue, offset + n, dumpBytes, range, baud, downloaded);
+            }
+        });
+    }
+
+    /* Completes once the line has been busy for ms */
+    private static CompletableFuture<?> Line(long ms) {
+        Executor delayed = CompletableFuture.delayedExecutor(ms, TimeUnit.MILLISECONDS);
+        return CompletableFuture.runAsync(() -> {}, delayed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int dumpBytes = (args.length > 0) ? Integer.parseInt(args[0]) : DEF_DUMP_BYTES;
+        int rangeBytes = (args.length > 1) ? Integer.parseInt(args[1]) : DEF_RANGE_BYTES;
+        int baud = (args.length > 2) ? Integer.parseInt(args[2]) : DEF_BAUD;
+
+        System.out.println(String.format("%d B dump at %d baud, a click every %d ms",
+                dumpBytes, baud, CLICK_INTERVAL_MS));
+        System.out.println("one job:           " + Run(dumpBytes, 0, baud));
+        System.out.println(String.format("%6d B ranges:   ", rangeBytes) +
+                Run(dumpBytes, rangeBytes, baud));
+        System.exit(0);
+    }
+}
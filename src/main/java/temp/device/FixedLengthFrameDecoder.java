@@ -0,0 +1,24 @@
+package temp.device;
+
+import java.nio.ByteBuffer;
+
+/* Frames of one fixed size, e.g. binary records from a data dump */
+public final class FixedLengthFrameDecoder extends FrameDecoder {
+    private final int length;
+
+    public FixedLengthFrameDecoder(int length) {
+        super(Math.max(length, DEF_MAX_FRAME_LENGTH));
+        if (length <= 0) {
+            throw new IllegalArgumentException(CLASS + " was given a frame " +
+                    "length of " + length + ".\n");
+        }
+        this.length = length;
+    }
+
+    @Override
+    protected int frameLength(ByteBuffer buf, int start, int avail) {
+        return (avail >= length) ? length : INCOMPLETE;
+    }
+
+    private static final String CLASS = FixedLengthFrameDecoder.class.getSimpleName();
+}
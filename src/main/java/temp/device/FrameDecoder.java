@@ -0,0 +1,167 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/* Splits a byte stream into frames without copying them out.
+ *
+ * Incoming bytes are appended to one buffer owned by the decoder, and each
+ * complete frame is handed to the FrameHandler as a window onto that buffer.
+ * The window is a single ByteBuffer that is reused for every frame, so
+ * decoding allocates nothing per frame and creates no Strings; a handler
+ * that needs to keep a frame must copy it before returning. A partial frame
+ * stays in the buffer until the rest arrives. If the buffer fills without a
+ * complete frame, what it holds can't be framed and is discarded (and
+ * counted) so the decoder can resynchronize.
+ *
+ * Subclasses only have to say how long the frame at a given position is,
+ * and which part of it is payload. Not thread-safe; one decoder per
+ * stream. */
+public abstract class FrameDecoder {
+    public static final int DEF_MAX_FRAME_LENGTH = 64 * 1024;
+
+    /* frameLength() results other than a length */
+    protected static final int INCOMPLETE = -1;
+    protected static final int SKIP_BYTE = -2;
+
+    /* frame is positioned at the payload and only valid during the call */
+    public interface FrameHandler {
+        void onFrame(ByteBuffer frame);
+    }
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer window;
+    private long frames;
+    private long discarded;
+
+    protected FrameDecoder(int maxFrameLength) {
+        buffer = ByteBuffer.allocateDirect(Math.max(16, maxFrameLength));
+        window = buffer.duplicate();
+    }
+
+    /* Builds the decoder described by the lexicon's optional "framing"
+     * block ("serialFraming" in older lexicons), or a CRLF line decoder if
+     * there isn't one:
+     *
+     *   "framing": { "type": "line", "delimiter": "\r\n",
+     *                "stripDelimiter": false }
+     *   "framing": { "type": "fixed", "length": 32 }
+     *   "framing": { "type": "lengthPrefixed", "prefixBytes": 2,
+     *                "bigEndian": true, "lengthIncludesPrefix": false }
+     *
+     * All of them take an optional "maxFrameLength". */
+    public static FrameDecoder FromLexicon(JsonNode lexicon) {
+        JsonNode f = lexicon.has(LexiconStrings.framing)
+                ? lexicon.path(LexiconStrings.framing)
+                : lexicon.path(LexiconStrings.serialFraming);
+        int max = f.path(LexiconStrings.maxFrameLength).asInt(DEF_MAX_FRAME_LENGTH);
+
+        switch (f.path(LexiconStrings.type).asText("line")) {
+            case "fixed":
+                return new FixedLengthFrameDecoder(f.path(LexiconStrings.length).asInt(1));
+            case "lengthPrefixed":
+                return new LengthPrefixedFrameDecoder(
+                        f.path(LexiconStrings.prefixBytes).asInt(2),
+                        f.path(LexiconStrings.bigEndian).asBoolean(true),
+                        f.path(LexiconStrings.lengthIncludesPrefix).asBoolean(false),
+                        max);
+            case "line":
+            default:
+                return new LineFrameDecoder(f.path(LexiconStrings.delimiter)
+                        .asText("\r\n").getBytes(StandardCharsets.US_ASCII),
+                        f.path(LexiconStrings.stripDelimiter).asBoolean(false), max);
+        }
+    }
+
+    /* Appends src and emits every frame that is now complete */
+    public final void decode(byte[] src, int off, int len, FrameHandler handler) {
+        while (len > 0) {
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(src, off, n);
+            off += n;
+            len -= n;
+            drain(handler);
+        }
+    }
+
+    /* As above, consuming src's remaining bytes */
+    public final void decode(ByteBuffer src, FrameHandler handler) {
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), buffer.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            buffer.put(part);
+            src.position(src.position() + n);
+            drain(handler);
+        }
+    }
+
+    /* Drops any partial frame */
+    public void reset() {
+        buffer.clear();
+        onReset();
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /* Bytes thrown away because they couldn't be framed */
+    public long getDiscardedCount() {
+        return discarded;
+    }
+
+    /* Length of the frame starting at start, given avail bytes from there,
+     * INCOMPLETE if it isn't complete yet, or SKIP_BYTE if the byte at start
+     * can't begin a frame and should be dropped. */
+    protected abstract int frameLength(ByteBuffer buf, int start, int avail);
+
+    /* How much of a frame's head and tail aren't payload */
+    protected int headerLength() {
+        return 0;
+    }
+
+    protected int trailerLength() {
+        return 0;
+    }
+
+    /* For decoders that keep scan state for the frame in progress; called
+     * whenever a new frame begins. */
+    protected void onReset() {}
+
+    private void drain(FrameHandler handler) {
+        int end = buffer.position();
+        int start = 0;
+
+        int length;
+        while (start < end && (length = frameLength(buffer, start, end - start)) != INCOMPLETE) {
+            if (length == SKIP_BYTE) {
+                ++discarded;
+                ++start;
+                onReset();
+                continue;
+            }
+            window.limit(start + length - trailerLength()).position(start + headerLength());
+            ++frames;
+            handler.onFrame(window);
+            start += length;
+            onReset();
+        }
+
+        if (start == 0 && end == buffer.capacity()) {
+            /* Full and still no frame: it can never be one */
+            discarded += end;
+            buffer.clear();
+            onReset();
+            return;
+        }
+
+        /* Keep the partial frame at the front for next time */
+        if (start > 0) {
+            buffer.limit(end).position(start);
+            buffer.compact();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package temp.device;
+
+import java.nio.ByteBuffer;
+
+/* Frames that start with their own length, as an unsigned 1-, 2- or 4-byte
+ * integer in either byte order. The length counts the payload only, or the
+ * prefix as well if lengthIncludesPrefix is set. The prefix is left off the
+ * payload. A length that could never fit in maxFrameLength means the stream
+ * is out of step; that byte is skipped and framing resumes at the next. */
+public final class LengthPrefixedFrameDecoder extends FrameDecoder {
+    private final int prefixBytes;
+    private final boolean bigEndian;
+    private final boolean lengthIncludesPrefix;
+    private final int maxFrameLength;
+    private long resyncs;
+
+    public LengthPrefixedFrameDecoder(int prefixBytes, boolean bigEndian,
+                                      boolean lengthIncludesPrefix, int maxFrameLength) {
+        super(maxFrameLength);
+        if (prefixBytes != 1 && prefixBytes != 2 && prefixBytes != 4) {
+            throw new IllegalArgumentException(CLASS + " was given a prefix of " +
+                    prefixBytes + " bytes; only 1, 2 and 4 are supported.\n");
+        }
+        this.prefixBytes = prefixBytes;
+        this.bigEndian = bigEndian;
+        this.lengthIncludesPrefix = lengthIncludesPrefix;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public long getResyncCount() {
+        return resyncs;
+    }
+
+    @Override
+    protected int frameLength(ByteBuffer buf, int start, int avail) {
+        if (avail < prefixBytes) {
+            return INCOMPLETE;
+        }
+
+        long declared = 0;
+        for (int i = 0; i < prefixBytes; ++i) {
+            int b = buf.get(start + (bigEndian ? i : prefixBytes - 1 - i)) & 0xFF;
+            declared = (declared << 8) | b;
+        }
+
+        long total = lengthIncludesPrefix ? declared : declared + prefixBytes;
+        if (total < prefixBytes || total > maxFrameLength) {
+            ++resyncs;
+            return SKIP_BYTE;
+        }
+        return (avail >= total) ? (int) total : INCOMPLETE;
+    }
+
+    @Override
+    protected int headerLength() {
+        return prefixBytes;
+    }
+
+    private static final String CLASS = LengthPrefixedFrameDecoder.class.getSimpleName();
+}
@@ -2,4 +2,110 @@ package temp.device;
 
 public final class LexiconStrings {
     public static final String protocol = "protocol";
+    public static final String deviceName = "deviceName";
+    public static final String vendorId = "vendorId";
+    public static final String productId = "productId";
+
+    /* Optional "bulkTransfer" block, tunes the chunked USB OUT pipeline */
+    public static final String bulkTransfer = "bulkTransfer";
+    public static final String chunkSize = "chunkSize";
+    public static final String maxInFlight = "maxInFlight";
+    public static final String preemptible = "preemptible";
+
+    /* Per-command response framing for multi-packet reads */
+    public static final String responseType = "responseType";
+    public static final String responseLength = "responseLength";
+    public static final String responseTerminator = "responseTerminator";
+
+    /* Per-command, for "dataStream" downloads of a device's stored data */
+    public static final String idleTimeoutMs = "idleTimeoutMs";
+    public static final String recordLength = "recordLength";
+    public static final String resumeCommand = "resumeCommand";
+    public static final String rangeCommand = "rangeCommand";
+    public static final String rangeLength = "rangeLength";
+
+    /* Optional "recordFormat" block, the fields of a downloaded or streamed
+     * record */
+    public static final String recordFormat = "recordFormat";
+    public static final String prefix = "prefix";
+    public static final String dateColumn = "dateColumn";
+    public static final String timeColumn = "timeColumn";
+    public static final String column = "column";
+    public static final String scale = "scale";
+
+    /* Optional "identify" block, how a serial port probe recognises the
+     * device */
+    public static final String identify = "identify";
+    public static final String query = "query";
+    public static final String serialPattern = "serialPattern";
+    public static final String timeoutMs = "timeoutMs";
+
+    /* Optional "pacing" block, device-wide; minIntervalMs and maxInFlight
+     * may also be given per command */
+    public static final String pacing = "pacing";
+    public static final String minIntervalMs = "minIntervalMs";
+    public static final String queueCapacity = "queueCapacity";
+    public static final String agingMs = "agingMs";
+
+    /* Per-command Priority class: "interactive", "periodic" or "bulk" */
+    public static final String priority = "priority";
+
+    /* Optional "statusReport" block, names fields in interrupt IN reports */
+    public static final String statusReport = "statusReport";
+    public static final String fields = "fields";
+
+    /* Optional "usbInterfaces" array, for composite devices */
+    public static final String usbInterfaces = "usbInterfaces";
+    public static final String iface = "interface";
+    public static final String altSetting = "altSetting";
+    public static final String endpoints = "endpoints";
+
+    /* Optional "framing" block, how a device's output is split into frames;
+     * serial lexicons may still call it "serialFraming" */
+    public static final String framing = "framing";
+    public static final String serialFraming = "serialFraming";
+    public static final String type = "type";
+    public static final String delimiter = "delimiter";
+    public static final String stripDelimiter = "stripDelimiter";
+    public static final String length = "length";
+    public static final String prefixBytes = "prefixBytes";
+    public static final String bigEndian = "bigEndian";
+    public static final String lengthIncludesPrefix = "lengthIncludesPrefix";
+    public static final String maxFrameLength = "maxFrameLength";
+
+    /* "serialConfig" block, line settings for USB_SERIAL devices */
+    public static final String serialConfig = "serialConfig";
+    public static final String baudRate = "baudRate";
+    public static final String dataBits = "dataBits";
+    public static final String parity = "parity";
+    public static final String stopBits = "stopBits";
+    public static final String flowControl = "flowControl";
+    public static final String readBufferSize = "readBufferSize";
+    public static final String writeBufferSize = "writeBufferSize";
+    public static final String captureBufferSize = "captureBufferSize";
+    public static final String capturePolicy = "capturePolicy";
+
+    /* Network devices: "address" is host:port, if the hub doesn't give one */
+    public static final String address = "address";
+    public static final String connectTimeoutMs = "connectTimeoutMs";
+
+    /* Optional "datagram" block, for UDP devices */
+    public static final String datagram = "datagram";
+    public static final String localPort = "localPort";
+    public static final String sequenceOffset = "sequenceOffset";
+    public static final String sequenceBytes = "sequenceBytes";
+    public static final String retries = "retries";
+    public static final String retryIntervalMs = "retryIntervalMs";
+
+    /* Optional "responseMatch" block, device-wide or per command, for
+     * answers that don't come back in order */
+    public static final String responseMatch = "responseMatch";
+    public static final String tagOffset = "tagOffset";
+    public static final String tagLength = "tagLength";
+    public static final String pattern = "pattern";
+
+    /* Optional, device-wide: true if the device always answers, in turn,
+     * but may answer after a query has given up; see TcpConnection and
+     * SerialReceiver */
+    public static final String resyncLateAnswers = "resyncLateAnswers";
 }
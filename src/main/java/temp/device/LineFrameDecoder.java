@@ -0,0 +1,55 @@
+package temp.device;
+
+import java.nio.ByteBuffer;
+
+/* Frames that end with a delimiter, such as the CRLF-terminated lines of
+ * the XQ2's text protocol. The delimiter stays on the payload, as the
+ * device sent it, unless stripDelimiter asks for it to be left off (the
+ * lexicon's "stripDelimiter" defaults to false). How far the current line has been searched is remembered, so
+ * a line that arrives a few bytes at a time is only scanned once. */
+public final class LineFrameDecoder extends FrameDecoder {
+    private final byte[] delimiter;
+    private final boolean stripDelimiter;
+    private int scanned;
+
+    public LineFrameDecoder(byte[] delimiter, boolean stripDelimiter, int maxFrameLength) {
+        super(maxFrameLength);
+        if (delimiter == null || delimiter.length == 0) {
+            throw new IllegalArgumentException(ERR_STR_NO_DELIMITER);
+        }
+        this.delimiter = delimiter.clone();
+        this.stripDelimiter = stripDelimiter;
+    }
+
+    @Override
+    protected int frameLength(ByteBuffer buf, int start, int avail) {
+        int last = avail - delimiter.length;
+        outer:
+        for (int i = scanned; i <= last; ++i) {
+            for (int j = 0; j < delimiter.length; ++j) {
+                if (buf.get(start + i + j) != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i + delimiter.length;
+        }
+
+        /* A delimiter may still straddle what has arrived and what hasn't */
+        scanned = Math.max(0, last + 1);
+        return INCOMPLETE;
+    }
+
+    @Override
+    protected int trailerLength() {
+        return stripDelimiter ? delimiter.length : 0;
+    }
+
+    @Override
+    protected void onReset() {
+        scanned = 0;
+    }
+
+    private static final String CLASS = LineFrameDecoder.class.getSimpleName();
+    private static final String ERR_STR_NO_DELIMITER = CLASS + " was given an " +
+            "empty delimiter.\n";
+}
@@ -0,0 +1,226 @@
+package temp.device;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* Writes a download straight into a memory-mapped file as it arrives.
+ *
+ * The file is mapped a window at a time and grown by a window whenever the
+ * current one fills, so the heap holds nothing but the mapping itself
+ * however large the download gets, and each write is a copy into the page
+ * cache rather than a system call. The file can be opened and read by
+ * anyone while the download is running: everything before
+ * getBytesWritten() (which the progress listener is also told) is final,
+ * and the rest of the last window reads as zeros. finish() trims the file
+ * to what was actually received.
+ *
+ * A sink can also pick up an earlier file part way through (startOffset),
+ * for resuming a download, and can be told to drop the first bytes it is
+ * given (setSkip), for a device that can only send from the beginning.
+ *
+ * Single writer; the receiver's event thread in practice. */
+public final class MappedDownloadSink implements SerialReceiver.StreamTarget {
+    public static final int DEF_WINDOW_SIZE = 16 << 20;
+    /* Progress is reported at most this often, in bytes */
+    public static final int DEF_PROGRESS_STEP = 64 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int windowSize;
+    private final long expectedLength;
+    private final ChunkedBulkWriter.ProgressListener listener;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long written;
+    private long skip;
+    private long lastReported;
+    private boolean closed;
+
+    /* expectedLength is only used for progress and may be -1. listener
+     * may be null. Any existing file is replaced. */
+    public MappedDownloadSink(Path file, long expectedLength,
+                              ChunkedBulkWriter.ProgressListener listener) throws IOException {
+        this(file, 0, expectedLength, DEF_WINDOW_SIZE, listener);
+    }
+
+    /* Keeps the first startOffset bytes of an existing file and writes on
+     * from there; anything after them is discarded. Progress counts from
+     * the start of the file. */
+    public MappedDownloadSink(Path file, long startOffset, long expectedLength,
+                              ChunkedBulkWriter.ProgressListener listener) throws IOException {
+        this(file, startOffset, expectedLength, DEF_WINDOW_SIZE, listener);
+    }
+
+    public MappedDownloadSink(Path file, long startOffset, long expectedLength,
+                              int windowSize,
+                              ChunkedBulkWriter.ProgressListener listener) throws IOException {
+        this.file = file;
+        this.expectedLength = expectedLength;
+        this.windowSize = Math.max(4096, windowSize);
+        this.listener = listener;
+        this.channel = (startOffset > 0)
+                ? FileChannel.open(file, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+        if (startOffset > 0) {
+            channel.truncate(startOffset);
+        }
+        this.windowStart = Math.min(startOffset, channel.size());
+        this.written = windowStart;
+        this.lastReported = windowStart;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public synchronized long getBytesWritten() {
+        return written;
+    }
+
+    /* The next n bytes given to the sink are dropped */
+    public synchronized void setSkip(long n) {
+        skip = Math.max(0, n);
+    }
+
+    /* Makes everything written so far durable; a checkpoint taken after
+     * this can trust getBytesWritten(). */
+    public synchronized void force() {
+        if (window != null && !closed) {
+            window.force();
+        }
+    }
+
+    @Override
+    public synchronized void onBytes(byte[] data, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException(ERR_STR_CLOSED);
+        }
+        if (skip > 0) {
+            int n = (int) Math.min(len, skip);
+            skip -= n;
+            off += n;
+            len -= n;
+        }
+
+        while (len > 0) {
+            if (window == null || !window.hasRemaining()) {
+                nextWindow();
+            }
+            int n = Math.min(len, window.remaining());
+            window.put(data, off, n);
+            off += n;
+            len -= n;
+            written += n;
+        }
+
+        if (listener != null && written - lastReported >= DEF_PROGRESS_STEP) {
+            lastReported = written;
+            listener.onProgress(written, expectedLength);
+        }
+    }
+
+    /* Flushes, trims the file to the bytes received and closes it. Returns
+     * the length of the file. */
+    public synchronized long finish() throws IOException {
+        if (closed) {
+            return written;
+        }
+        closed = true;
+
+        try {
+            if (window != null) {
+                window.force();
+                Unmap(window);
+                window = null;
+            }
+            channel.truncate(written);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+
+        if (listener != null && written != lastReported) {
+            listener.onProgress(written, expectedLength);
+        }
+        return written;
+    }
+
+    /* Closes without the final flush; what was written so far stays. */
+    public synchronized void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (window != null) {
+            Unmap(window);
+            window = null;
+        }
+        try {
+            channel.truncate(written);
+        } catch (IOException e) {
+            /* Left padded to the window; getBytesWritten() has the length */
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            /* Nothing more to do */
+        }
+    }
+
+    private void nextWindow() throws IOException {
+        if (window != null) {
+            window.force();
+            windowStart += window.capacity();
+            Unmap(window);
+        }
+        window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, windowSize);
+    }
+
+    /* A mapping normally lives until the buffer is collected, and on Windows
+     * a file can't be trimmed while any part of it is mapped, so windows
+     * are released as soon as they are done with. Where the JDK doesn't
+     * allow that, they are left to the collector. */
+    private static void Unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            /* Left to the collector */
+        }
+    }
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            invokeCleaner = c.getMethod("invokeCleaner", java.nio.ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private static final String CLASS = MappedDownloadSink.class.getSimpleName();
+    private static final String ERR_STR_CLOSED = CLASS + " was written to after it " +
+            "was closed.\n";
+}
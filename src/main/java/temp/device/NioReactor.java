@@ -0,0 +1,113 @@
+package temp.device;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/* One selector thread for every network connection in the process.
+ *
+ * Network devices are mostly idle, so a thread each would be hundreds of
+ * threads doing nothing; instead every channel is registered here and the
+ * one thread calls its Handler whenever it is ready. Handlers run on that
+ * thread and must never block. Anything that touches a selection key from
+ * another thread (changing interest, registering, closing) goes through
+ * execute(), which runs it on the selector thread before the next select.
+ *
+ * The shared reactor is started on first use and runs as a daemon for the
+ * rest of the session, like the USB event thread. */
+public final class NioReactor {
+    public interface Handler {
+        /* key.readyOps() says what is ready */
+        void onReady(SelectionKey key);
+    }
+
+    private static NioReactor shared;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    private NioReactor(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static synchronized NioReactor Shared() throws IOException {
+        if (shared == null) {
+            shared = new NioReactor("nio-reactor");
+        }
+        return shared;
+    }
+
+    public boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /* Runs task on the selector thread: now, if already on it */
+    public void execute(Runnable task) {
+        if (inReactorThread()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /* Must be called on the selector thread (i.e. from execute()) */
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+            throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    public int getConnectionCount() {
+        return selector.keys().size();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println(CLASS + ": select failed: " + e.getMessage());
+                continue;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                runSafely(task);
+            }
+
+            Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+            while (ready.hasNext()) {
+                SelectionKey key = ready.next();
+                ready.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                try {
+                    ((Handler) key.attachment()).onReady(key);
+                } catch (RuntimeException e) {
+                    System.err.println(CLASS + ": handler failed: " + e);
+                }
+            }
+        }
+    }
+
+    /* One connection's bug mustn't take down everyone else's */
+    private static void runSafely(Runnable r) {
+        try {
+            r.run();
+        } catch (RuntimeException e) {
+            System.err.println(CLASS + ": handler failed: " + e);
+        }
+    }
+
+    private static final String CLASS = NioReactor.class.getSimpleName();
+}
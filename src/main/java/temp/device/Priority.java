@@ -0,0 +1,26 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/* How urgently a request should reach the device; see CommandQueue.
+ *
+ * INTERACTIVE is someone waiting on a click. PERIODIC is polling nobody is
+ * watching closely. BULK is a job measured in seconds: a print job, a label
+ * batch, a stored-data download. A command may say which it is in the
+ * lexicon, "priority": "periodic"; otherwise data streams are BULK and
+ * everything else INTERACTIVE. */
+public enum Priority {
+    INTERACTIVE,
+    PERIODIC,
+    BULK;
+
+    public static Priority FromLexicon(JsonNode command, Priority def) {
+        String s = command.path(LexiconStrings.priority).asText("");
+        for (Priority p : values()) {
+            if (p.name().equalsIgnoreCase(s)) {
+                return p;
+            }
+        }
+        return def;
+    }
+}
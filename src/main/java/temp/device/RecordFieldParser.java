@@ -0,0 +1,202 @@
+package temp.device;
+
+import java.nio.ByteBuffer;
+
+/* Parses one line of a device's text records in place, straight from the
+ * bytes: no Strings, no boxing and nothing allocated per record, which is
+ * what makes parsing hundreds of megabytes cheap enough to be bounded by
+ * memory bandwidth rather than the collector.
+ *
+ * parse() splits the line at the schema's delimiter and leaves the result
+ * here until the next call; the values are then read by field. Not
+ * thread-safe; one parser per thread. */
+public final class RecordFieldParser {
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    private final RecordSchema schema;
+    private final int[] starts;
+    private final int[] ends;
+    private ByteBuffer line;
+    private int found;
+
+    public RecordFieldParser(RecordSchema schema) {
+        this.schema = schema;
+        this.starts = new int[schema.columnCount()];
+        this.ends = new int[schema.columnCount()];
+    }
+
+    public RecordSchema getSchema() {
+        return schema;
+    }
+
+    /* Splits buf[from, to), without its line ending. Returns false if it
+     * isn't a record: the wrong prefix, or too few columns. */
+    public boolean parse(ByteBuffer buf, int from, int to) {
+        byte[] prefix = schema.prefix();
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (buf.get(from + i) != prefix[i]) {
+                return false;
+            }
+        }
+
+        line = buf;
+        byte delimiter = schema.delimiter();
+        int column = 0;
+        int start = from;
+        for (int i = from; i < to && column < starts.length; ++i) {
+            if (buf.get(i) == delimiter) {
+                starts[column] = start;
+                ends[column++] = i;
+                start = i + 1;
+            }
+        }
+        if (column < starts.length) {
+            starts[column] = start;
+            ends[column++] = to;
+        }
+        found = column;
+        return found == starts.length;
+    }
+
+    /* The field's value, scaled, or NaN if it isn't a number */
+    public double getValue(int field) {
+        int c = schema.column(field);
+        return ParseDouble(line, starts[c], ends[c]) * schema.scale(field);
+    }
+
+    /* Epoch milliseconds (UTC) from the date and time columns, or
+     * Long.MIN_VALUE if the schema has none or they don't parse. */
+    public long getTimestamp() {
+        int d = schema.dateColumn();
+        int t = schema.timeColumn();
+        if (d < 0 || t < 0) {
+            return Long.MIN_VALUE;
+        }
+        long days = ParseDate(line, starts[d], ends[d]);
+        long millis = ParseTime(line, starts[t], ends[t]);
+        if (days == Long.MIN_VALUE || millis == Long.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        return days * 86_400_000L + millis;
+    }
+
+    /* Copies the parsed line into record */
+    public void fill(SampleRecord record) {
+        record.setTimestamp(getTimestamp());
+        for (int i = 0; i < schema.getFieldCount(); ++i) {
+            record.set(i, getValue(i));
+        }
+    }
+
+    /* A plain decimal, with optional sign, point and surrounding spaces. Up
+     * to 18 significant digits are exact; more are dropped. */
+    public static double ParseDouble(ByteBuffer b, int from, int to) {
+        while (from < to && b.get(from) == ' ') ++from;
+        while (to > from && b.get(to - 1) == ' ') --to;
+        if (from == to) {
+            return Double.NaN;
+        }
+
+        boolean negative = false;
+        byte c = b.get(from);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            ++from;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = -1;
+        int dropped = 0;
+        for (int i = from; i < to; ++i) {
+            c = b.get(i);
+            if (c >= '0' && c <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) ++digits;
+                    if (fraction >= 0) ++fraction;
+                } else if (fraction < 0) {
+                    ++dropped;
+                }
+            } else if (c == '.' && fraction < 0) {
+                fraction = 0;
+            } else {
+                return Double.NaN;
+            }
+        }
+
+        double value = mantissa;
+        if (fraction > 0) {
+            value /= POW10[fraction];
+        } else if (dropped > 0) {
+            value *= Math.pow(10, dropped);
+        }
+        return negative ? -value : value;
+    }
+
+    /* Days since 1970-01-01 from yyyy/MM/dd or yyyy-MM-dd */
+    public static long ParseDate(ByteBuffer b, int from, int to) {
+        if (to - from != 10) {
+            return Long.MIN_VALUE;
+        }
+        int y = Digits(b, from, 4);
+        int m = Digits(b, from + 5, 2);
+        int d = Digits(b, from + 8, 2);
+        if (y < 0 || m < 1 || m > 12 || d < 1 || d > 31) {
+            return Long.MIN_VALUE;
+        }
+        return DaysFromCivil(y, m, d);
+    }
+
+    /* Milliseconds since midnight from HH:mm:ss or HH:mm:ss.fff */
+    public static long ParseTime(ByteBuffer b, int from, int to) {
+        if (to - from < 8) {
+            return Long.MIN_VALUE;
+        }
+        int h = Digits(b, from, 2);
+        int m = Digits(b, from + 3, 2);
+        int s = Digits(b, from + 6, 2);
+        if (h < 0 || m < 0 || s < 0) {
+            return Long.MIN_VALUE;
+        }
+        long ms = 0;
+        if (to - from > 9 && b.get(from + 8) == '.') {
+            int n = Math.min(3, to - from - 9);
+            int f = Digits(b, from + 9, n);
+            if (f < 0) {
+                return Long.MIN_VALUE;
+            }
+            ms = (long) (f * POW10[3 - n]);
+        }
+        return ((h * 60L + m) * 60L + s) * 1000L + ms;
+    }
+
+    private static int Digits(ByteBuffer b, int from, int n) {
+        int v = 0;
+        for (int i = from; i < from + n; ++i) {
+            int c = b.get(i) - '0';
+            if (c < 0 || c > 9) {
+                return -1;
+            }
+            v = v * 10 + c;
+        }
+        return v;
+    }
+
+    /* Proleptic Gregorian date to days since the epoch, without going
+     * through java.time and the objects it would create per record */
+    private static long DaysFromCivil(int y, int m, int d) {
+        y -= (m <= 2) ? 1 : 0;
+        long era = Math.floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153L * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+}
@@ -0,0 +1,136 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/* The layout of a device's text records, as declared by the lexicon's
+ * optional "recordFormat" block:
+ *
+ *   "recordFormat": {
+ *     "prefix": "XQ",          lines that don't start with it are skipped
+ *     "delimiter": ",",
+ *     "dateColumn": 5,         yyyy/MM/dd (or with - between)
+ *     "timeColumn": 6,         HH:mm:ss, optionally with .fff
+ *     "fields": [
+ *       { "name": "pressure",    "column": 1 },
+ *       { "name": "temperature", "column": 2, "scale": 0.01 }
+ *     ]
+ *   }
+ *
+ * Columns count from 0. Every field is read as a decimal number and
+ * multiplied by its "scale" (default 1); the date and time together give
+ * the record's timestamp, in UTC. Records are one per line. */
+public final class RecordSchema {
+    private final byte[] prefix;
+    private final byte delimiter;
+    private final int dateColumn;
+    private final int timeColumn;
+    private final String[] names;
+    private final int[] columns;
+    private final double[] scales;
+    private final int columnCount;
+
+    public RecordSchema(String prefix, char delimiter, int dateColumn, int timeColumn,
+                        String[] names, int[] columns, double[] scales) {
+        this.prefix = prefix.getBytes(StandardCharsets.US_ASCII);
+        this.delimiter = (byte) delimiter;
+        this.dateColumn = dateColumn;
+        this.timeColumn = timeColumn;
+        this.names = names.clone();
+        this.columns = columns.clone();
+        this.scales = scales.clone();
+
+        int max = Math.max(dateColumn, timeColumn);
+        for (int c : columns) {
+            max = Math.max(max, c);
+        }
+        this.columnCount = max + 1;
+    }
+
+    /* Returns null if the lexicon doesn't declare a record format */
+    public static RecordSchema FromLexicon(JsonNode lexicon) {
+        JsonNode f = lexicon.path(LexiconStrings.recordFormat);
+        if (f.isMissingNode()) {
+            return null;
+        }
+
+        List<String> names = new ArrayList<>();
+        List<Integer> columns = new ArrayList<>();
+        List<Double> scales = new ArrayList<>();
+        for (JsonNode field : f.path(LexiconStrings.fields)) {
+            if (!field.has("name") || !field.has(LexiconStrings.column)) {
+                System.err.println(CLASS + ": ignoring record field without " +
+                        "name or column: " + field);
+                continue;
+            }
+            names.add(field.get("name").asText());
+            columns.add(field.get(LexiconStrings.column).asInt());
+            scales.add(field.path(LexiconStrings.scale).asDouble(1.0));
+        }
+
+        String delimiter = f.path(LexiconStrings.delimiter).asText(",");
+        return new RecordSchema(f.path(LexiconStrings.prefix).asText(""),
+                delimiter.isEmpty() ? ',' : delimiter.charAt(0),
+                f.path(LexiconStrings.dateColumn).asInt(-1),
+                f.path(LexiconStrings.timeColumn).asInt(-1),
+                names.toArray(new String[0]),
+                columns.stream().mapToInt(Integer::intValue).toArray(),
+                scales.stream().mapToDouble(Double::doubleValue).toArray());
+    }
+
+    public int getFieldCount() {
+        return names.length;
+    }
+
+    public String getFieldName(int field) {
+        return names[field];
+    }
+
+    public String[] getFieldNames() {
+        return names.clone();
+    }
+
+    /* Index of the named field, or -1 */
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    byte[] prefix() {
+        return prefix;
+    }
+
+    byte delimiter() {
+        return delimiter;
+    }
+
+    int dateColumn() {
+        return dateColumn;
+    }
+
+    int timeColumn() {
+        return timeColumn;
+    }
+
+    int column(int field) {
+        return columns[field];
+    }
+
+    double scale(int field) {
+        return scales[field];
+    }
+
+    /* How many delimited columns a record has to be split into */
+    int columnCount() {
+        return columnCount;
+    }
+
+    private static final String CLASS = RecordSchema.class.getSimpleName();
+}
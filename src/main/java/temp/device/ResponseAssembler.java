@@ -0,0 +1,195 @@
+package temp.device;
+
+import java.nio.ByteBuffer;
+
+/* Collects the pieces of one response into a single growable pooled buffer
+ * and decides when the response is complete.
+ *
+ * It doesn't care where the bytes come from: UsbResponseReader feeds it from
+ * reads it issues itself, and the full-duplex receive path feeds it from the
+ * continuous reader. A response is complete when
+ *   - a piece ends a USB transfer short (endOfTransfer);
+ *   - the expected length, if declared, has been collected;
+ *   - the terminator, if declared, has been collected; or
+ *   - maxLength has been reached.
+ * Not thread-safe; each assembler belongs to one response in progress. */
+final class ResponseAssembler {
+    private final DirectBufferPool pool;
+    private final int expectedLength;
+    private final byte[] terminator;
+    private final int maxLength;
+
+    private ByteBuffer buffer;
+    private int filled;
+    private boolean complete;
+
+    ResponseAssembler(DirectBufferPool pool, int expectedLength, byte[] terminator,
+                      int maxLength, int initialCapacity) {
+        this.pool = pool;
+        this.expectedLength = expectedLength;
+        this.terminator = (terminator != null && terminator.length > 0) ? terminator : null;
+        this.maxLength = maxLength;
+        this.buffer = pool.acquire(Math.max(1, initialCapacity));
+        this.buffer.limit(buffer.capacity());
+    }
+
+    int getFilled() {
+        return filled;
+    }
+
+    int getExpectedLength() {
+        return expectedLength;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    /* Copies data's remaining bytes in, up to maxLength. Returns true once the
+     * response is complete; anything past the end of a fixed-length or
+     * terminated response is left in data for the caller. */
+    boolean append(ByteBuffer data, boolean endOfTransfer) {
+        int prev = filled;
+        int n = Math.min(data.remaining(), maxLength - filled);
+
+        /* Stop at the declared length or terminator, whichever comes first */
+        if (expectedLength > 0) {
+            n = Math.min(n, expectedLength - filled);
+        }
+        if (terminator != null) {
+            int end = findTerminatorEnd(data, n, prev);
+            if (end >= 0) {
+                n = end;
+            }
+        }
+
+        ensureCapacity(filled + n);
+        ByteBuffer slice = data.duplicate();
+        slice.limit(slice.position() + n);
+        buffer.position(filled);
+        buffer.put(slice);
+        data.position(data.position() + n);
+        filled += n;
+
+        complete = (endOfTransfer && !data.hasRemaining())
+                || (expectedLength > 0 && filled >= expectedLength)
+                || (terminator != null && n > 0 && endsWithTerminator())
+                || filled >= maxLength;
+        return complete;
+    }
+
+    /* Marks the response complete with whatever has arrived so far */
+    void forceComplete() {
+        complete = true;
+    }
+
+    /* Hands the collected bytes over as a flipped pooled buffer. The caller
+     * must release() it. The assembler must not be used afterwards. */
+    ByteBuffer take() {
+        ByteBuffer out = buffer;
+        buffer = null;
+        out.limit(filled).position(0);
+        return out;
+    }
+
+    /* Releases the buffer without handing it over, e.g. on failure */
+    void discard() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /* Returns how many of data's next n bytes, counted from its position,
+     * end with the first occurrence of the terminator (taking into account
+     * a partial match already collected), or -1 if it doesn't occur. */
+    private int findTerminatorEnd(ByteBuffer data, int n, int collected) {
+        int t = terminator.length;
+        int start = data.position();
+
+        /* Candidate end positions, as counts into the combined stream */
+        for (int end = Math.max(1, t - collected); end <= n; ++end) {
+            boolean match = true;
+            for (int j = 0; j < t && match; ++j) {
+                int streamIdx = collected + end - t + j;
+                byte b = (streamIdx < collected)
+                        ? buffer.get(streamIdx)
+                        : data.get(start + streamIdx - collected);
+                match = (b == terminator[j]);
+            }
+            if (match) {
+                return end;
+            }
+        }
+        return -1;
+    }
+
+    private boolean endsWithTerminator() {
+        int t = terminator.length;
+        if (filled < t) {
+            return false;
+        }
+        for (int j = 0; j < t; ++j) {
+            if (buffer.get(filled - t + j) != terminator[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Reserves room for needed bytes, moving to a bigger pooled buffer when
+     * necessary. Also used by UsbResponseReader to read directly in place. */
+    ByteBuffer reserve(int additional) {
+        ensureCapacity(filled + additional);
+        buffer.limit(filled + additional).position(filled);
+        return buffer;
+    }
+
+    /* Accounts for n bytes read directly into the buffer returned by
+     * reserve(). Returns true once the response is complete. */
+    boolean commit(int n, boolean endOfTransfer) {
+        int prev = filled;
+        filled += n;
+        complete = endOfTransfer
+                || (expectedLength > 0 && filled >= expectedLength)
+                || (terminator != null && containsTerminatorSince(prev))
+                || filled >= maxLength;
+        if (filled > maxLength) {
+            filled = maxLength;
+        }
+        return complete;
+    }
+
+    private boolean containsTerminatorSince(int prevFilled) {
+        int t = terminator.length;
+        int from = Math.max(0, prevFilled - t + 1);
+        outer:
+        for (int i = from; i <= filled - t; ++i) {
+            for (int j = 0; j < t; ++j) {
+                if (buffer.get(i + j) != terminator[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (buffer.capacity() >= needed) {
+            return;
+        }
+
+        int newCapacity = buffer.capacity();
+        while (newCapacity < needed) {
+            newCapacity <<= 1;
+        }
+
+        ByteBuffer grown = pool.acquire(newCapacity);
+        grown.limit(grown.capacity());
+        buffer.limit(filled).position(0);
+        grown.put(buffer);
+        pool.release(buffer);
+        buffer = grown;
+    }
+}
@@ -0,0 +1,211 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/* Matches answers to queries by what they say rather than when they come,
+ * for devices that answer out of order or mix answers with other output.
+ * The lexicon says how, for the whole device or for one command:
+ *
+ *   "responseMatch": { "tagOffset": 1, "tagLength": 2 }
+ *       the answer carries the query's bytes [1, 3) at the same place
+ *   "commands": [ { "name": "getMemoryUsage",
+ *                   "responseMatch": { "pattern": "^MEM " }, ... } ]
+ *       the answer, read as ASCII, contains a match for the regex
+ *
+ * A command's own responseMatch wins over the device's. Queries without
+ * either are left to the transport, which matches them in order.
+ *
+ * Every frame a device sends is offered here first; it goes to the oldest
+ * outstanding query it matches, if any, and otherwise on to whoever gets
+ * unsolicited output. A device's queries should all be matched one way or
+ * all the other, since an in-order query takes the next frame whatever it
+ * says. */
+public final class ResponseCorrelator {
+    private final Match deviceMatch;
+    private final Map<String, Match> perCommand;
+
+    /* Guarded by this */
+    private final List<Outstanding> outstanding = new ArrayList<>();
+
+    private volatile long matched;
+
+    private ResponseCorrelator(Match deviceMatch, Map<String, Match> perCommand) {
+        this.deviceMatch = deviceMatch;
+        this.perCommand = perCommand;
+    }
+
+    /* Returns null if the lexicon doesn't declare any responseMatch */
+    public static ResponseCorrelator FromLexicon(JsonNode lexicon) {
+        Match device = Match.From(lexicon.path(LexiconStrings.responseMatch));
+        Map<String, Match> perCommand = new HashMap<>();
+        for (JsonNode command : lexicon.path("commands")) {
+            Match m = Match.From(command.path(LexiconStrings.responseMatch));
+            if (m != null && command.has("name")) {
+                perCommand.put(command.get("name").asText(), m);
+            }
+        }
+        return (device != null || !perCommand.isEmpty())
+                ? new ResponseCorrelator(device, perCommand) : null;
+    }
+
+    /* Registers a query about to be sent as sent, and returns its answer,
+     * or null if its answer isn't matched here. Call before sending. */
+    public CompletableFuture<byte[]> expect(JsonNode command, byte[] sent, long timeoutMs) {
+        Match m = perCommand.getOrDefault(command.path("name").asText(""), deviceMatch);
+        if (m == null || (m.pattern == null && sent.length < m.tagOffset + m.tagLength)) {
+            return null;
+        }
+
+        Outstanding o = new Outstanding(m, sent);
+        synchronized (this) {
+            outstanding.add(o);
+        }
+        CompletableFuture.delayedExecutor(timeoutMs, TimeUnit.MILLISECONDS).execute(() -> {
+            boolean removed;
+            synchronized (this) {
+                removed = outstanding.remove(o);
+            }
+            if (removed) {
+                o.result.completeExceptionally(new TimeoutException("No response"));
+            }
+        });
+        return o.result;
+    }
+
+    /* Completes the oldest query frame answers and returns true, or returns
+     * false with frame untouched */
+    public boolean offer(ByteBuffer frame) {
+        Outstanding found = null;
+        synchronized (this) {
+            if (outstanding.isEmpty()) {
+                return false;
+            }
+            String text = null;
+            for (Iterator<Outstanding> it = outstanding.iterator(); it.hasNext(); ) {
+                Outstanding o = it.next();
+                boolean hit;
+                if (o.match.pattern != null) {
+                    if (text == null) {
+                        text = Ascii(frame);
+                    }
+                    hit = o.match.pattern.matcher(text).find();
+                } else {
+                    hit = o.tagMatches(frame);
+                }
+                if (hit) {
+                    it.remove();
+                    found = o;
+                    break;
+                }
+            }
+        }
+        if (found == null) {
+            return false;
+        }
+
+        byte[] answer = new byte[frame.remaining()];
+        frame.get(answer);
+        ++matched;
+        found.result.complete(answer);
+        return true;
+    }
+
+    /* Fails everything outstanding, e.g. on disconnect */
+    public void clear(Throwable cause) {
+        List<Outstanding> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(outstanding);
+            outstanding.clear();
+        }
+        for (Outstanding o : dropped) {
+            o.result.completeExceptionally(cause);
+        }
+    }
+
+    public synchronized int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    public long getMatchedCount() {
+        return matched;
+    }
+
+    private static String Ascii(ByteBuffer frame) {
+        byte[] b = new byte[frame.remaining()];
+        frame.duplicate().get(b);
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+
+    private static final class Match {
+        final int tagOffset;
+        final int tagLength;
+        final Pattern pattern;
+
+        Match(int tagOffset, int tagLength, Pattern pattern) {
+            this.tagOffset = tagOffset;
+            this.tagLength = tagLength;
+            this.pattern = pattern;
+        }
+
+        static Match From(JsonNode node) {
+            if (node.has(LexiconStrings.pattern)) {
+                try {
+                    return new Match(0, 0,
+                            Pattern.compile(node.get(LexiconStrings.pattern).asText()));
+                } catch (PatternSyntaxException e) {
+                    System.err.println(ErrStrBadPattern(e.getMessage()));
+                    return null;
+                }
+            }
+            if (node.has(LexiconStrings.tagOffset)) {
+                int offset = node.get(LexiconStrings.tagOffset).asInt();
+                int length = node.path(LexiconStrings.tagLength).asInt(1);
+                return (offset >= 0 && length > 0) ? new Match(offset, length, null) : null;
+            }
+            return null;
+        }
+    }
+
+    private static final class Outstanding {
+        final Match match;
+        final byte[] sent;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        Outstanding(Match match, byte[] sent) {
+            this.match = match;
+            this.sent = sent;
+        }
+
+        boolean tagMatches(ByteBuffer frame) {
+            int at = frame.position() + match.tagOffset;
+            if (frame.limit() - at < match.tagLength) {
+                return false;
+            }
+            for (int i = 0; i < match.tagLength; ++i) {
+                if (frame.get(at + i) != sent[match.tagOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final String CLASS = ResponseCorrelator.class.getSimpleName();
+    private static String ErrStrBadPattern(String s) {
+        return String.format("%s ignored a responseMatch pattern it could not " +
+                "compile: %s\n", CLASS, s);
+    }
+}
@@ -0,0 +1,196 @@
+package temp.device;
+
+import java.util.Arrays;
+
+/* Records stored column by column: one long[] of timestamps and one
+ * double[] per field, grown as needed. Nothing per record is an object, so
+ * millions of records cost the collector a handful of arrays. Also a
+ * telemetry sink, for recording a stream. Not thread-safe. */
+public final class SampleColumns implements TelemetryPipeline.SampleSink {
+    private static final int DEF_INITIAL_CAPACITY = 1024;
+
+    private final RecordSchema schema;
+    private long[] timestamps;
+    private double[][] values;
+    private int size;
+
+    public SampleColumns(RecordSchema schema) {
+        this(schema, DEF_INITIAL_CAPACITY);
+    }
+
+    public SampleColumns(RecordSchema schema, int capacity) {
+        this.schema = schema;
+        capacity = Math.max(16, capacity);
+        this.timestamps = new long[capacity];
+        this.values = new double[schema.getFieldCount()][capacity];
+    }
+
+    public RecordSchema getSchema() {
+        return schema;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTimestamp(int row) {
+        return timestamps[row];
+    }
+
+    public double get(int field, int row) {
+        return values[field][row];
+    }
+
+    /* Copies of the columns, trimmed to size */
+    public long[] getTimestamps() {
+        return Arrays.copyOf(timestamps, size);
+    }
+
+    public double[] getColumn(int field) {
+        return Arrays.copyOf(values[field], size);
+    }
+
+    public void add(SampleRecord record) {
+        int row = addRow(record.getTimestamp());
+        for (int f = 0; f < values.length; ++f) {
+            values[f][row] = record.get(f);
+        }
+    }
+
+    @Override
+    public void onSample(SampleRecord sample) {
+        add(sample);
+    }
+
+    /* Straight from a parser, without a record in between */
+    public void add(RecordFieldParser parser) {
+        int row = addRow(parser.getTimestamp());
+        for (int f = 0; f < values.length; ++f) {
+            values[f][row] = parser.getValue(f);
+        }
+    }
+
+    public void get(int row, SampleRecord into) {
+        into.setTimestamp(timestamps[row]);
+        for (int f = 0; f < values.length; ++f) {
+            into.set(f, values[f][row]);
+        }
+    }
+
+    public boolean isSortedByTime() {
+        for (int i = 1; i < size; ++i) {
+            if (timestamps[i] < timestamps[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Stable, so records with the same timestamp keep their order */
+    public void sortByTime() {
+        if (isSortedByTime()) {
+            return;
+        }
+
+        int[] order = new int[size];
+        for (int i = 0; i < size; ++i) {
+            order[i] = i;
+        }
+        MergeSort(order, new int[size], timestamps);
+
+        long[] t = new long[timestamps.length];
+        for (int i = 0; i < size; ++i) {
+            t[i] = timestamps[order[i]];
+        }
+        timestamps = t;
+        for (int f = 0; f < values.length; ++f) {
+            double[] column = new double[values[f].length];
+            for (int i = 0; i < size; ++i) {
+                column[i] = values[f][order[i]];
+            }
+            values[f] = column;
+        }
+    }
+
+    /* Merges two time-sorted sets of records into a new one; on equal
+     * timestamps a's come first. */
+    public static SampleColumns Merge(SampleColumns a, SampleColumns b) {
+        if (b.size == 0) {
+            return a;
+        }
+        if (a.size == 0) {
+            return b;
+        }
+
+        SampleColumns out = new SampleColumns(a.schema, a.size + b.size);
+        int fields = a.values.length;
+
+        /* The common case: b carries straight on from a */
+        if (a.timestamps[a.size - 1] <= b.timestamps[0]) {
+            System.arraycopy(a.timestamps, 0, out.timestamps, 0, a.size);
+            System.arraycopy(b.timestamps, 0, out.timestamps, a.size, b.size);
+            for (int f = 0; f < fields; ++f) {
+                System.arraycopy(a.values[f], 0, out.values[f], 0, a.size);
+                System.arraycopy(b.values[f], 0, out.values[f], a.size, b.size);
+            }
+            out.size = a.size + b.size;
+            return out;
+        }
+
+        int i = 0, j = 0, k = 0;
+        while (i < a.size || j < b.size) {
+            SampleColumns src;
+            int row;
+            if (j >= b.size || (i < a.size && a.timestamps[i] <= b.timestamps[j])) {
+                src = a;
+                row = i++;
+            } else {
+                src = b;
+                row = j++;
+            }
+            out.timestamps[k] = src.timestamps[row];
+            for (int f = 0; f < fields; ++f) {
+                out.values[f][k] = src.values[f][row];
+            }
+            ++k;
+        }
+        out.size = k;
+        return out;
+    }
+
+    private int addRow(long timestamp) {
+        if (size == timestamps.length) {
+            int capacity = timestamps.length * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            for (int f = 0; f < values.length; ++f) {
+                values[f] = Arrays.copyOf(values[f], capacity);
+            }
+        }
+        timestamps[size] = timestamp;
+        return size++;
+    }
+
+    /* Bottom-up merge sort of row indices by key */
+    private static void MergeSort(int[] order, int[] scratch, long[] keys) {
+        int n = order.length;
+        int[] src = order, dst = scratch;
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    dst[k++] = (keys[src[i]] <= keys[src[j]]) ? src[i++] : src[j++];
+                }
+                while (i < mid) dst[k++] = src[i++];
+                while (j < hi) dst[k++] = src[j++];
+            }
+            int[] t = src;
+            src = dst;
+            dst = t;
+        }
+        if (src != order) {
+            System.arraycopy(src, 0, order, 0, n);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package temp.device;
+
+/* One record: a timestamp and a value per schema field, in primitives. It
+ * is meant to be filled over and over (see RecordFieldParser.fill), so a
+ * record stream costs one of these rather than one per record; anything
+ * that keeps a record past the call that handed it over must copy it. */
+public final class SampleRecord {
+    private final RecordSchema schema;
+    private final double[] values;
+    private long timestamp = Long.MIN_VALUE;
+
+    public SampleRecord(RecordSchema schema) {
+        this.schema = schema;
+        this.values = new double[schema.getFieldCount()];
+    }
+
+    public RecordSchema getSchema() {
+        return schema;
+    }
+
+    /* Epoch milliseconds (UTC), or Long.MIN_VALUE if the record has none */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public double get(int field) {
+        return values[field];
+    }
+
+    public void set(int field, double value) {
+        values[field] = value;
+    }
+
+    public void copyFrom(SampleRecord other) {
+        timestamp = other.timestamp;
+        System.arraycopy(other.values, 0, values, 0, values.length);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append(timestamp);
+        for (int i = 0; i < values.length; ++i) {
+            sb.append(' ').append(schema.getFieldName(i)).append('=').append(values[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,198 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import jssc.SerialPort;
+import jssc.SerialPortException;
+
+/* Line settings from the lexicon's "serialConfig" block:
+ *
+ *   "serialConfig": {
+ *     "baudRate": 921600,
+ *     "dataBits": 8,
+ *     "parity": "NONE",          NONE, ODD, EVEN, MARK or SPACE
+ *     "stopBits": 1,             1, 1.5 or 2
+ *     "flowControl": "RTS_CTS",  NONE, RTS_CTS or XON_XOFF
+ *     "readBufferSize": 262144,
+ *     "writeBufferSize": 4096,
+ *     "captureBufferSize": 16777216,
+ *     "capturePolicy": "OVERWRITE"  OVERWRITE or BLOCK, see CaptureRing
+ *   }
+ *
+ * Anything missing takes the value the communicators used to hard-code
+ * (57600 8N1, no flow control). A value that can't be used is reported and
+ * replaced by its default, rather than failing the connect.
+ *
+ * jssc has no call for sizing the driver's own buffers, so the two buffer
+ * sizes apply to ours instead: readBufferSize is the receive ring, which
+ * is what has to absorb a burst while the decoder catches up, and
+ * writeBufferSize is the most handed to the driver in one write, so a large
+ * upload can be paced by flow control a piece at a time instead of queuing
+ * all of it in the driver. */
+public final class SerialConfig {
+    public static final int DEF_BAUD_RATE = 57600;
+    public static final int DEF_WRITE_BUFFER_SIZE = 4096;
+
+    public final int baudRate;
+    public final int dataBits;
+    public final int stopBits;
+    public final int parity;
+    public final int flowControl;
+    public final int readBufferSize;
+    public final int writeBufferSize;
+    public final int captureBufferSize;
+    public final CaptureRing.Policy capturePolicy;
+
+    public SerialConfig(int baudRate, int dataBits, int stopBits, int parity,
+                        int flowControl, int readBufferSize, int writeBufferSize,
+                        int captureBufferSize, CaptureRing.Policy capturePolicy) {
+        this.baudRate = baudRate;
+        this.dataBits = dataBits;
+        this.stopBits = stopBits;
+        this.parity = parity;
+        this.flowControl = flowControl;
+        this.readBufferSize = readBufferSize;
+        this.writeBufferSize = writeBufferSize;
+        this.captureBufferSize = captureBufferSize;
+        this.capturePolicy = capturePolicy;
+    }
+
+    public static SerialConfig FromLexicon(JsonNode lexicon) {
+        JsonNode c = lexicon.path(LexiconStrings.serialConfig);
+
+        int baud = c.path(LexiconStrings.baudRate).asInt(DEF_BAUD_RATE);
+        if (baud <= 0) {
+            System.err.println(ErrStrBadValue(LexiconStrings.baudRate, c));
+            baud = DEF_BAUD_RATE;
+        }
+
+        int dataBits;
+        switch (c.path(LexiconStrings.dataBits).asInt(8)) {
+            case 5: dataBits = SerialPort.DATABITS_5; break;
+            case 6: dataBits = SerialPort.DATABITS_6; break;
+            case 7: dataBits = SerialPort.DATABITS_7; break;
+            case 8: dataBits = SerialPort.DATABITS_8; break;
+            default:
+                System.err.println(ErrStrBadValue(LexiconStrings.dataBits, c));
+                dataBits = SerialPort.DATABITS_8;
+        }
+
+        int stopBits;
+        switch (c.path(LexiconStrings.stopBits).asText("1")) {
+            case "1": stopBits = SerialPort.STOPBITS_1; break;
+            case "1.5": stopBits = SerialPort.STOPBITS_1_5; break;
+            case "2": stopBits = SerialPort.STOPBITS_2; break;
+            default:
+                System.err.println(ErrStrBadValue(LexiconStrings.stopBits, c));
+                stopBits = SerialPort.STOPBITS_1;
+        }
+
+        int parity;
+        switch (c.path(LexiconStrings.parity).asText("NONE").toUpperCase()) {
+            case "NONE": parity = SerialPort.PARITY_NONE; break;
+            case "ODD": parity = SerialPort.PARITY_ODD; break;
+            case "EVEN": parity = SerialPort.PARITY_EVEN; break;
+            case "MARK": parity = SerialPort.PARITY_MARK; break;
+            case "SPACE": parity = SerialPort.PARITY_SPACE; break;
+            default:
+                System.err.println(ErrStrBadValue(LexiconStrings.parity, c));
+                parity = SerialPort.PARITY_NONE;
+        }
+
+        int flow;
+        switch (c.path(LexiconStrings.flowControl).asText("NONE").toUpperCase()) {
+            case "NONE":
+                flow = SerialPort.FLOWCONTROL_NONE;
+                break;
+            case "RTS_CTS":
+                flow = SerialPort.FLOWCONTROL_RTSCTS_IN | SerialPort.FLOWCONTROL_RTSCTS_OUT;
+                break;
+            case "XON_XOFF":
+                flow = SerialPort.FLOWCONTROL_XONXOFF_IN | SerialPort.FLOWCONTROL_XONXOFF_OUT;
+                break;
+            default:
+                System.err.println(ErrStrBadValue(LexiconStrings.flowControl, c));
+                flow = SerialPort.FLOWCONTROL_NONE;
+        }
+
+        int readBuffer = c.path(LexiconStrings.readBufferSize)
+                .asInt(SerialReceiver.DEF_RING_CAPACITY);
+        int writeBuffer = c.path(LexiconStrings.writeBufferSize)
+                .asInt(DEF_WRITE_BUFFER_SIZE);
+        if (readBuffer <= 0) {
+            System.err.println(ErrStrBadValue(LexiconStrings.readBufferSize, c));
+            readBuffer = SerialReceiver.DEF_RING_CAPACITY;
+        }
+        if (writeBuffer <= 0) {
+            System.err.println(ErrStrBadValue(LexiconStrings.writeBufferSize, c));
+            writeBuffer = DEF_WRITE_BUFFER_SIZE;
+        }
+
+        int captureBuffer = c.path(LexiconStrings.captureBufferSize)
+                .asInt(CaptureRing.DEF_CAPACITY);
+        if (captureBuffer <= 0) {
+            System.err.println(ErrStrBadValue(LexiconStrings.captureBufferSize, c));
+            captureBuffer = CaptureRing.DEF_CAPACITY;
+        }
+
+        CaptureRing.Policy capturePolicy;
+        try {
+            capturePolicy = CaptureRing.Policy.valueOf(c.path(LexiconStrings.capturePolicy)
+                    .asText(CaptureRing.Policy.OVERWRITE.name()).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println(ErrStrBadValue(LexiconStrings.capturePolicy, c));
+            capturePolicy = CaptureRing.Policy.OVERWRITE;
+        }
+
+        return new SerialConfig(baud, dataBits, stopBits, parity, flow,
+                readBuffer, writeBuffer, captureBuffer, capturePolicy);
+    }
+
+    /* Sets the line up on an open port. With RTS/CTS the driver owns RTS,
+     * so it isn't forced high here. */
+    public void apply(SerialPort port) throws SerialPortException {
+        boolean hardwareFlow = (flowControl & SerialPort.FLOWCONTROL_RTSCTS_IN) != 0;
+        port.setParams(baudRate, dataBits, stopBits, parity, !hardwareFlow, true);
+        port.setFlowControlMode(flowControl);
+    }
+
+    /* Writes data in pieces of at most writeBufferSize */
+    public void write(SerialPort port, byte[] data) throws SerialPortException {
+        if (data.length <= writeBufferSize) {
+            port.writeBytes(data);
+            return;
+        }
+        byte[] piece = new byte[writeBufferSize];
+        for (int off = 0; off < data.length; off += writeBufferSize) {
+            int n = Math.min(writeBufferSize, data.length - off);
+            if (n != piece.length) {
+                piece = new byte[n];
+            }
+            System.arraycopy(data, off, piece, 0, n);
+            port.writeBytes(piece);
+        }
+    }
+
+    /* Bits on the wire per byte: start, data, parity if any, and stop */
+    public double bitsPerFrame() {
+        double stop = (stopBits == SerialPort.STOPBITS_1_5) ? 1.5 : stopBits;
+        return 1 + dataBits + ((parity != SerialPort.PARITY_NONE) ? 1 : 0) + stop;
+    }
+
+    @Override
+    public String toString() {
+        String flow = (flowControl == SerialPort.FLOWCONTROL_NONE) ? "none"
+                : (flowControl & SerialPort.FLOWCONTROL_RTSCTS_IN) != 0 ? "RTS/CTS"
+                : "XON/XOFF";
+        String par = "NOEMS".substring(parity, parity + 1);
+        String stop = (stopBits == SerialPort.STOPBITS_1_5) ? "1.5"
+                : String.valueOf(stopBits);
+        return baudRate + " " + dataBits + par + stop + ", flow " + flow +
+                ", buffers " + readBufferSize + "/" + writeBufferSize;
+    }
+
+    private static final String CLASS = SerialConfig.class.getSimpleName();
+    private static String ErrStrBadValue(String field, JsonNode config) {
+        return String.format("%s found an unusable [%s] in serialConfig %s, " +
+                "using the default.\n", CLASS, field, config);
+    }
+}
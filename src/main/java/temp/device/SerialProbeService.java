@@ -0,0 +1,224 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import jssc.SerialPort;
+import jssc.SerialPortException;
+import jssc.SerialPortList;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/* Finds out what is on every serial port at once.
+ *
+ * Each port is opened on its own thread, set up from the lexicon's
+ * serialConfig, and sent the lexicon's identification query:
+ *
+ *   "identify": {
+ *     "query": "/SRN?\r\n",          sent as ASCII
+ *     "serialPattern": "([0-9]+)",  group 1 is the serial number, otherwise
+ *                                    the whole reply is
+ *     "timeoutMs": 500
+ *   }
+ *
+ * The answer is the first line that matches serialPattern; lines that
+ * don't, such as a streaming sensor's readings, go by, until the timeout.
+ * Without a pattern the first line is taken, so a lexicon whose device
+ * sends records of its own accord (it has a "recordFormat") must give
+ * one, or it isn't probed. All the probes run
+ * together, and the sweep returns when the last one answers or the deadline
+ * passes, whichever is first, so twenty sensors on a hub take about as long
+ * as one. A port that can't be opened (in use, or not really there) or
+ * doesn't answer in time is reported as such rather than left out. A probe
+ * stuck in a driver call is abandoned, not waited for; its thread is a
+ * daemon and closes the port if the call ever returns. */
+public final class SerialProbeService {
+    public static final long DEF_TIMEOUT_MS = 500;
+    /* Over the timeout, for opening and setting up the port */
+    private static final long OPEN_ALLOWANCE_MS = 500;
+
+    public static final class ProbeResult {
+        public final String port;
+        /* null unless the device answered */
+        public final String serial;
+        public final String reply;
+        /* Why there's no answer, or null */
+        public final String error;
+
+        ProbeResult(String port, String serial, String reply, String error) {
+            this.port = port;
+            this.serial = serial;
+            this.reply = reply;
+            this.error = error;
+        }
+
+        public boolean isIdentified() {
+            return serial != null;
+        }
+
+        @Override
+        public String toString() {
+            return port + ": " + (isIdentified() ? serial : error);
+        }
+    }
+
+    private final SerialConfig config;
+    private final byte[] query;
+    private final Pattern serialPattern;
+    private final long timeoutMs;
+
+    public SerialProbeService(SerialConfig config, String query, Pattern serialPattern,
+                              long timeoutMs) {
+        this.config = config;
+        this.query = query.getBytes(StandardCharsets.US_ASCII);
+        this.serialPattern = serialPattern;
+        this.timeoutMs = Math.max(1, timeoutMs);
+    }
+
+    /* Returns null if the lexicon has no "identify" block, or if its device
+     * streams and the block has no usable serialPattern */
+    public static SerialProbeService FromLexicon(JsonNode lexicon) {
+        JsonNode id = lexicon.path(LexiconStrings.identify);
+        if (!id.hasNonNull(LexiconStrings.query)) {
+            return null;
+        }
+
+        Pattern pattern = null;
+        if (id.hasNonNull(LexiconStrings.serialPattern)) {
+            try {
+                pattern = Pattern.compile(id.get(LexiconStrings.serialPattern).asText());
+            } catch (RuntimeException e) {
+                System.err.println(CLASS + ": ignoring bad serialPattern: " + e.getMessage());
+            }
+        }
+        if (pattern == null && lexicon.has(LexiconStrings.recordFormat)) {
+            /* Its first line could be a reading, not the answer */
+            System.err.println(ERR_STR_NEEDS_PATTERN);
+            return null;
+        }
+        return new SerialProbeService(SerialConfig.FromLexicon(lexicon),
+                id.get(LexiconStrings.query).asText(), pattern,
+                id.path(LexiconStrings.timeoutMs).asLong(DEF_TIMEOUT_MS));
+    }
+
+    /* Every port the system lists */
+    public CompletableFuture<Map<String, ProbeResult>> probeAll() {
+        return probe(SerialPortList.getPortNames());
+    }
+
+    /* The results are in the order the ports were given */
+    public CompletableFuture<Map<String, ProbeResult>> probe(String[] ports) {
+        if (ports.length == 0) {
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        }
+
+        ExecutorService threads = Executors.newFixedThreadPool(ports.length, r -> {
+            Thread t = new Thread(r, "serial-probe");
+            t.setDaemon(true);
+            return t;
+        });
+
+        long deadline = timeoutMs + OPEN_ALLOWANCE_MS;
+        List<CompletableFuture<ProbeResult>> probes = new ArrayList<>(ports.length);
+        for (String port : ports) {
+            probes.add(CompletableFuture.supplyAsync(() -> probeOne(port), threads)
+                    .completeOnTimeout(new ProbeResult(port, null, null, "no response"),
+                            deadline, TimeUnit.MILLISECONDS));
+        }
+        threads.shutdown();
+
+        return CompletableFuture.allOf(probes.toArray(CompletableFuture<?>[]::new))
+                .thenApply(v -> {
+                    Map<String, ProbeResult> results = new LinkedHashMap<>();
+                    for (CompletableFuture<ProbeResult> p : probes) {
+                        ProbeResult r = p.join();
+                        results.put(r.port, r);
+                    }
+                    return results;
+                });
+    }
+
+    /* Runs on a probe thread */
+    private ProbeResult probeOne(String portName) {
+        SerialPort port = new SerialPort(portName);
+        SerialReceiver receiver = null;
+        try {
+            port.openPort();
+            config.apply(port);
+            port.purgePort(SerialPort.PURGE_RXCLEAR | SerialPort.PURGE_TXCLEAR);
+
+            /* Every line is looked at, on the receiver's thread, until one
+             * is the answer */
+            CompletableFuture<ProbeResult> answer = new CompletableFuture<>();
+            AtomicReference<String> last = new AtomicReference<>();
+            receiver = new SerialReceiver(port, SerialReceiver.DEF_RING_CAPACITY,
+                    new LineFrameDecoder(CRLF, true, 256), frame -> {
+                        String line = StandardCharsets.US_ASCII.decode(frame).toString().trim();
+                        if (!line.isEmpty()) {
+                            last.set(line);
+                            ProbeResult r = identify(portName, line);
+                            if (r.isIdentified()) {
+                                answer.complete(r);
+                            }
+                        }
+                    });
+            receiver.start();
+            port.writeBytes(query);
+
+            try {
+                return answer.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                String line = last.get();
+                return (line != null) ? identify(portName, line)
+                        : new ProbeResult(portName, null, null, "no response");
+            }
+
+        } catch (SerialPortException e) {
+            return new ProbeResult(portName, null, null, e.getExceptionType());
+        } catch (Exception e) {
+            return new ProbeResult(portName, null, null, "no response");
+        } finally {
+            if (receiver != null) {
+                receiver.stop();
+            }
+            try {
+                if (port.isOpened()) {
+                    port.closePort();
+                }
+            } catch (SerialPortException e) {
+                /* Nothing more to do */
+            }
+        }
+    }
+
+    private ProbeResult identify(String port, String reply) {
+        if (serialPattern == null) {
+            return reply.isEmpty()
+                    ? new ProbeResult(port, null, reply, "empty reply")
+                    : new ProbeResult(port, reply, reply, null);
+        }
+        Matcher m = serialPattern.matcher(reply);
+        if (!m.find()) {
+            return new ProbeResult(port, null, reply, "unrecognized reply");
+        }
+        return new ProbeResult(port, (m.groupCount() >= 1) ? m.group(1) : m.group(), reply,
+                null);
+    }
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final String CLASS = SerialProbeService.class.getSimpleName();
+    private static final String ERR_STR_NEEDS_PATTERN = CLASS + " can't probe for a " +
+            "device that streams records unless its identify block has a " +
+            "serialPattern.\n";
+}
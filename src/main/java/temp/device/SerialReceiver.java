@@ -0,0 +1,530 @@
+package temp.device;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/* The receive side of a serial port, driven by jssc's RXCHAR events instead
+ * of sleeping and polling.
+ *
+ * Bytes are moved from the port into a ring as soon as the driver reports
+ * them. Queries register what their response looks like before the command
+ * is written, and are completed, oldest first, as soon as the ring holds a
+ * whole frame:
+ *   - expectedLength bytes, if that is known;
+ *   - everything up to and including the terminator, if there is one;
+ *   - otherwise, whatever arrived once the line has been quiet for
+ *     quietMs, since there's nothing else to go on.
+ * A query that sees nothing at all within its timeout fails with a
+ * TimeoutException.
+ *
+ * In order is all there is to go on, so a device that can leave a query
+ * unanswered, or answer out of turn, needs a responseMatch. One that
+ * always answers in turn, but sometimes too slowly, can opt in to resync
+ * with setResync(): once a framed query times out, for as long again as
+ * it waited, the first frame shaped like its answer is taken to be that
+ * and goes to the unsolicited decoder, instead of to the next query with
+ * every answer after it shifted by one. A query passed over like that
+ * owes nothing if it then times out itself, since the frame may have been
+ * its own. Off by default: a query that got no answer at all would cost
+ * the next query its real one.
+ *
+ * Bytes that arrive with no query waiting are split into
+ * frames by the unsolicited decoder and handed over as they complete, so
+ * nothing the device says is lost. When nothing is waiting and nothing is
+ * buffered, which is the steady state of a streaming device, they go
+ * straight from the port to the decoder without passing through the ring.
+ *
+ * A bulk transfer, such as a stored-data dump, can take the port over with
+ * stream(): until it ends, every byte goes to its StreamTarget and nowhere
+ * else. It ends when expectedLength bytes have arrived, if that is known,
+ * or when the line has been quiet for idleMs.
+ *
+ * If a CaptureRing is attached, every byte read is also appended to it,
+ * before any of the above, for recorders and views that want the raw
+ * stream. */
+public final class SerialReceiver implements SerialPortEventListener {
+    public static final int DEF_RING_CAPACITY = 64 * 1024;
+    public static final long DEF_QUIET_MS = 30;
+
+    private final SerialPort port;
+    private final ByteRing ring;
+    private final FrameDecoder decoder;
+    private final FrameDecoder.FrameHandler unsolicited;
+    private final long quietMs;
+    private volatile CaptureRing capture;
+
+    /* Guarded by this */
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private Stream stream;
+    private boolean closed;
+    private boolean resync;
+    /* A query that timed out, whose answer may yet arrive, until lateUntil */
+    private Pending late;
+    private long lateUntil;
+    private long lateCount;
+
+    /* Receives a stream's bytes, on jssc's event thread with the receiver
+     * locked. data is only valid during the call. Throwing ends the
+     * stream with that exception. */
+    public interface StreamTarget {
+        void onBytes(byte[] data, int off, int len) throws IOException;
+    }
+
+    /* unsolicited is called with the receiver locked, on jssc's event
+     * thread or a timer thread, and must not call back into the receiver. */
+    public SerialReceiver(SerialPort port, int ringCapacity, FrameDecoder decoder,
+                          FrameDecoder.FrameHandler unsolicited) {
+        this(port, ringCapacity, DEF_QUIET_MS, decoder, unsolicited);
+    }
+
+    public SerialReceiver(SerialPort port, int ringCapacity, long quietMs,
+                          FrameDecoder decoder, FrameDecoder.FrameHandler unsolicited) {
+        this.port = port;
+        this.ring = new ByteRing(ringCapacity);
+        this.quietMs = quietMs;
+        this.decoder = decoder;
+        this.unsolicited = unsolicited;
+    }
+
+    public void start() throws SerialPortException {
+        port.setEventsMask(SerialPort.MASK_RXCHAR);
+        port.addEventListener(this);
+    }
+
+    /* Stops listening and fails every query still waiting */
+    public void stop() {
+        try {
+            port.removeEventListener();
+        } catch (SerialPortException e) {
+            /* Already gone with the port */
+        }
+
+        List<Pending> dropped;
+        Stream droppedStream;
+        synchronized (this) {
+            closed = true;
+            dropped = new ArrayList<>(pending);
+            pending.clear();
+            droppedStream = stream;
+            stream = null;
+            late = null;
+            ring.clear();
+            decoder.reset();
+        }
+        for (Pending p : dropped) {
+            p.result.completeExceptionally(new IOException(ErrStrClosed(port.getPortName())));
+        }
+        if (droppedStream != null) {
+            droppedStream.result.completeExceptionally(
+                    new IOException(ErrStrClosed(port.getPortName())));
+        }
+    }
+
+    /* Hands the port's input to target until the stream ends; result then
+     * yields the number of bytes it was given. Call before writing the
+     * command that starts the transfer. Fails with a TimeoutException if
+     * nothing at all arrives within idleMs, and with IllegalStateException
+     * if a query or another stream is still waiting, since their bytes
+     * would be taken for the stream's. expectedLength may be -1. */
+    public void stream(CompletableFuture<Long> result, StreamTarget target,
+                       long expectedLength, long idleMs) {
+        Stream s = new Stream(result, target, expectedLength, Math.max(1, idleMs));
+
+        synchronized (this) {
+            if (closed) {
+                result.completeExceptionally(
+                        new IOException(ErrStrClosed(port.getPortName())));
+                return;
+            }
+            if (stream != null || !pending.isEmpty()) {
+                result.completeExceptionally(new IllegalStateException(ERR_STR_BUSY));
+                return;
+            }
+            /* Anything already here belongs to whatever came before */
+            if (ring.available() > 0) {
+                ring.drainTo(decoder, unsolicited);
+            }
+            late = null;
+            stream = s;
+            s.lastActivity = System.currentTimeMillis();
+        }
+        scheduleStreamCheck(s, s.idleMs);
+    }
+
+    /* Registers a query. Call before writing the command, so the response
+     * can't arrive first. terminator may be null and expectedLength -1. */
+    public void expect(CompletableFuture<byte[]> result, byte[] terminator,
+                       int expectedLength, long timeoutMs) {
+        Pending p = new Pending(result, (terminator != null && terminator.length > 0)
+                ? terminator : null, expectedLength, timeoutMs);
+
+        synchronized (this) {
+            if (!closed) {
+                pending.addLast(p);
+                p.lastActivity = System.currentTimeMillis();
+                scheduleExpiry(p, timeoutMs);
+                return;
+            }
+        }
+        result.completeExceptionally(new IOException(ErrStrClosed(port.getPortName())));
+    }
+
+    /* null detaches. Under CaptureRing.Policy.BLOCK a slow capture reader
+     * holds up this receiver, and with it the port. */
+    public void setCapture(CaptureRing capture) {
+        this.capture = capture;
+    }
+
+    public synchronized long getOverrunCount() {
+        return ring.getOverrunCount();
+    }
+
+    /* See above */
+    public synchronized void setResync(boolean resync) {
+        this.resync = resync;
+        if (!resync) {
+            late = null;
+        }
+    }
+
+    /* Frames taken to be late answers, with resync on */
+    public synchronized long getLateCount() {
+        return lateCount;
+    }
+
+    @Override
+    public void serialEvent(SerialPortEvent event) {
+        if (!event.isRXCHAR() || event.getEventValue() <= 0) {
+            return;
+        }
+
+        byte[] data;
+        try {
+            data = port.readBytes();
+        } catch (SerialPortException e) {
+            System.err.println(CLASS + ": read failed: " + e.getMessage());
+            return;
+        }
+        if (data == null) {
+            return;
+        }
+
+        CaptureRing c = capture;
+        if (c != null) {
+            try {
+                c.write(data, 0, data.length);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<Completion> done = null;
+        Stream ended = null;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            int off = 0;
+            if (stream != null) {
+                off = stream.feed(data);
+                if (!stream.isEnded()) {
+                    return;
+                }
+                ended = stream;
+                stream = null;
+            }
+            if (off < data.length) {
+                done = receive(data, off);
+            }
+        }
+
+        if (ended != null) {
+            ended.complete();
+        }
+        if (done != null) {
+            complete(done);
+        }
+    }
+
+    /* data from off on, with no stream in the way. Called with the lock
+     * held; returns the queries to complete once it's released, if any. */
+    private List<Completion> receive(byte[] data, int off) {
+        int len = data.length - off;
+        if (pending.isEmpty() && ring.available() == 0) {
+            /* A late answer, if any, goes this way too */
+            late = null;
+            decoder.decode(data, off, len, unsolicited);
+            return null;
+        }
+
+        List<Completion> done = new ArrayList<>(1);
+        ring.write(data, off, len);
+        long now = System.currentTimeMillis();
+        for (Pending p : pending) {
+            p.lastActivity = now;
+        }
+        route(done);
+        Pending head = pending.peekFirst();
+        if (head == null && ring.available() > 0) {
+            late = null;
+            ring.drainTo(decoder, unsolicited);
+        } else if (head != null && !head.isFramed()) {
+            /* Check back once the line has had a chance to go quiet */
+            scheduleExpiry(head, quietMs);
+        }
+        return done;
+    }
+
+    /* Completes queries, oldest first, for as long as the ring holds a
+     * whole frame for the one at the head. */
+    private void route(List<Completion> done) {
+        dropLate();
+        Pending p;
+        while ((p = pending.peekFirst()) != null) {
+            if (p.result.isDone()) {
+                pending.pollFirst();
+                continue;
+            }
+
+            int frameLength = frameLength(p);
+            if (frameLength < 0) {
+                return;
+            }
+            pending.pollFirst();
+            done.add(new Completion(p, ring.read(frameLength)));
+        }
+    }
+
+    /* Takes a late answer off the front of the ring, if one is owed and
+     * has arrived whole */
+    private void dropLate() {
+        if (late == null) {
+            return;
+        }
+        if (System.currentTimeMillis() > lateUntil) {
+            late = null;
+            return;
+        }
+        int frameLength = frameLength(late);
+        if (frameLength < 0) {
+            return;
+        }
+        late = null;
+        ++lateCount;
+        for (Pending p : pending) {
+            p.passedOver = true;
+        }
+        byte[] frame = ring.read(frameLength);
+        decoder.decode(frame, 0, frame.length, unsolicited);
+    }
+
+    private int frameLength(Pending p) {
+        int avail = ring.available();
+        if (p.expectedLength > 0) {
+            return (avail >= p.expectedLength) ? p.expectedLength : -1;
+        }
+        if (p.terminator != null) {
+            int at = ring.indexOf(p.terminator, 0);
+            return (at >= 0) ? at + p.terminator.length : -1;
+        }
+        return -1;
+    }
+
+    /* Keeps one live check per query: a check is only replaced by one that
+     * is due sooner, and a replaced check does nothing when it fires.
+     * Called with the lock held. */
+    private void scheduleExpiry(Pending p, long delayMs) {
+        delayMs = Math.max(1, delayMs);
+        long due = System.currentTimeMillis() + delayMs;
+        if (due >= p.nextCheck) {
+            return;
+        }
+        p.nextCheck = due;
+        final int seq = ++p.checkSeq;
+
+        Executor delayed = CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS);
+        CompletableFuture.runAsync(() -> expire(p, seq), delayed);
+    }
+
+    /* Runs on a timer thread. An unframed query at the head completes with
+     * what has arrived once the line goes quiet; anything else that has
+     * been idle for its whole timeout completes with what it has, or fails
+     * if that's nothing. */
+    private void expire(Pending p, int seq) {
+        List<Completion> done = new ArrayList<>(1);
+        boolean failed = false;
+
+        synchronized (this) {
+            if (seq != p.checkSeq || p.result.isDone() || !pending.contains(p)) {
+                return;
+            }
+            p.nextCheck = Long.MAX_VALUE;
+
+            boolean head = pending.peekFirst() == p;
+            boolean hasData = head && ring.available() > 0;
+            long limit = (hasData && !p.isFramed()) ? quietMs : p.timeoutMs;
+            long idle = System.currentTimeMillis() - p.lastActivity;
+            if (idle < limit) {
+                scheduleExpiry(p, limit - idle);
+                return;
+            }
+
+            pending.remove(p);
+            if (hasData) {
+                done.add(new Completion(p, ring.read(ring.available())));
+            } else {
+                failed = true;
+                if (resync && p.isFramed() && !p.passedOver) {
+                    late = p;
+                    lateUntil = System.currentTimeMillis() + p.timeoutMs;
+                }
+            }
+            route(done);
+            if (pending.isEmpty() && ring.available() > 0) {
+                late = null;
+                ring.drainTo(decoder, unsolicited);
+            }
+        }
+
+        if (failed) {
+            p.result.completeExceptionally(new TimeoutException("No response"));
+        }
+        complete(done);
+    }
+
+    private void scheduleStreamCheck(Stream s, long delayMs) {
+        Executor delayed = CompletableFuture.delayedExecutor(Math.max(1, delayMs),
+                TimeUnit.MILLISECONDS);
+        CompletableFuture.runAsync(() -> checkStream(s), delayed);
+    }
+
+    /* Runs on a timer thread; one check per stream is live at a time, each
+     * scheduling the next until the line goes quiet. */
+    private void checkStream(Stream s) {
+        synchronized (this) {
+            if (stream != s) {
+                return;
+            }
+            long idle = System.currentTimeMillis() - s.lastActivity;
+            if (idle < s.idleMs) {
+                scheduleStreamCheck(s, s.idleMs - idle);
+                return;
+            }
+            stream = null;
+        }
+        s.complete();
+    }
+
+    /* Outside the lock; dependants run on this thread */
+    private static void complete(List<Completion> done) {
+        for (Completion c : done) {
+            c.pending.result.complete(c.frame);
+        }
+    }
+
+    private static final class Pending {
+        final CompletableFuture<byte[]> result;
+        final byte[] terminator;
+        final int expectedLength;
+        final long timeoutMs;
+        volatile long lastActivity;
+
+        /* The live expiry check; guarded by the receiver */
+        long nextCheck = Long.MAX_VALUE;
+        int checkSeq;
+        /* A frame was taken for a late answer while this waited */
+        boolean passedOver;
+
+        Pending(CompletableFuture<byte[]> result, byte[] terminator,
+                int expectedLength, long timeoutMs) {
+            this.result = result;
+            this.terminator = terminator;
+            this.expectedLength = expectedLength;
+            this.timeoutMs = timeoutMs;
+        }
+
+        boolean isFramed() {
+            return terminator != null || expectedLength > 0;
+        }
+    }
+
+    private static final class Stream {
+        final CompletableFuture<Long> result;
+        final StreamTarget target;
+        final long expectedLength;
+        final long idleMs;
+
+        /* Guarded by the receiver */
+        long received;
+        long lastActivity;
+        IOException error;
+
+        Stream(CompletableFuture<Long> result, StreamTarget target,
+               long expectedLength, long idleMs) {
+            this.result = result;
+            this.target = target;
+            this.expectedLength = expectedLength;
+            this.idleMs = idleMs;
+        }
+
+        /* Passes on as much of data as belongs to the stream and returns
+         * how much that was. */
+        int feed(byte[] data) {
+            int n = data.length;
+            if (expectedLength >= 0) {
+                n = (int) Math.min(n, expectedLength - received);
+            }
+            lastActivity = System.currentTimeMillis();
+            try {
+                target.onBytes(data, 0, n);
+                received += n;
+            } catch (IOException e) {
+                error = e;
+            }
+            return n;
+        }
+
+        boolean isEnded() {
+            return error != null || (expectedLength >= 0 && received >= expectedLength);
+        }
+
+        /* Called once, after the stream has been detached */
+        void complete() {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else if (received == 0) {
+                result.completeExceptionally(new TimeoutException("No data"));
+            } else {
+                result.complete(received);
+            }
+        }
+    }
+
+    private static final class Completion {
+        final Pending pending;
+        final byte[] frame;
+
+        Completion(Pending pending, byte[] frame) {
+            this.pending = pending;
+            this.frame = frame;
+        }
+    }
+
+    private static final String CLASS = SerialReceiver.class.getSimpleName();
+    private static final String ERR_STR_BUSY = CLASS + " can't start a stream " +
+            "while another transfer is still waiting for its response.\n";
+    private static String ErrStrClosed(String portName) {
+        return String.format("%s: port %s is closed.\n", CLASS, portName);
+    }
+}
@@ -0,0 +1,166 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jssc.SerialPort;
+import jssc.SerialPortException;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Measures what a serial link actually sustains with a lexicon's settings.
+ *
+ * Needs something that sends back what it receives: a loopback plug (TX to
+ * RX, and RTS to CTS if flow control is on), or the device simulator in
+ * echo mode. A known pattern is written in writeBufferSize pieces while the
+ * echo is read back through the same event-driven path the communicators
+ * use, and the report gives bytes/sec each way along with any bytes that
+ * came back wrong or not at all. The port must not be open elsewhere.
+ *
+ *   java -cp mycelium.jar temp.device.SerialThroughputTest <port> <lexicon.json> [bytes]
+ */
+public final class SerialThroughputTest {
+    public static final int DEF_TEST_BYTES = 1 << 20;
+    private static final long IDLE_TIMEOUT_MS = 2000;
+
+    public static final class Result {
+        public final long bytesSent;
+        public final long bytesReceived;
+        public final long mismatches;
+        public final long sendMillis;
+        public final long totalMillis;
+
+        Result(long bytesSent, long bytesReceived, long mismatches,
+               long sendMillis, long totalMillis) {
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.mismatches = mismatches;
+            this.sendMillis = sendMillis;
+            this.totalMillis = totalMillis;
+        }
+
+        public double sendBytesPerSec() {
+            return bytesSent * 1000.0 / Math.max(1, sendMillis);
+        }
+
+        /* Round trip: the rate at which the echo came back in full */
+        public double loopBytesPerSec() {
+            return bytesReceived * 1000.0 / Math.max(1, totalMillis);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sent %d B in %d ms (%.0f B/s), received %d B in %d ms " +
+                            "(%.0f B/s), %d mismatched, %d missing",
+                    bytesSent, sendMillis, sendBytesPerSec(), bytesReceived, totalMillis,
+                    loopBytesPerSec(), mismatches, bytesSent - bytesReceived);
+        }
+    }
+
+    private SerialThroughputTest() {}
+
+    public static Result Run(String portName, SerialConfig config, int totalBytes)
+            throws SerialPortException, InterruptedException {
+        SerialPort port = new SerialPort(portName);
+        port.openPort();
+        try {
+            config.apply(port);
+            port.purgePort(SerialPort.PURGE_RXCLEAR | SerialPort.PURGE_TXCLEAR);
+            return Run(port, config, totalBytes);
+        } finally {
+            port.closePort();
+        }
+    }
+
+    private static Result Run(SerialPort port, SerialConfig config, int totalBytes)
+            throws SerialPortException, InterruptedException {
+        AtomicLong received = new AtomicLong();
+        AtomicLong mismatches = new AtomicLong();
+        AtomicLong lastArrival = new AtomicLong(System.currentTimeMillis());
+        Object done = new Object();
+
+        /* Every byte is checked against the pattern as it comes back */
+        FrameDecoder.FrameHandler check = frame -> {
+            long at = received.get();
+            while (frame.hasRemaining()) {
+                if (frame.get() != Pattern(at++)) {
+                    mismatches.incrementAndGet();
+                }
+            }
+            received.set(at);
+            lastArrival.set(System.currentTimeMillis());
+            if (at >= totalBytes) {
+                synchronized (done) {
+                    done.notifyAll();
+                }
+            }
+        };
+
+        /* Frames of one byte would do, but bigger ones cost less per call */
+        SerialReceiver receiver = new SerialReceiver(port, config.readBufferSize,
+                new PassThroughDecoder(), check);
+        receiver.start();
+
+        byte[] data = new byte[totalBytes];
+        for (int i = 0; i < totalBytes; ++i) {
+            data[i] = Pattern(i);
+        }
+
+        try {
+            long start = System.currentTimeMillis();
+            config.write(port, data);
+            long sendMillis = System.currentTimeMillis() - start;
+
+            synchronized (done) {
+                while (received.get() < totalBytes &&
+                        System.currentTimeMillis() - lastArrival.get() < IDLE_TIMEOUT_MS) {
+                    done.wait(100);
+                }
+            }
+            long totalMillis = lastArrival.get() - start;
+
+            return new Result(totalBytes, received.get(), mismatches.get(),
+                    sendMillis, totalMillis);
+        } finally {
+            receiver.stop();
+        }
+    }
+
+    /* Not a repeating byte, so a dropped or duplicated byte shows up */
+    private static byte Pattern(long i) {
+        return (byte) ((i * 31) ^ (i >>> 8));
+    }
+
+    /* Hands on whatever has arrived, as one frame */
+    private static final class PassThroughDecoder extends FrameDecoder {
+        PassThroughDecoder() {
+            super(DEF_MAX_FRAME_LENGTH);
+        }
+
+        @Override
+        protected int frameLength(ByteBuffer buf, int start, int avail) {
+            return avail;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: SerialThroughputTest <port> <lexicon.json> [bytes]");
+            System.exit(2);
+        }
+
+        JsonNode lexicon = new ObjectMapper().readTree(new File(args[1]));
+        SerialConfig config = SerialConfig.FromLexicon(lexicon);
+        int bytes = (args.length > 2) ? Integer.parseInt(args[2]) : DEF_TEST_BYTES;
+
+        System.out.println("Testing " + args[0] + " at " + config);
+        Result r = Run(args[0], config, bytes);
+        System.out.println(r);
+
+        double ceiling = config.baudRate / config.bitsPerFrame();
+        System.out.println(String.format("%.0f%% of the %.0f B/s line rate",
+                100.0 * r.loopBytesPerSec() / ceiling, ceiling));
+        System.exit(r.mismatches == 0 && r.bytesReceived == r.bytesSent ? 0 : 1);
+    }
+}
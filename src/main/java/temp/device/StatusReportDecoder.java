@@ -0,0 +1,102 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Turns raw status reports into named field values, as declared by the
+ * lexicon's optional "statusReport" block:
+ *
+ *   "statusReport": {
+ *     "fields": [
+ *       { "name": "paperOut", "byte": 0, "mask": "0x01" },
+ *       { "name": "busy",     "byte": 0, "mask": "0x02" },
+ *       { "name": "labels",   "byte": 2, "length": 2 }
+ *     ]
+ *   }
+ *
+ * A field is "length" bytes (default 1, up to 4) starting at "byte", read
+ * little-endian, then masked and shifted down by the mask's lowest set bit.
+ * Only changes are reported, so a device that sends the same report every
+ * interval doesn't flood listeners. Not thread-safe; one decoder per reader. */
+public final class StatusReportDecoder {
+    private final Field[] fields;
+    private final int[] lastValues;
+    private boolean primed;
+
+    private StatusReportDecoder(List<Field> fields) {
+        this.fields = fields.toArray(new Field[0]);
+        this.lastValues = new int[this.fields.length];
+    }
+
+    /* Returns a decoder with no fields (raw reports only) if the lexicon
+     * doesn't declare any. */
+    public static StatusReportDecoder FromLexicon(JsonNode lexicon) {
+        List<Field> fields = new ArrayList<>();
+        JsonNode declared = lexicon.path(LexiconStrings.statusReport)
+                .path(LexiconStrings.fields);
+
+        for (JsonNode f : declared) {
+            if (!f.has("name") || !f.has("byte")) {
+                System.err.println(CLASS + ": ignoring status field without " +
+                        "name or byte: " + f);
+                continue;
+            }
+            int length = Math.max(1, Math.min(4, f.path("length").asInt(1)));
+            long mask = f.has("mask")
+                    ? Long.decode(f.get("mask").asText())
+                    : (length == 4 ? 0xFFFFFFFFL : (1L << (8 * length)) - 1);
+            fields.add(new Field(f.get("name").asText(), f.get("byte").asInt(),
+                    length, (int) mask));
+        }
+
+        return new StatusReportDecoder(fields);
+    }
+
+    public int getFieldCount() {
+        return fields.length;
+    }
+
+    /* Decodes one report and tells listener about every field whose value
+     * changed. Fields that lie beyond the end of a short report are left at
+     * their previous value. */
+    public void decode(byte[] report, int length, DeviceStatusListener listener) {
+        for (int i = 0; i < fields.length; ++i) {
+            Field f = fields[i];
+            if (f.offset + f.length > length) {
+                continue;
+            }
+
+            int raw = 0;
+            for (int b = f.length - 1; b >= 0; --b) {
+                raw = (raw << 8) | (report[f.offset + b] & 0xFF);
+            }
+            int value = (raw & f.mask) >>> f.shift;
+
+            if (!primed || value != lastValues[i]) {
+                lastValues[i] = value;
+                listener.statusChanged(f.name, value);
+            }
+        }
+        primed = true;
+    }
+
+    private static final class Field {
+        final String name;
+        final int offset;
+        final int length;
+        final int mask;
+        final int shift;
+
+        Field(String name, int offset, int length, int mask) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.mask = mask;
+            this.shift = (mask == 0) ? 0 : Integer.numberOfTrailingZeros(mask);
+        }
+    }
+
+    private static final String CLASS = StatusReportDecoder.class.getSimpleName();
+}
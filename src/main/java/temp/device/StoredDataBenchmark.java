@@ -0,0 +1,103 @@
+package temp.device;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+/* Measures StoredDataParser on a synthetic dump, at 1, 2, 4... workers up
+ * to the number of cores, so the scaling can be checked on a given machine.
+ *
+ * The dump is XQ2-like: a prefix, seven numeric fields with a date and time
+ * between them, one record per second, in time order except for a few
+ * records written late (as after a clock correction), so the merge has
+ * some real work. Each run is preceded by an untimed one so the JIT and
+ * the page cache are warm.
+ *
+ *   java -cp mycelium.jar temp.device.StoredDataBenchmark [records] [file]
+ */
+public final class StoredDataBenchmark {
+    public static final int DEF_RECORDS = 2_000_000;
+
+    private StoredDataBenchmark() {}
+
+    public static RecordSchema Schema() {
+        return new RecordSchema("XQ", ',', 5, 6,
+                new String[] {"pressure", "temperature", "humidity", "humidityTemp",
+                        "latitude", "longitude", "altitude"},
+                new int[] {1, 2, 3, 4, 7, 8, 9},
+                new double[] {1, 1, 1, 1, 1, 1, 1});
+    }
+
+    /* Writes records lines to file */
+    public static void Generate(Path file, int records) throws IOException {
+        Random random = new Random(42);
+        long t0 = 1_700_000_000_000L;
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            for (int i = 0; i < records; ++i) {
+                long t = t0 + i * 1000L;
+                if (random.nextInt(1000) == 0) {
+                    t -= 60_000L;
+                }
+                java.time.LocalDateTime dt = java.time.LocalDateTime.ofEpochSecond(
+                        t / 1000, 0, java.time.ZoneOffset.UTC);
+                String line = String.format(Locale.ROOT,
+                        "XQ,%+08.2f,%+06.2f,%+05.1f,%+06.2f,%04d/%02d/%02d,%02d:%02d:%02d," +
+                                "%+011.7f,%+012.7f,%+07.1f,%02d\r\n",
+                        1013.25 - i % 500 * 0.1, 20 + random.nextGaussian(),
+                        45 + random.nextDouble() * 10, 21 + random.nextGaussian(),
+                        dt.getYear(), dt.getMonthValue(), dt.getDayOfMonth(),
+                        dt.getHour(), dt.getMinute(), dt.getSecond(),
+                        42.1 + random.nextDouble() * 1e-3, -83.2 + random.nextDouble() * 1e-3,
+                        100 + i % 1000 * 0.5, 8 + random.nextInt(4));
+                out.write(line.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int records = (args.length > 0) ? Integer.parseInt(args[0]) : DEF_RECORDS;
+        Path file = (args.length > 1) ? Path.of(args[1])
+                : Files.createTempFile("stored-data-", ".txt");
+        boolean generated = args.length < 2 || !Files.exists(file);
+
+        if (generated) {
+            System.out.println("Generating " + records + " records in " + file);
+            Generate(file, records);
+        }
+        double megabytes = Files.size(file) / (1024.0 * 1024.0);
+        System.out.println(String.format(Locale.ROOT, "%.1f MB", megabytes));
+
+        RecordSchema schema = Schema();
+        int cores = Runtime.getRuntime().availableProcessors();
+        double baseline = 0;
+        for (int workers = 1; workers <= cores; workers = (workers == cores) ? cores + 1
+                : Math.min(cores, workers * 2)) {
+            StoredDataParser parser = new StoredDataParser(schema, workers);
+            try {
+                parser.parse(file);
+                long start = System.nanoTime();
+                SampleColumns columns = parser.parse(file);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                if (workers == 1) {
+                    baseline = seconds;
+                }
+                System.out.println(String.format(Locale.ROOT,
+                        "%2d workers: %,d records in %.3f s, %.0f MB/s, %.2fx%s",
+                        workers, columns.size(), seconds, megabytes / seconds,
+                        baseline / seconds, columns.isSortedByTime() ? "" : " (NOT SORTED)"));
+            } finally {
+                parser.close();
+            }
+        }
+
+        if (generated && args.length < 2) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
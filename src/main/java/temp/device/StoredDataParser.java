@@ -0,0 +1,166 @@
+package temp.device;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/* Parses a downloaded stored-data dump into columns, on every core.
+ *
+ * The file is split in half, and in half again, until the pieces are
+ * segmentSize or less; each split is moved forward to the next line start,
+ * so no record is ever cut. Every piece is mapped and parsed on its own
+ * fork-join worker with its own RecordFieldParser, and the results are
+ * merged pairwise on the way back up in timestamp order. Pieces share
+ * nothing while parsing, so the work scales with cores until the disk or
+ * memory bandwidth runs out; a dump that is already in time order (the
+ * usual case) merges by plain array copies.
+ *
+ * Lines that aren't records, per the schema, are skipped and counted. */
+public final class StoredDataParser {
+    public static final int DEF_SEGMENT_SIZE = 4 << 20;
+    private static final int BOUNDARY_SCAN = 4096;
+
+    private final RecordSchema schema;
+    private final int segmentSize;
+    private final ForkJoinPool pool;
+    private volatile long skippedLines;
+
+    /* parallelism <= 0 uses the common pool */
+    public StoredDataParser(RecordSchema schema, int parallelism) {
+        this(schema, parallelism, DEF_SEGMENT_SIZE);
+    }
+
+    public StoredDataParser(RecordSchema schema, int parallelism, int segmentSize) {
+        this.schema = schema;
+        this.segmentSize = Math.max(BOUNDARY_SCAN, segmentSize);
+        this.pool = (parallelism > 0) ? new ForkJoinPool(parallelism)
+                : ForkJoinPool.commonPool();
+    }
+
+    public SampleColumns parse(Path file) throws IOException {
+        skippedLines = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Result r = pool.invoke(new Segment(channel, 0, channel.size()));
+            skippedLines = r.skipped;
+            return r.columns;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /* Lines in the last parse that weren't records */
+    public long getSkippedLines() {
+        return skippedLines;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /* Releases the workers, unless they're the common pool's */
+    public void close() {
+        if (pool != ForkJoinPool.commonPool()) {
+            pool.shutdown();
+        }
+    }
+
+    private static final class Result {
+        final SampleColumns columns;
+        final long skipped;
+
+        Result(SampleColumns columns, long skipped) {
+            this.columns = columns;
+            this.skipped = skipped;
+        }
+    }
+
+    private final class Segment extends RecursiveTask<Result> {
+        /* Never serialized; ForkJoinTask just happens to be Serializable */
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        Segment(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Result compute() {
+            try {
+                if (end - start > segmentSize) {
+                    long mid = nextLineStart(start + (end - start) / 2);
+                    if (mid > start && mid < end) {
+                        Segment left = new Segment(channel, start, mid);
+                        Segment right = new Segment(channel, mid, end);
+                        left.fork();
+                        Result r = right.compute();
+                        Result l = left.join();
+                        return new Result(SampleColumns.Merge(l.columns, r.columns),
+                                l.skipped + r.skipped);
+                    }
+                }
+                return parseLines();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /* The first line start at or after pos, or end if there is none */
+        private long nextLineStart(long pos) throws IOException {
+            ByteBuffer scan = ByteBuffer.allocate(BOUNDARY_SCAN);
+            long at = pos - 1;
+            while (at < end) {
+                scan.clear();
+                int n = channel.read(scan, at);
+                if (n <= 0) {
+                    return end;
+                }
+                for (int i = 0; i < n; ++i) {
+                    if (scan.get(i) == '\n') {
+                        return at + i + 1;
+                    }
+                }
+                at += n;
+            }
+            return end;
+        }
+
+        private Result parseLines() throws IOException {
+            int length = (int) (end - start);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            RecordFieldParser parser = new RecordFieldParser(schema);
+            /* A guess from the XQ2's ~100-byte lines; it grows if wrong */
+            SampleColumns columns = new SampleColumns(schema, length / 96);
+            long skipped = 0;
+
+            int lineStart = 0;
+            for (int i = 0; i <= length; ++i) {
+                if (i < length && buf.get(i) != '\n') {
+                    continue;
+                }
+                int lineEnd = (i > lineStart && buf.get(i - 1) == '\r') ? i - 1 : i;
+                if (lineEnd > lineStart) {
+                    if (parser.parse(buf, lineStart, lineEnd)) {
+                        columns.add(parser);
+                    } else {
+                        ++skipped;
+                    }
+                }
+                lineStart = i + 1;
+            }
+
+            columns.sortByTime();
+            return new Result(columns, skipped);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package temp.device;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* One network device, over a non-blocking TCP socket served by the shared
+ * NioReactor, so a hub can hold hundreds of these with no thread of their
+ * own.
+ *
+ * OUT: writes are queued from any thread and written by the reactor, as
+ * many queued buffers at a time as the socket will take (one gathering
+ * write), so a burst of small commands costs one system call rather than
+ * one each. A write's future completes once all of it is in the socket.
+ *
+ * IN: whatever arrives is read into a pooled direct buffer and split into
+ * frames by the decoder, in the reactor thread. A frame answers the oldest
+ * query still waiting for one, if there is one (queries are registered
+ * before their command is written, so they line up); otherwise it is
+ * unsolicited and goes to the Handler, as a window only valid during the
+ * call.
+ *
+ * In order is all there is to go on, so a device that can leave a query
+ * unanswered, or answer out of turn, needs a responseMatch instead. A
+ * device that always answers, in turn, but sometimes too slowly, can opt
+ * in to resync: once a query times out, for as long again as it waited,
+ * the next frame is taken to be its late answer and goes to the Handler,
+ * rather than to the next query and every answer after it shifted by one.
+ * A query passed over like that owes nothing if it then times out itself,
+ * since the frame may have been its own. But a query that got no answer
+ * at all would then cost the next query its real one, which is why resync
+ * is off unless asked for.
+ *
+ * If the device closes the connection or it fails, everything waiting
+ * fails and the Handler is told, once. close() tells nobody. */
+public final class TcpConnection implements NioReactor.Handler {
+    public static final int DEF_READ_BUFFER_SIZE = 64 * 1024;
+    public static final long DEF_CONNECT_TIMEOUT_MS = 3000;
+    private static final int MAX_GATHER = 64;
+
+    private final InetSocketAddress address;
+    private final FrameDecoder decoder;
+    private final DirectBufferPool pool;
+    private final Transport.Handler handler;
+    private final NioReactor reactor;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private final CompletableFuture<Void> opened = new CompletableFuture<>();
+
+    /* OUT: queued by anyone, moved to writing by the reactor */
+    private final ConcurrentLinkedQueue<Write> queued = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ArrayDeque<Write> writing = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    /* IN: guarded by this */
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private final boolean resync;
+    private int late;
+    private long lateUntil;
+    private volatile long lateCount;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+
+    public TcpConnection(InetSocketAddress address, FrameDecoder decoder,
+                         DirectBufferPool pool, Transport.Handler handler) throws IOException {
+        this(address, decoder, pool, handler, false);
+    }
+
+    /* resync: see above */
+    public TcpConnection(InetSocketAddress address, FrameDecoder decoder,
+                         DirectBufferPool pool, Transport.Handler handler,
+                         boolean resync) throws IOException {
+        this.address = address;
+        this.decoder = decoder;
+        this.pool = pool;
+        this.handler = handler;
+        this.resync = resync;
+        this.reactor = NioReactor.Shared();
+    }
+
+    /* "host:port" */
+    public static InetSocketAddress ParseAddress(String s) {
+        int colon = s.lastIndexOf(':');
+        if (colon <= 0 || colon == s.length() - 1) {
+            throw new IllegalArgumentException(ErrStrBadAddress(s));
+        }
+        String host = s.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        try {
+            return new InetSocketAddress(host, Integer.parseInt(s.substring(colon + 1)));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException(ErrStrBadAddress(s));
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /* Completes once connected; fails, and leaves the connection closed, if
+     * that doesn't happen within timeoutMs. */
+    public CompletableFuture<Void> open(long timeoutMs) {
+        reactor.execute(() -> {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                readBuffer = pool.acquire(DEF_READ_BUFFER_SIZE);
+                if (channel.connect(address)) {
+                    key = reactor.register(channel, SelectionKey.OP_READ, this);
+                    opened.complete(null);
+                } else {
+                    key = reactor.register(channel, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e instanceof IOException ? (IOException) e : new IOException(e), false);
+            }
+        });
+
+        CompletableFuture.delayedExecutor(timeoutMs, TimeUnit.MILLISECONDS).execute(() -> {
+            if (!opened.isDone()) {
+                fail(new IOException(ErrStrConnectTimeout(address)), false);
+            }
+        });
+        return opened;
+    }
+
+    public boolean isOpen() {
+        return opened.isDone() && !opened.isCompletedExceptionally() && !closed.get();
+    }
+
+    /* Queues data (its remaining bytes) to be written, and takes it over
+     * until the returned future completes with the number written. */
+    public CompletableFuture<Integer> write(ByteBuffer data) {
+        Write w = new Write(data);
+        if (closed.get()) {
+            w.done.completeExceptionally(new IOException(ERR_STR_CLOSED));
+            return w.done;
+        }
+        queued.add(w);
+        if (flushScheduled.compareAndSet(false, true)) {
+            reactor.execute(this::flush);
+        }
+        return w.done;
+    }
+
+    /* Registers a query: the next frame to arrive with no older query
+     * waiting is its response. Call before writing the command. */
+    public void expect(CompletableFuture<byte[]> result, long timeoutMs) {
+        Pending p = new Pending(result);
+        synchronized (this) {
+            if (!closed.get()) {
+                pending.addLast(p);
+                CompletableFuture.delayedExecutor(timeoutMs, TimeUnit.MILLISECONDS)
+                        .execute(() -> expire(p, timeoutMs));
+                return;
+            }
+        }
+        result.completeExceptionally(new IOException(ERR_STR_CLOSED));
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /* Frames taken to be late answers, with resync on */
+    public long getLateCount() {
+        return lateCount;
+    }
+
+    public void close() {
+        reactor.execute(() -> fail(new IOException(ERR_STR_CLOSED), false));
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                opened.complete(null);
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            fail(e, opened.isDone());
+        }
+    }
+
+    /* Reactor thread */
+    private void read() throws IOException {
+        int n;
+        while ((n = channel.read(readBuffer)) > 0) {
+            bytesIn += n;
+            readBuffer.flip();
+            decoder.decode(readBuffer, this::onFrame);
+            readBuffer.clear();
+        }
+        if (n < 0) {
+            throw new IOException(ErrStrClosedByPeer(address));
+        }
+    }
+
+    private void onFrame(ByteBuffer frame) {
+        Pending p;
+        synchronized (this) {
+            if (late > 0 && System.currentTimeMillis() > lateUntil) {
+                late = 0;
+            }
+            if (late > 0) {
+                --late;
+                ++lateCount;
+                for (Pending q : pending) {
+                    q.passedOver = true;
+                }
+                p = null;
+            } else {
+                p = pending.pollFirst();
+            }
+        }
+        if (p == null) {
+            handler.onFrame(frame);
+            return;
+        }
+        byte[] copy = new byte[frame.remaining()];
+        frame.get(copy);
+        p.result.complete(copy);
+    }
+
+    /* Reactor thread. Writes as much as the socket takes, in one call where
+     * possible, and waits for OP_WRITE only if it took less than all. */
+    private void flush() {
+        flushScheduled.set(false);
+        if (channel == null || !channel.isConnected() || key == null || !key.isValid()) {
+            /* Still connecting; the connect will flush */
+            if (!closed.get() && !opened.isDone()) {
+                opened.thenRun(() -> reactor.execute(this::flush));
+            }
+            return;
+        }
+
+        Write w;
+        while ((w = queued.poll()) != null) {
+            writing.addLast(w);
+        }
+
+        try {
+            while (!writing.isEmpty()) {
+                int n = 0;
+                for (Write q : writing) {
+                    gather[n++] = q.data;
+                    if (n == MAX_GATHER) break;
+                }
+                long written = channel.write(gather, 0, n);
+                bytesOut += written;
+                while (!writing.isEmpty() && !writing.peekFirst().data.hasRemaining()) {
+                    Write done = writing.pollFirst();
+                    done.done.complete(done.length);
+                }
+                if (written == 0) {
+                    break;
+                }
+            }
+            Arrays.fill(gather, null);
+            int ops = key.interestOps();
+            key.interestOps(writing.isEmpty() ? ops & ~SelectionKey.OP_WRITE
+                    : ops | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            fail(e, true);
+        }
+    }
+
+    private void expire(Pending p, long timeoutMs) {
+        boolean removed;
+        synchronized (this) {
+            removed = pending.remove(p);
+            if (removed && resync && !p.passedOver) {
+                ++late;
+                lateUntil = System.currentTimeMillis() + timeoutMs;
+            }
+        }
+        if (removed) {
+            p.result.completeExceptionally(new TimeoutException("No response"));
+        }
+    }
+
+    /* Closes everything and fails everything waiting, once. lost says
+     * whether to tell the Handler. */
+    private void fail(IOException cause, boolean lost) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        reactor.execute(() -> {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                /* Nothing more to do */
+            }
+            if (readBuffer != null) {
+                pool.release(readBuffer);
+                readBuffer = null;
+            }
+            decoder.reset();
+
+            Write w;
+            while ((w = queued.poll()) != null) {
+                writing.addLast(w);
+            }
+            while ((w = writing.pollFirst()) != null) {
+                w.done.completeExceptionally(cause);
+            }
+        });
+
+        List<Pending> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Pending p : dropped) {
+            p.result.completeExceptionally(cause);
+        }
+        opened.completeExceptionally(cause);
+
+        if (lost) {
+            handler.onLost(cause);
+        }
+    }
+
+    private static final class Write {
+        final ByteBuffer data;
+        final int length;
+        final CompletableFuture<Integer> done = new CompletableFuture<>();
+
+        Write(ByteBuffer data) {
+            this.data = data;
+            this.length = data.remaining();
+        }
+    }
+
+    private static final class Pending {
+        final CompletableFuture<byte[]> result;
+        /* Guarded by the connection */
+        boolean passedOver;
+
+        Pending(CompletableFuture<byte[]> result) {
+            this.result = result;
+        }
+    }
+
+    private static final String CLASS = TcpConnection.class.getSimpleName();
+    private static final String ERR_STR_CLOSED = CLASS + " is closed.\n";
+    private static String ErrStrBadAddress(String s) {
+        return String.format("%s expected a host:port address, got [%s].\n", CLASS, s);
+    }
+    private static String ErrStrConnectTimeout(InetSocketAddress a) {
+        return String.format("%s timed out connecting to %s.\n", CLASS, a);
+    }
+    private static String ErrStrClosedByPeer(InetSocketAddress a) {
+        return String.format("%s: %s closed the connection.\n", CLASS, a);
+    }
+}
@@ -0,0 +1,193 @@
+package temp.device;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/* Checks how TcpConnection matches answers to queries when one of them
+ * times out, against a device played by a local socket that answers
+ * "Qn" with "An", one line at a time, in turn.
+ *
+ *   late:       the device is slow with one answer, past that query's
+ *               timeout, while the queries after it are still waiting.
+ *               With resync the late answer goes to the Handler and the
+ *               rest get their own.
+ *   unanswered: the device never answers one query, and the next is sent
+ *               once it has given up. Without resync nothing is owed, so
+ *               the next query gets its own answer.
+ *
+ * Needs nothing but the loopback interface.
+ *
+ *   java -cp mycelium.jar temp.device.TcpLoopbackTest
+ */
+public final class TcpLoopbackTest {
+    private static final int QUERIES = 4;
+    /* The query the device is slow with, or ignores */
+    private static final int ODD_ONE = 2;
+    private static final long TIMEOUT_MS = 200;
+    private static final long LATE_BY_MS = 300;
+    private static final long PATIENT_TIMEOUT_MS = 2000;
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private TcpLoopbackTest() {}
+
+    /* Pipelines every query, and expects the odd one alone to time out */
+    private static boolean Late() throws Exception {
+        Device device = new Device(true);
+        List<String> unsolicited = new ArrayList<>();
+        TcpConnection c = Connect(device, unsolicited, true);
+        try {
+            List<CompletableFuture<byte[]>> answers = new ArrayList<>();
+            for (int i = 1; i <= QUERIES; ++i) {
+                answers.add(Query(c, i, (i == ODD_ONE) ? TIMEOUT_MS : PATIENT_TIMEOUT_MS));
+            }
+
+            boolean ok = true;
+            for (int i = 1; i <= QUERIES; ++i) {
+                ok &= Check("late", i, answers.get(i - 1), i != ODD_ONE);
+            }
+            synchronized (unsolicited) {
+                boolean handed = unsolicited.equals(List.of("A" + ODD_ONE));
+                System.out.println("late: unsolicited " + unsolicited +
+                        (handed ? "" : ", expected [A" + ODD_ONE + "]"));
+                ok &= handed;
+            }
+            return ok;
+        } finally {
+            c.close();
+            device.close();
+        }
+    }
+
+    /* Sends each query once the one before it is done */
+    private static boolean Unanswered() throws Exception {
+        Device device = new Device(false);
+        List<String> unsolicited = new ArrayList<>();
+        TcpConnection c = Connect(device, unsolicited, false);
+        try {
+            boolean ok = true;
+            for (int i = 1; i <= QUERIES; ++i) {
+                ok &= Check("unanswered", i, Query(c, i, TIMEOUT_MS), i != ODD_ONE);
+            }
+            synchronized (unsolicited) {
+                System.out.println("unanswered: unsolicited " + unsolicited);
+                ok &= unsolicited.isEmpty();
+            }
+            return ok;
+        } finally {
+            c.close();
+            device.close();
+        }
+    }
+
+    private static TcpConnection Connect(Device device, List<String> unsolicited,
+                                         boolean resync) throws Exception {
+        Transport.Handler handler = new Transport.Handler() {
+            @Override
+            public void onFrame(ByteBuffer frame) {
+                synchronized (unsolicited) {
+                    unsolicited.add(StandardCharsets.US_ASCII.decode(frame).toString());
+                }
+            }
+
+            @Override
+            public void onLost(IOException cause) {
+                System.err.println("lost: " + cause.getMessage());
+            }
+        };
+        TcpConnection c = new TcpConnection(device.address(),
+                new LineFrameDecoder(CRLF, true, 64), new DirectBufferPool(), handler, resync);
+        c.open(TcpConnection.DEF_CONNECT_TIMEOUT_MS).get();
+        return c;
+    }
+
+    private static CompletableFuture<byte[]> Query(TcpConnection c, int i, long timeoutMs) {
+        CompletableFuture<byte[]> answer = new CompletableFuture<>();
+        c.expect(answer, timeoutMs);
+        c.write(ByteBuffer.wrap(("Q" + i + "\r\n").getBytes(StandardCharsets.US_ASCII)));
+        return answer;
+    }
+
+    private static boolean Check(String test, int i, CompletableFuture<byte[]> answer,
+                                 boolean answered) throws InterruptedException {
+        String got;
+        try {
+            got = new String(answer.get(PATIENT_TIMEOUT_MS * 2, TimeUnit.MILLISECONDS),
+                    StandardCharsets.US_ASCII);
+        } catch (ExecutionException e) {
+            got = (e.getCause() instanceof TimeoutException) ? "timed out"
+                    : e.getCause().toString();
+        } catch (TimeoutException e) {
+            got = "never completed";
+        }
+        String expected = answered ? "A" + i : "timed out";
+        boolean ok = expected.equals(got);
+        System.out.println(String.format("%s: Q%d got %s%s", test, i, got,
+                ok ? "" : ", expected " + expected));
+        return ok;
+    }
+
+    /* Answers one connection, in turn, on its own thread */
+    private static final class Device implements AutoCloseable {
+        private final ServerSocket server;
+        private final Thread thread;
+
+        Device(boolean late) throws IOException {
+            server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            thread = new Thread(() -> serve(late), "TcpLoopbackTest device");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress address() {
+            return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+        }
+
+        private void serve(boolean late) {
+            try (Socket s = server.accept()) {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                OutputStream out = s.getOutputStream();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int i = Integer.parseInt(line.substring(1));
+                    if (i == ODD_ONE) {
+                        if (!late) {
+                            continue;
+                        }
+                        Thread.sleep(LATE_BY_MS);
+                    }
+                    out.write(("A" + i + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                /* Closed by the test */
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = Late();
+        ok &= Unanswered();
+        System.out.println(ok ? "passed" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,108 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/* "protocol": "TCP". A TcpConnection to host:port, framed per the
+ * lexicon's "framing"; answers are matched to requests in order, with
+ * resync if the lexicon sets "resyncLateAnswers". */
+public final class TcpTransport implements Transport {
+    private static final Set<Capability> CAPABILITIES = Collections.unmodifiableSet(
+            EnumSet.of(Capability.STREAM, Capability.PIPELINED, Capability.LOSS_DETECTION));
+
+    public static final class Provider implements TransportProvider {
+        @Override
+        public String getProtocol() {
+            return "TCP";
+        }
+
+        @Override
+        public Transport create(DirectBufferPool pool) {
+            return new TcpTransport(pool);
+        }
+    }
+
+    private final DirectBufferPool pool;
+    private volatile TcpConnection connection;
+
+    public TcpTransport(DirectBufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public Set<Capability> getCapabilities() {
+        return CAPABILITIES;
+    }
+
+    @Override
+    public CompletableFuture<Void> open(String address, JsonNode lexicon, Handler handler) {
+        long timeoutMs = lexicon.path(LexiconStrings.connectTimeoutMs)
+                .asLong(TcpConnection.DEF_CONNECT_TIMEOUT_MS);
+        try {
+            TcpConnection c = new TcpConnection(TcpConnection.ParseAddress(address),
+                    FrameDecoder.FromLexicon(lexicon), pool, handler,
+                    lexicon.path(LexiconStrings.resyncLateAnswers).asBoolean(false));
+            connection = c;
+            return c.open(timeoutMs);
+        } catch (IllegalArgumentException | IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Integer> write(ByteBuffer data) {
+        TcpConnection c = connection;
+        if (c == null) {
+            return CompletableFuture.failedFuture(new IOException(ERR_STR_NOT_OPEN));
+        }
+        return c.write(data);
+    }
+
+    /* The query is registered and the data queued together, so answers
+     * line up with requests in the order they went out */
+    @Override
+    public CompletableFuture<byte[]> request(ByteBuffer data, long timeoutMs) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        TcpConnection c = connection;
+        if (c == null) {
+            result.completeExceptionally(new IOException(ERR_STR_NOT_OPEN));
+            return result;
+        }
+
+        CompletableFuture<Integer> written;
+        synchronized (this) {
+            c.expect(result, timeoutMs);
+            written = c.write(data);
+        }
+        written.whenComplete((n, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public String getAddress() {
+        TcpConnection c = connection;
+        return (c != null) ? c.getAddress().toString() : "";
+    }
+
+    @Override
+    public void close() {
+        TcpConnection c = connection;
+        connection = null;
+        if (c != null) {
+            c.close();
+        }
+    }
+
+    private static final String CLASS = TcpTransport.class.getSimpleName();
+    private static final String ERR_STR_NOT_OPEN = CLASS + " is not open.\n";
+}
@@ -0,0 +1,110 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* Turns a streaming device's output into samples as it arrives:
+ *
+ *   port -> SerialReceiver -> FrameDecoder -> this -> sinks
+ *
+ * Each frame the decoder completes is parsed in place, per the lexicon's
+ * "recordFormat" (see RecordSchema), into a single SampleRecord that is
+ * reused for every sample, and handed to every sink in turn. Nothing is
+ * allocated per sample on the way: the frame is a window onto the
+ * decoder's buffer, the parser works on the bytes, and the record's
+ * fields are primitives. That keeps a hub with many sensors streaming at
+ * once out of the collector's way.
+ *
+ * Sinks are called on the receiver's thread, one sample at a time, and
+ * must be quick. The record is only valid during the call; a sink that
+ * keeps samples copies them (SampleColumns does). A sink shared between
+ * devices is called from each device's thread. */
+public final class TelemetryPipeline implements FrameDecoder.FrameHandler {
+    public interface SampleSink {
+        void onSample(SampleRecord sample);
+    }
+
+    private final RecordFieldParser parser;
+    private final SampleRecord record;
+    private volatile SampleSink[] sinks = new SampleSink[0];
+
+    /* Touched only on the receiver's thread */
+    private long samples;
+    private long rejected;
+
+    public TelemetryPipeline(RecordSchema schema) {
+        this.parser = new RecordFieldParser(schema);
+        this.record = new SampleRecord(schema);
+    }
+
+    /* Returns null if the lexicon doesn't declare a record format */
+    public static TelemetryPipeline FromLexicon(JsonNode lexicon) {
+        RecordSchema schema = RecordSchema.FromLexicon(lexicon);
+        return (schema != null) ? new TelemetryPipeline(schema) : null;
+    }
+
+    public RecordSchema getSchema() {
+        return parser.getSchema();
+    }
+
+    public synchronized void addSink(SampleSink sink) {
+        SampleSink[] s = Arrays.copyOf(sinks, sinks.length + 1);
+        s[s.length - 1] = sink;
+        sinks = s;
+    }
+
+    public synchronized void removeSink(SampleSink sink) {
+        SampleSink[] s = sinks;
+        for (int i = 0; i < s.length; ++i) {
+            if (s[i] == sink) {
+                SampleSink[] fewer = new SampleSink[s.length - 1];
+                System.arraycopy(s, 0, fewer, 0, i);
+                System.arraycopy(s, i + 1, fewer, i, s.length - i - 1);
+                sinks = fewer;
+                return;
+            }
+        }
+    }
+
+    public boolean hasSinks() {
+        return sinks.length > 0;
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame) {
+        offer(frame);
+    }
+
+    /* Parses frame and fans it out if it is a record. Returns false, with
+     * frame untouched, if it isn't, so the caller can deal with it some
+     * other way. */
+    public boolean offer(ByteBuffer frame) {
+        int from = frame.position();
+        int to = frame.limit();
+        while (to > from && (frame.get(to - 1) == '\n' || frame.get(to - 1) == '\r')) {
+            --to;
+        }
+        if (!parser.parse(frame, from, to)) {
+            ++rejected;
+            return false;
+        }
+
+        parser.fill(record);
+        ++samples;
+        for (SampleSink sink : sinks) {
+            sink.onSample(record);
+        }
+        return true;
+    }
+
+    public long getSampleCount() {
+        return samples;
+    }
+
+    /* Frames that weren't records */
+    public long getRejectedCount() {
+        return rejected;
+    }
+}
@@ -0,0 +1,63 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/* A way of reaching a device, for DeviceCommunicator, which only knows
+ * about transports through this interface and picks one by the lexicon's
+ * "protocol" (see TransportProvider).
+ *
+ * Everything is asynchronous; nothing here may block the caller. Whatever
+ * the device sends is split into frames and handed to the Handler, except
+ * answers to request(). Pooling, batching and pipelining belong below this
+ * line, so every transport gets them the same way.
+ *
+ * USB and USB_SERIAL predate this and are still built into the
+ * communicator. */
+public interface Transport {
+    enum Capability {
+        /* Bytes arrive in order, without loss, and are framed per the
+         * lexicon */
+        STREAM,
+        /* Each datagram is a frame, and may be lost or duplicated */
+        DATAGRAM,
+        /* Retries and deduplicates requests itself */
+        RELIABLE_REQUESTS,
+        /* More than one request may be outstanding at once */
+        PIPELINED,
+        /* Can report the device going away */
+        LOSS_DETECTION
+    }
+
+    interface Handler {
+        /* Output nobody asked for. frame is only valid during the call,
+         * which may be on a shared I/O thread and must not block. */
+        void onFrame(ByteBuffer frame);
+
+        /* The transport failed on its own, not through close() */
+        void onLost(IOException cause);
+    }
+
+    Set<Capability> getCapabilities();
+
+    /* address is whatever identifies the device to this transport, e.g.
+     * host:port. Completes once it can be written to. */
+    CompletableFuture<Void> open(String address, JsonNode lexicon, Handler handler);
+
+    /* Sends data's remaining bytes, and holds on to data until the future
+     * completes */
+    CompletableFuture<Integer> write(ByteBuffer data);
+
+    /* Sends data, as write(), and completes with the device's answer */
+    CompletableFuture<byte[]> request(ByteBuffer data, long timeoutMs);
+
+    /* For logs */
+    String getAddress();
+
+    /* Fails anything outstanding; doesn't call the Handler */
+    void close();
+}
@@ -0,0 +1,39 @@
+package temp.device;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/* Makes Transports for one lexicon "protocol". Providers are found with
+ * ServiceLoader, so a transport in another jar only needs a line in its
+ * META-INF/services/temp.device.TransportProvider. */
+public interface TransportProvider {
+    /* As it appears in the lexicon, e.g. "TCP"; matched ignoring case */
+    String getProtocol();
+
+    /* pool is the communicator's, for staging buffers */
+    Transport create(DirectBufferPool pool);
+
+    /* The provider for protocol, or null if there isn't one */
+    static TransportProvider For(String protocol) {
+        return (protocol != null) ? Registry.PROVIDERS.get(protocol.toUpperCase()) : null;
+    }
+
+    final class Registry {
+        private static final Map<String, TransportProvider> PROVIDERS = Load();
+
+        private Registry() {
+        }
+
+        private static Map<String, TransportProvider> Load() {
+            Map<String, TransportProvider> providers = new HashMap<>();
+            for (TransportProvider p : ServiceLoader.load(TransportProvider.class)) {
+                if (providers.putIfAbsent(p.getProtocol().toUpperCase(), p) != null) {
+                    System.err.println("More than one transport for " + p.getProtocol() +
+                            "; ignoring " + p.getClass().getName());
+                }
+            }
+            return providers;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package temp.device;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* A local UDP port shared by every device that talks through it, served by
+ * the NioReactor.
+ *
+ * Beacons from many devices usually arrive on one well-known port, so the
+ * socket belongs to the port, not to a device: each device attaches a
+ * Receiver for its own address, and every datagram is handed to the
+ * Receiver for the address it came from. Datagrams from anyone else are
+ * counted and dropped.
+ *
+ * IN: when the socket is readable the reactor takes every datagram waiting,
+ * up to DEF_RECEIVE_BATCH of them before giving other connections a turn,
+ * each into the same pooled direct buffer, so nothing is allocated per
+ * datagram. The Receiver gets the datagram as a window onto that buffer,
+ * only valid during the call, on the reactor thread.
+ *
+ * OUT: sends are queued from any thread and sent by the reactor, in order,
+ * as fast as the socket takes them.
+ *
+ * Endpoints are shared by local port and counted: Acquire() and release()
+ * in pairs, and the socket closes when the last user lets go. */
+public final class UdpEndpoint implements NioReactor.Handler {
+    public static final int DEF_RECEIVE_BATCH = 256;
+    public static final int DEF_RECEIVE_BUFFER_SIZE = 1 << 20;
+    /* Largest possible UDP payload */
+    private static final int MAX_DATAGRAM = 65507;
+
+    public interface Receiver {
+        /* On the reactor thread; datagram is only valid during the call */
+        void onDatagram(ByteBuffer datagram);
+    }
+
+    private static final Map<Integer, UdpEndpoint> endpoints = new HashMap<>();
+
+    private final int localPort;
+    private final DatagramChannel channel;
+    private final DirectBufferPool pool;
+    private final NioReactor reactor;
+    private final Map<SocketAddress, Receiver> receivers = new ConcurrentHashMap<>();
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private int users;
+
+    /* OUT */
+    private final ConcurrentLinkedQueue<Send> queued = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    /* Reactor thread only, read from anywhere */
+    private volatile long received;
+    private volatile long unknown;
+    private volatile long sent;
+
+    private UdpEndpoint(int localPort, DirectBufferPool pool) throws IOException {
+        this.pool = pool;
+        this.reactor = NioReactor.Shared();
+        channel = DatagramChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, DEF_RECEIVE_BUFFER_SIZE);
+            channel.bind(new InetSocketAddress(localPort));
+            channel.configureBlocking(false);
+            this.localPort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        CompletableFuture<Void> registered = new CompletableFuture<>();
+        reactor.execute(() -> {
+            try {
+                readBuffer = pool.acquire(MAX_DATAGRAM);
+                key = reactor.register(channel, SelectionKey.OP_READ, this);
+                registered.complete(null);
+            } catch (IOException e) {
+                registered.completeExceptionally(e);
+            }
+        });
+        try {
+            registered.join();
+        } catch (RuntimeException e) {
+            channel.close();
+            throw new IOException(ErrStrBind(localPort), e.getCause());
+        }
+    }
+
+    /* The endpoint on localPort, opened if nobody is using it yet. 0 opens
+     * a new one on any free port. */
+    public static synchronized UdpEndpoint Acquire(int localPort, DirectBufferPool pool)
+            throws IOException {
+        UdpEndpoint e = (localPort != 0) ? endpoints.get(localPort) : null;
+        if (e == null) {
+            e = new UdpEndpoint(localPort, pool);
+            endpoints.put(e.localPort, e);
+        }
+        ++e.users;
+        return e;
+    }
+
+    public void release() {
+        synchronized (UdpEndpoint.class) {
+            if (--users > 0) {
+                return;
+            }
+            endpoints.remove(localPort, this);
+        }
+        close();
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /* Datagrams from remote go to receiver from now on */
+    public void attach(SocketAddress remote, Receiver receiver) {
+        receivers.put(remote, receiver);
+    }
+
+    public void detach(SocketAddress remote, Receiver receiver) {
+        receivers.remove(remote, receiver);
+    }
+
+    /* Queues one datagram (data's remaining bytes) for remote, and takes
+     * data over until the returned future completes. */
+    public CompletableFuture<Integer> send(ByteBuffer data, SocketAddress remote) {
+        Send s = new Send(data, remote);
+        if (closed) {
+            s.done.completeExceptionally(new IOException(ERR_STR_CLOSED));
+            return s.done;
+        }
+        queued.add(s);
+        if (flushScheduled.compareAndSet(false, true)) {
+            reactor.execute(this::flush);
+        }
+        return s.done;
+    }
+
+    public long getReceivedCount() {
+        return received;
+    }
+
+    /* Datagrams from addresses nobody has attached */
+    public long getUnknownCount() {
+        return unknown;
+    }
+
+    public long getSentCount() {
+        return sent;
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        if (key.isValid() && key.isReadable()) {
+            receive();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    /* Reactor thread */
+    private void receive() {
+        for (int i = 0; i < DEF_RECEIVE_BATCH; ++i) {
+            SocketAddress from;
+            readBuffer.clear();
+            try {
+                from = channel.receive(readBuffer);
+            } catch (IOException e) {
+                /* e.g. ICMP port unreachable for an earlier send; the
+                 * socket is still good */
+                continue;
+            }
+            if (from == null) {
+                return;
+            }
+
+            ++received;
+            Receiver r = receivers.get(from);
+            if (r == null) {
+                ++unknown;
+                continue;
+            }
+            readBuffer.flip();
+            try {
+                r.onDatagram(readBuffer);
+            } catch (RuntimeException e) {
+                System.err.println(CLASS + ": receiver failed: " + e);
+            }
+        }
+    }
+
+    /* Reactor thread */
+    private void flush() {
+        flushScheduled.set(false);
+        if (closed || key == null || !key.isValid()) {
+            return;
+        }
+
+        Send s;
+        while ((s = queued.peek()) != null) {
+            int n;
+            try {
+                n = channel.send(s.data, s.remote);
+            } catch (IOException e) {
+                queued.poll();
+                s.done.completeExceptionally(e);
+                continue;
+            }
+            if (n == 0) {
+                /* Socket buffer full; go again when it isn't */
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            queued.poll();
+            ++sent;
+            s.done.complete(n);
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void close() {
+        closed = true;
+        reactor.execute(() -> {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                /* Nothing more to do */
+            }
+            if (readBuffer != null) {
+                pool.release(readBuffer);
+                readBuffer = null;
+            }
+            Send s;
+            while ((s = queued.poll()) != null) {
+                s.done.completeExceptionally(new IOException(ERR_STR_CLOSED));
+            }
+        });
+    }
+
+    private static final class Send {
+        final ByteBuffer data;
+        final SocketAddress remote;
+        final CompletableFuture<Integer> done = new CompletableFuture<>();
+
+        Send(ByteBuffer data, SocketAddress remote) {
+            this.data = data;
+            this.remote = remote;
+        }
+    }
+
+    private static final String CLASS = UdpEndpoint.class.getSimpleName();
+    private static final String ERR_STR_CLOSED = CLASS + " is closed.\n";
+    private static String ErrStrBind(int port) {
+        return String.format("%s was unable to listen on UDP port %d.\n", CLASS, port);
+    }
+}
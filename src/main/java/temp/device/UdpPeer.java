@@ -0,0 +1,291 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* One device at the far end of a UdpEndpoint. Every datagram from it is a
+ * frame, handed to the FrameHandler unless it answers a query.
+ *
+ * Datagrams get lost and duplicated, so a lexicon can declare where the
+ * device keeps a sequence number:
+ *
+ *   "datagram": { "localPort": 5000, "sequenceOffset": 2,
+ *                 "sequenceBytes": 2, "retries": 3, "retryIntervalMs": 200 }
+ *
+ * Then each query is stamped with the next number (big-endian, over the
+ * bytes the command reserves for it) and answered by the datagram carrying
+ * the same number, whatever order they arrive in. A query with no answer
+ * after retryIntervalMs is sent again, up to retries times. Any other
+ * datagram whose number was seen among the last DEF_DEDUP_WINDOW, e.g. the
+ * second answer to a query that was sent twice, or a beacon the network
+ * duplicated, is dropped and counted. A query too short to hold the
+ * number is refused.
+ *
+ * Without a sequence number, a query is answered by the next datagram to
+ * arrive, in order, like a serial line, and is never sent twice, since two
+ * answers couldn't be told apart. */
+public final class UdpPeer implements UdpEndpoint.Receiver {
+    public static final int DEF_RETRIES = 2;
+    public static final long DEF_RETRY_INTERVAL_MS = 250;
+    public static final int DEF_DEDUP_WINDOW = 64;
+
+    private final UdpEndpoint endpoint;
+    private final InetSocketAddress remote;
+    private final DirectBufferPool pool;
+    private final FrameDecoder.FrameHandler handler;
+
+    private final int sequenceOffset;
+    private final int sequenceBytes;
+    private final int retries;
+    private final long retryIntervalMs;
+    private final AtomicInteger nextSequence = new AtomicInteger();
+
+    /* Queries waiting: by sequence number, or, without one, in order */
+    private final Map<Integer, Request> bySequence = new ConcurrentHashMap<>();
+    private final ArrayDeque<Request> inOrder = new ArrayDeque<>();
+
+    /* Reactor thread only */
+    private final int[] seen = new int[DEF_DEDUP_WINDOW];
+    private int seenCount;
+    private int seenNext;
+    private volatile long duplicates;
+    private volatile long resent;
+    private volatile boolean closed;
+
+    public UdpPeer(UdpEndpoint endpoint, InetSocketAddress remote, JsonNode lexicon,
+                   DirectBufferPool pool, FrameDecoder.FrameHandler handler) {
+        this.endpoint = endpoint;
+        this.remote = remote;
+        this.pool = pool;
+        this.handler = handler;
+
+        JsonNode d = lexicon.path(LexiconStrings.datagram);
+        this.sequenceOffset = d.path(LexiconStrings.sequenceOffset).asInt(-1);
+        this.sequenceBytes = Math.max(1, Math.min(4, d.path(LexiconStrings.sequenceBytes)
+                .asInt(2)));
+        this.retries = isSequenced() ? Math.max(0, d.path(LexiconStrings.retries)
+                .asInt(DEF_RETRIES)) : 0;
+        this.retryIntervalMs = Math.max(1, d.path(LexiconStrings.retryIntervalMs)
+                .asLong(DEF_RETRY_INTERVAL_MS));
+
+        endpoint.attach(remote, this);
+    }
+
+    /* The lexicon's "datagram" "localPort", or 0 for any */
+    public static int LocalPortFromLexicon(JsonNode lexicon) {
+        return lexicon.path(LexiconStrings.datagram).path(LexiconStrings.localPort).asInt(0);
+    }
+
+    public InetSocketAddress getRemote() {
+        return remote;
+    }
+
+    public boolean isSequenced() {
+        return sequenceOffset >= 0;
+    }
+
+    /* Sends data and completes with the answer, or a TimeoutException
+     * timeoutMs after the last attempt */
+    public CompletableFuture<byte[]> request(byte[] data, long timeoutMs) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new IOException(ERR_STR_CLOSED));
+            return result;
+        }
+        /* Its answer couldn't carry a sequence number either, and a
+         * sequenced peer matches nothing in order */
+        if (isSequenced() && data.length < sequenceOffset + sequenceBytes) {
+            result.completeExceptionally(new IllegalArgumentException(
+                    ErrStrTooShort(data.length, sequenceOffset + sequenceBytes)));
+            return result;
+        }
+
+        Request r;
+        if (isSequenced()) {
+            int seq = nextSequence.getAndIncrement() & sequenceMask();
+            byte[] stamped = data.clone();
+            PutSequence(stamped, sequenceOffset, sequenceBytes, seq);
+            r = new Request(stamped, seq, result);
+            Request stale = bySequence.put(seq, r);
+            if (stale != null) {
+                stale.result.completeExceptionally(new TimeoutException("No response"));
+            }
+        } else {
+            r = new Request(data, -1, result);
+            synchronized (inOrder) {
+                inOrder.addLast(r);
+            }
+        }
+
+        transmit(r.data).whenComplete((n, e) -> {
+            if (e != null) {
+                forget(r);
+                result.completeExceptionally(e);
+            }
+        });
+        scheduleRetry(r, retries, timeoutMs);
+        return result;
+    }
+
+    /* Fire and forget; holds on to data until the future completes */
+    public CompletableFuture<Integer> send(ByteBuffer data) {
+        return endpoint.send(data, remote);
+    }
+
+    public long getDuplicateCount() {
+        return duplicates;
+    }
+
+    public long getResentCount() {
+        return resent;
+    }
+
+    public void close() {
+        closed = true;
+        endpoint.detach(remote, this);
+
+        List<Request> dropped = new ArrayList<>(bySequence.values());
+        bySequence.clear();
+        synchronized (inOrder) {
+            dropped.addAll(inOrder);
+            inOrder.clear();
+        }
+        for (Request r : dropped) {
+            r.result.completeExceptionally(new IOException(ERR_STR_CLOSED));
+        }
+        endpoint.release();
+    }
+
+    @Override
+    public void onDatagram(ByteBuffer datagram) {
+        if (isSequenced() && datagram.remaining() >= sequenceOffset + sequenceBytes) {
+            int seq = GetSequence(datagram, datagram.position() + sequenceOffset,
+                    sequenceBytes);
+            Request r = bySequence.remove(seq);
+            if (r == null && wasSeen(seq)) {
+                ++duplicates;
+                return;
+            }
+            remember(seq);
+            if (r != null) {
+                r.result.complete(copyOf(datagram));
+                return;
+            }
+        } else if (!isSequenced()) {
+            Request r;
+            synchronized (inOrder) {
+                r = inOrder.pollFirst();
+            }
+            if (r != null) {
+                r.result.complete(copyOf(datagram));
+                return;
+            }
+        }
+        handler.onFrame(datagram);
+    }
+
+    private CompletableFuture<Integer> transmit(byte[] data) {
+        ByteBuffer buffer = pool.acquireFilled(data);
+        CompletableFuture<Integer> sent = endpoint.send(buffer, remote);
+        sent.whenComplete((n, e) -> pool.release(buffer));
+        return sent;
+    }
+
+    /* Waits out one attempt: sends again if there are attempts left, gives
+     * up if not */
+    private void scheduleRetry(Request r, int attemptsLeft, long timeoutMs) {
+        long wait = (attemptsLeft > 0) ? retryIntervalMs : timeoutMs;
+        CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS).execute(() -> {
+            if (r.result.isDone() || closed) {
+                return;
+            }
+            if (attemptsLeft > 0) {
+                ++resent;
+                transmit(r.data);
+                scheduleRetry(r, attemptsLeft - 1, timeoutMs);
+            } else {
+                forget(r);
+                r.result.completeExceptionally(new TimeoutException("No response"));
+            }
+        });
+    }
+
+    private void forget(Request r) {
+        if (!bySequence.remove(r.sequence, r)) {
+            synchronized (inOrder) {
+                inOrder.remove(r);
+            }
+        }
+    }
+
+    private boolean wasSeen(int seq) {
+        for (int i = 0; i < seenCount; ++i) {
+            if (seen[i] == seq) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remember(int seq) {
+        seen[seenNext] = seq;
+        seenNext = (seenNext + 1) % seen.length;
+        seenCount = Math.min(seenCount + 1, seen.length);
+    }
+
+    private int sequenceMask() {
+        return (sequenceBytes == 4) ? -1 : (1 << (8 * sequenceBytes)) - 1;
+    }
+
+    private static byte[] copyOf(ByteBuffer datagram) {
+        byte[] copy = new byte[datagram.remaining()];
+        datagram.get(copy);
+        return copy;
+    }
+
+    private static void PutSequence(byte[] data, int offset, int bytes, int seq) {
+        for (int i = bytes - 1; i >= 0; --i) {
+            data[offset + i] = (byte) seq;
+            seq >>>= 8;
+        }
+    }
+
+    private static int GetSequence(ByteBuffer data, int at, int bytes) {
+        int seq = 0;
+        for (int i = 0; i < bytes; ++i) {
+            seq = (seq << 8) | (data.get(at + i) & 0xFF);
+        }
+        return seq;
+    }
+
+    private static final class Request {
+        final byte[] data;
+        final int sequence;
+        final CompletableFuture<byte[]> result;
+
+        Request(byte[] data, int sequence, CompletableFuture<byte[]> result) {
+            this.data = data;
+            this.sequence = sequence;
+            this.result = result;
+        }
+    }
+
+    private static final String CLASS = UdpPeer.class.getSimpleName();
+    private static final String ERR_STR_CLOSED = CLASS + " is closed.\n";
+    private static String ErrStrTooShort(int length, int needed) {
+        return String.format("%s can't send a %d-byte query with a sequence number " +
+                "that needs %d bytes.\n", CLASS, length, needed);
+    }
+}
@@ -0,0 +1,102 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/* "protocol": "UDP". A UdpPeer for host:port, on the local port the
+ * lexicon's "datagram" block names (shared with any other device using
+ * it). Opening only starts listening; there is nothing to lose. */
+public final class UdpTransport implements Transport {
+    private static final Set<Capability> UNSEQUENCED = Collections.unmodifiableSet(
+            EnumSet.of(Capability.DATAGRAM));
+    private static final Set<Capability> SEQUENCED = Collections.unmodifiableSet(
+            EnumSet.of(Capability.DATAGRAM, Capability.RELIABLE_REQUESTS,
+                    Capability.PIPELINED));
+
+    public static final class Provider implements TransportProvider {
+        @Override
+        public String getProtocol() {
+            return "UDP";
+        }
+
+        @Override
+        public Transport create(DirectBufferPool pool) {
+            return new UdpTransport(pool);
+        }
+    }
+
+    private final DirectBufferPool pool;
+    private volatile UdpPeer peer;
+
+    public UdpTransport(DirectBufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public Set<Capability> getCapabilities() {
+        UdpPeer p = peer;
+        return (p != null && p.isSequenced()) ? SEQUENCED : UNSEQUENCED;
+    }
+
+    @Override
+    public CompletableFuture<Void> open(String address, JsonNode lexicon, Handler handler) {
+        UdpEndpoint endpoint = null;
+        try {
+            endpoint = UdpEndpoint.Acquire(UdpPeer.LocalPortFromLexicon(lexicon), pool);
+            peer = new UdpPeer(endpoint, TcpConnection.ParseAddress(address), lexicon, pool,
+                    handler::onFrame);
+            System.out.println("Listening on UDP port " + endpoint.getLocalPort());
+            return CompletableFuture.completedFuture(null);
+        } catch (IllegalArgumentException | IOException e) {
+            if (endpoint != null) {
+                endpoint.release();
+            }
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Integer> write(ByteBuffer data) {
+        UdpPeer p = peer;
+        if (p == null) {
+            return CompletableFuture.failedFuture(new IOException(ERR_STR_NOT_OPEN));
+        }
+        return p.send(data);
+    }
+
+    /* The peer keeps its own copy, to stamp and resend */
+    @Override
+    public CompletableFuture<byte[]> request(ByteBuffer data, long timeoutMs) {
+        UdpPeer p = peer;
+        if (p == null) {
+            return CompletableFuture.failedFuture(new IOException(ERR_STR_NOT_OPEN));
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return p.request(bytes, timeoutMs);
+    }
+
+    @Override
+    public String getAddress() {
+        UdpPeer p = peer;
+        return (p != null) ? p.getRemote().toString() : "";
+    }
+
+    @Override
+    public void close() {
+        UdpPeer p = peer;
+        peer = null;
+        if (p != null) {
+            p.close();
+        }
+    }
+
+    private static final String CLASS = UdpTransport.class.getSimpleName();
+    private static final String ERR_STR_NOT_OPEN = CLASS + " is not open.\n";
+}
@@ -0,0 +1,285 @@
+package temp.device;
+
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.DeviceDescriptor;
+import org.usb4java.DeviceList;
+import org.usb4java.HotplugCallbackHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/* The process-wide libusb context.
+ *
+ * Initializing libusb is not free, and re-enumerating the bus on every connect
+ * is slower still, so one context lives for the whole session. Where libusb
+ * supports hotplug (Linux, macOS) a callback keeps an index of attached
+ * devices, and connecting is a lookup. Where it doesn't (Windows) the index
+ * is filled by one enumeration at Init() and refreshed only when a lookup
+ * misses.
+ *
+ * The index is keyed by where a device is (bus and address) as well as by
+ * VID/PID, so two identical units are two entries, and one of them leaving
+ * doesn't take the other's with it.
+ *
+ * The shared UsbTransferEngine's event thread also delivers hotplug
+ * callbacks, so there is exactly one thread pumping libusb events. Arrival
+ * and removal are pushed to registered Listeners from that thread, with the
+ * Device concerned so a listener can tell identical units apart. */
+public final class UsbContext {
+    public interface Listener {
+        void deviceArrived(Device device, short vendorId, short productId);
+        void deviceLeft(Device device, short vendorId, short productId);
+    }
+
+    private static boolean init;
+
+    private static Context context;
+    private static UsbTransferEngine engine;
+    private static HotplugCallbackHandle hotplugHandle;
+    private static boolean hotplugSupported;
+
+    private static final Map<Long, Device> devices = new ConcurrentHashMap<>();
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private UsbContext() {}
+
+    public static synchronized boolean Init() {
+        assert(!init);
+
+        context = new Context();
+        int result = LibUsb.init(context);
+        if (result != LibUsb.SUCCESS) {
+            System.err.println(ErrStrInitFailed(result));
+            context = null;
+            return init = false;
+        }
+
+        engine = new UsbTransferEngine(context);
+        engine.start();
+
+        hotplugSupported = LibUsb.hasCapability(LibUsb.CAP_HAS_HOTPLUG);
+        if (hotplugSupported) {
+            hotplugHandle = new HotplugCallbackHandle();
+            /* ENUMERATE delivers an arrival for everything already attached,
+             * so the index is complete as soon as this returns. */
+            result = LibUsb.hotplugRegisterCallback(context,
+                    LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED | LibUsb.HOTPLUG_EVENT_DEVICE_LEFT,
+                    LibUsb.HOTPLUG_ENUMERATE, LibUsb.HOTPLUG_MATCH_ANY,
+                    LibUsb.HOTPLUG_MATCH_ANY, LibUsb.HOTPLUG_MATCH_ANY,
+                    UsbContext::OnHotplug, null, hotplugHandle);
+            if (result != LibUsb.SUCCESS) {
+                System.err.println(ErrStrHotplugFailed(result));
+                hotplugHandle = null;
+                hotplugSupported = false;
+            }
+        }
+
+        if (!hotplugSupported) {
+            Enumerate();
+        }
+
+        return init = true;
+    }
+
+    public static synchronized boolean IsInit() {
+        return init;
+    }
+
+    /* Convenience for callers that may run before anyone called Init() */
+    public static synchronized boolean EnsureInit() {
+        return init || Init();
+    }
+
+    public static synchronized void Shutdown() {
+        if (!init) {
+            return;
+        }
+
+        if (hotplugHandle != null) {
+            LibUsb.hotplugDeregisterCallback(context, hotplugHandle);
+            hotplugHandle = null;
+        }
+
+        engine.shutdown();
+        engine = null;
+
+        for (Device device : devices.values()) {
+            LibUsb.unrefDevice(device);
+        }
+        devices.clear();
+
+        LibUsb.exit(context);
+        context = null;
+        init = false;
+    }
+
+    public static Context GetContext() {
+        assert(init);
+        return context;
+    }
+
+    public static UsbTransferEngine GetTransferEngine() {
+        assert(init);
+        return engine;
+    }
+
+    public static boolean IsHotplugSupported() {
+        return hotplugSupported;
+    }
+
+    /* Returns an attached device with this VID/PID, with an extra reference
+     * the caller must drop with LibUsb.unrefDevice(), or null. With several
+     * identical units attached, the one on the lowest bus and address. */
+    public static Device FindDevice(short vendorId, short productId) {
+        assert(init);
+
+        Device device = Lookup(vendorId, productId);
+        if (device == null && !hotplugSupported) {
+            Enumerate();
+            device = Lookup(vendorId, productId);
+        }
+
+        if (device != null) {
+            LibUsb.refDevice(device);
+        }
+        return device;
+    }
+
+    public static boolean IsAttached(short vendorId, short productId) {
+        return Lookup(vendorId, productId) != null;
+    }
+
+    public static void AddListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public static void RemoveListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    private static int OnHotplug(Context ctx, Device device, int event, Object userData) {
+        DeviceDescriptor descriptor = new DeviceDescriptor();
+        if (LibUsb.getDeviceDescriptor(device, descriptor) != LibUsb.SUCCESS) {
+            return 0;
+        }
+
+        short vid = descriptor.idVendor();
+        short pid = descriptor.idProduct();
+
+        if (event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED) {
+            Index(device, vid, pid);
+            System.out.println(String.format("USB device arrived - VID: 0x%04X, PID: 0x%04X",
+                    vid & 0xFFFF, pid & 0xFFFF));
+            for (Listener l : listeners) {
+                l.deviceArrived(device, vid, pid);
+            }
+        } else if (event == LibUsb.HOTPLUG_EVENT_DEVICE_LEFT) {
+            /* libusb hands back the same device it announced, so only that
+             * entry goes, never a twin's that happens to share the key */
+            if (devices.remove(Key(device, vid, pid), device)) {
+                LibUsb.unrefDevice(device);
+            }
+            System.out.println(String.format("USB device left - VID: 0x%04X, PID: 0x%04X",
+                    vid & 0xFFFF, pid & 0xFFFF));
+            for (Listener l : listeners) {
+                l.deviceLeft(device, vid, pid);
+            }
+        }
+
+        /* 0 keeps the callback registered */
+        return 0;
+    }
+
+    /* Rebuilds the index from a full walk of the bus. Only used when libusb
+     * can't tell us about changes itself. */
+    private static synchronized void Enumerate() {
+        DeviceList list = new DeviceList();
+        int result = LibUsb.getDeviceList(context, list);
+        if (result < 0) {
+            throw new LibUsbException("Unable to get device list", result);
+        }
+
+        List<Long> seen = new ArrayList<>();
+        try {
+            for (Device device : list) {
+                DeviceDescriptor descriptor = new DeviceDescriptor();
+                if (LibUsb.getDeviceDescriptor(device, descriptor) != LibUsb.SUCCESS) {
+                    continue;
+                }
+                seen.add(Key(device, descriptor.idVendor(), descriptor.idProduct()));
+                Index(device, descriptor.idVendor(), descriptor.idProduct());
+            }
+        } finally {
+            LibUsb.freeDeviceList(list, true);
+        }
+
+        for (Long key : devices.keySet()) {
+            if (!seen.contains(key)) {
+                Device gone = devices.remove(key);
+                if (gone != null) {
+                    LibUsb.unrefDevice(gone);
+                }
+            }
+        }
+    }
+
+    /* Only a different device at the same place (the old one gone without
+     * a LEFT) replaces an entry; the same one announced again is a no-op */
+    private static void Index(Device device, short vid, short pid) {
+        long key = Key(device, vid, pid);
+        Device old = devices.get(key);
+        if (device.equals(old)) {
+            return;
+        }
+        LibUsb.refDevice(device);
+        if (old != null ? devices.replace(key, old, device)
+                : devices.putIfAbsent(key, device) == null) {
+            if (old != null) {
+                LibUsb.unrefDevice(old);
+            }
+        } else {
+            LibUsb.unrefDevice(device);
+        }
+    }
+
+    private static Device Lookup(short vendorId, short productId) {
+        long id = Id(vendorId, productId);
+        Device found = null;
+        long foundKey = Long.MAX_VALUE;
+        for (Map.Entry<Long, Device> e : devices.entrySet()) {
+            long key = e.getKey();
+            if ((key >>> 16) == id && key < foundKey) {
+                found = e.getValue();
+                foundKey = key;
+            }
+        }
+        return found;
+    }
+
+    /* VID, PID, bus, address, from the top */
+    private static long Key(Device device, short vendorId, short productId) {
+        return (Id(vendorId, productId) << 16) |
+                ((LibUsb.getBusNumber(device) & 0xFF) << 8) |
+                (LibUsb.getDeviceAddress(device) & 0xFF);
+    }
+
+    private static long Id(short vendorId, short productId) {
+        return ((vendorId & 0xFFFFL) << 16) | (productId & 0xFFFFL);
+    }
+
+    private static final String CLASS = UsbContext.class.getSimpleName();
+    private static String ErrStrInitFailed(int result) {
+        return String.format("%s was unable to initialize libusb [%s].\n",
+                CLASS, LibUsb.errorName(result));
+    }
+    private static String ErrStrHotplugFailed(int result) {
+        return String.format("%s was unable to register for hotplug events " +
+                "[%s], falling back to enumeration.\n", CLASS, LibUsb.errorName(result));
+    }
+}
@@ -0,0 +1,243 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.usb4java.Device;
+import org.usb4java.DeviceDescriptor;
+import org.usb4java.LibUsb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/* What we learned about a lexicon's device the last time it connected, kept
+ * on disk so the next connect can skip rediscovering it.
+ *
+ * One file per lexicon under profiles/, in the same key=value format as
+ * config.ini. A profile is trusted only if the device is on the same bus and
+ * port, reports the same bcdDevice, and the lexicon still asks for the same
+ * interfaces; all of that comes from descriptors libusb already holds, so
+ * checking costs no bus traffic. Anything that doesn't parse or doesn't
+ * match means the slow path runs and the profile is rewritten. The files
+ * are disposable and safe to delete. */
+public final class UsbDeviceProfile {
+    private static final String PROFILE_DIR = "profiles";
+    private static final String PROFILE_EXT = ".ini";
+    private static final String COMMENT_CHAR = "#";
+    private static final String ASSIGNMENT_CHAR = "=";
+
+    private static final String KEY_VENDOR_ID = "vendorId";
+    private static final String KEY_PRODUCT_ID = "productId";
+    private static final String KEY_BCD_DEVICE = "bcdDevice";
+    private static final String KEY_BUS = "bus";
+    private static final String KEY_PORT_PATH = "portPath";
+    private static final String KEY_INTERFACES = "interfaces";
+    private static final String KEY_ENDPOINT = "endpoint";
+    private static final String KEY_MANUFACTURER = "manufacturer";
+    private static final String KEY_PRODUCT = "product";
+    private static final String KEY_SERIAL = "serial";
+
+    private short vendorId;
+    private short productId;
+    private short bcdDevice;
+    private int bus;
+    private String portPath = "";
+    private String interfaces = "";
+    private final List<UsbEndpointInfo> endpoints = new ArrayList<>();
+    private UsbDeviceStrings strings;
+
+    private UsbDeviceProfile() {}
+
+    /* Describes device as it is now, with the given endpoint layout */
+    public static UsbDeviceProfile Describe(Device device, JsonNode lexicon,
+                                            List<UsbEndpointInfo> endpoints) {
+        DeviceDescriptor descriptor = new DeviceDescriptor();
+        if (LibUsb.getDeviceDescriptor(device, descriptor) != LibUsb.SUCCESS) {
+            return null;
+        }
+
+        UsbDeviceProfile p = new UsbDeviceProfile();
+        p.vendorId = descriptor.idVendor();
+        p.productId = descriptor.idProduct();
+        p.bcdDevice = descriptor.bcdDevice();
+        p.bus = LibUsb.getBusNumber(device) & 0xFF;
+        p.portPath = PortPath(device);
+        p.interfaces = InterfacesKey(lexicon);
+        p.endpoints.addAll(endpoints);
+        return p;
+    }
+
+    /* Returns the stored profile for lexicon, or null if there is none or it
+     * can't be read. */
+    public static UsbDeviceProfile Load(JsonNode lexicon) {
+        File f = FileFor(lexicon);
+        if (!f.exists()) {
+            return null;
+        }
+
+        UsbDeviceProfile p = new UsbDeviceProfile();
+        String manufacturer = null, product = null, serial = null;
+        String line;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(COMMENT_CHAR))
+                    continue;
+
+                int split = line.indexOf(ASSIGNMENT_CHAR);
+                if (split == -1) continue;
+
+                String key = line.substring(0, split).trim();
+                String val = line.substring(split + 1).trim();
+
+                switch (key) {
+                    case KEY_VENDOR_ID: p.vendorId = (short) (int) Integer.decode(val); break;
+                    case KEY_PRODUCT_ID: p.productId = (short) (int) Integer.decode(val); break;
+                    case KEY_BCD_DEVICE: p.bcdDevice = (short) (int) Integer.decode(val); break;
+                    case KEY_BUS: p.bus = Integer.parseInt(val); break;
+                    case KEY_PORT_PATH: p.portPath = val; break;
+                    case KEY_INTERFACES: p.interfaces = val; break;
+                    case KEY_ENDPOINT: p.endpoints.add(ParseEndpoint(val)); break;
+                    case KEY_MANUFACTURER: manufacturer = val; break;
+                    case KEY_PRODUCT: product = val; break;
+                    case KEY_SERIAL: serial = val; break;
+                }
+            }
+        } catch (Exception e) {
+            System.err.println(CLASS + ": ignoring unreadable profile " + f + ": " +
+                    e.getMessage());
+            return null;
+        }
+
+        if (manufacturer != null || product != null || serial != null) {
+            p.strings = new UsbDeviceStrings(manufacturer, product, serial);
+        }
+        return p;
+    }
+
+    /* Best effort; a profile that can't be written just means a slow
+     * connect next time. */
+    public void save(JsonNode lexicon) {
+        File f = FileFor(lexicon);
+        File dir = f.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            return;
+        }
+
+        try (PrintWriter out = new PrintWriter(new FileWriter(f))) {
+            out.println(COMMENT_CHAR + " Last-known USB layout, safe to delete");
+            out.println(KEY_VENDOR_ID + ASSIGNMENT_CHAR + Hex16(vendorId));
+            out.println(KEY_PRODUCT_ID + ASSIGNMENT_CHAR + Hex16(productId));
+            out.println(KEY_BCD_DEVICE + ASSIGNMENT_CHAR + Hex16(bcdDevice));
+            out.println(KEY_BUS + ASSIGNMENT_CHAR + bus);
+            out.println(KEY_PORT_PATH + ASSIGNMENT_CHAR + portPath);
+            out.println(KEY_INTERFACES + ASSIGNMENT_CHAR + interfaces);
+            for (UsbEndpointInfo ep : endpoints) {
+                out.println(KEY_ENDPOINT + ASSIGNMENT_CHAR + FormatEndpoint(ep));
+            }
+            if (strings != null) {
+                if (strings.manufacturer != null)
+                    out.println(KEY_MANUFACTURER + ASSIGNMENT_CHAR + strings.manufacturer);
+                if (strings.product != null)
+                    out.println(KEY_PRODUCT + ASSIGNMENT_CHAR + strings.product);
+                if (strings.serial != null)
+                    out.println(KEY_SERIAL + ASSIGNMENT_CHAR + strings.serial);
+            }
+        } catch (IOException e) {
+            System.err.println(CLASS + ": unable to write profile " + f + ": " +
+                    e.getMessage());
+        }
+    }
+
+    /* true if this profile describes device as currently plugged in, and the
+     * lexicon still asks for the same interfaces. */
+    public boolean matches(Device device, JsonNode lexicon) {
+        DeviceDescriptor descriptor = new DeviceDescriptor();
+        if (LibUsb.getDeviceDescriptor(device, descriptor) != LibUsb.SUCCESS) {
+            return false;
+        }
+
+        return !endpoints.isEmpty()
+                && descriptor.idVendor() == vendorId
+                && descriptor.idProduct() == productId
+                && descriptor.bcdDevice() == bcdDevice
+                && (LibUsb.getBusNumber(device) & 0xFF) == bus
+                && PortPath(device).equals(portPath)
+                && InterfacesKey(lexicon).equals(interfaces);
+    }
+
+    public List<UsbEndpointInfo> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    /* String descriptors as last read, or null if they never were */
+    public UsbDeviceStrings getStrings() {
+        return strings;
+    }
+
+    public void setStrings(UsbDeviceStrings strings) {
+        this.strings = strings;
+    }
+
+    public String getLocation() {
+        return "bus " + bus + " port " + portPath;
+    }
+
+    private static File FileFor(JsonNode lexicon) {
+        String name = lexicon.path(LexiconStrings.deviceName).asText("") + "-" +
+                lexicon.path(LexiconStrings.vendorId).asText("") + "-" +
+                lexicon.path(LexiconStrings.productId).asText("");
+        return new File(PROFILE_DIR, name.replaceAll("[^A-Za-z0-9._-]", "_") + PROFILE_EXT);
+    }
+
+    private static String PortPath(Device device) {
+        ByteBuffer ports = ByteBuffer.allocateDirect(8);
+        int n = LibUsb.getPortNumbers(device, ports);
+        if (n <= 0) {
+            return "";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; ++i) {
+            if (i > 0) sb.append('.');
+            sb.append(ports.get(i) & 0xFF);
+        }
+        return sb.toString();
+    }
+
+    private static String InterfacesKey(JsonNode lexicon) {
+        JsonNode declared = lexicon.path(LexiconStrings.usbInterfaces);
+        return declared.isMissingNode() ? "" : declared.toString();
+    }
+
+    /* address,type,maxPacketSize,interface,altSetting */
+    private static String FormatEndpoint(UsbEndpointInfo ep) {
+        return String.format("0x%02X,%d,%d,%d,%d", ep.address & 0xFF,
+                ep.transferType, ep.maxPacketSize, ep.interfaceNumber, ep.altSetting);
+    }
+
+    private static UsbEndpointInfo ParseEndpoint(String s) {
+        String[] parts = s.split(",");
+        if (parts.length != 5) {
+            throw new IllegalArgumentException("bad endpoint [" + s + "]");
+        }
+        return new UsbEndpointInfo((byte) (int) Integer.decode(parts[0].trim()),
+                (byte) Integer.parseInt(parts[1].trim()),
+                Integer.parseInt(parts[2].trim()),
+                Integer.parseInt(parts[3].trim()),
+                Integer.parseInt(parts[4].trim()));
+    }
+
+    private static String Hex16(short value) {
+        return String.format("0x%04X", value & 0xFFFF);
+    }
+
+    private static final String CLASS = UsbDeviceProfile.class.getSimpleName();
+}
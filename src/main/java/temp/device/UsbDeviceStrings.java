@@ -0,0 +1,56 @@
+package temp.device;
+
+import org.usb4java.Device;
+import org.usb4java.DeviceDescriptor;
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+
+/* A device's manufacturer, product and serial number strings. Any of them
+ * may be null if the device doesn't provide it.
+ *
+ * Each string is a control transfer to the device, and some devices take
+ * tens of milliseconds to answer one, so these are read off the connect
+ * path (see DeviceCommunicator) rather than before the first command. */
+public final class UsbDeviceStrings {
+    public final String manufacturer;
+    public final String product;
+    public final String serial;
+
+    public UsbDeviceStrings(String manufacturer, String product, String serial) {
+        this.manufacturer = manufacturer;
+        this.product = product;
+        this.serial = serial;
+    }
+
+    /* Reads all three from an open device. Blocks for the control transfers. */
+    public static UsbDeviceStrings Read(Device device, DeviceHandle handle) {
+        DeviceDescriptor descriptor = new DeviceDescriptor();
+        if (LibUsb.getDeviceDescriptor(device, descriptor) != LibUsb.SUCCESS) {
+            return new UsbDeviceStrings(null, null, null);
+        }
+
+        return new UsbDeviceStrings(ReadString(handle, descriptor.iManufacturer()),
+                ReadString(handle, descriptor.iProduct()),
+                ReadString(handle, descriptor.iSerialNumber()));
+    }
+
+    private static String ReadString(DeviceHandle handle, byte index) {
+        if (index == 0) {
+            return null;
+        }
+
+        StringBuffer buffer = new StringBuffer();
+        int result = LibUsb.getStringDescriptorAscii(handle, index, buffer);
+        if (result < 0) {
+            return null;
+        }
+
+        return buffer.toString().trim();
+    }
+
+    @Override
+    public String toString() {
+        return "Manufacturer: " + manufacturer + ", Product: " + product +
+                ", Serial Number: " + serial;
+    }
+}
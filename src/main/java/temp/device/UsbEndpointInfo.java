@@ -0,0 +1,52 @@
+package temp.device;
+
+import org.usb4java.EndpointDescriptor;
+import org.usb4java.LibUsb;
+
+/* What we keep from an endpoint descriptor once the config descriptor has
+ * been freed. */
+public final class UsbEndpointInfo {
+    public final byte address;
+    public final byte transferType;
+    public final int maxPacketSize;
+    public final int interfaceNumber;
+    public final int altSetting;
+
+    public UsbEndpointInfo(byte address, byte transferType, int maxPacketSize,
+                           int interfaceNumber, int altSetting) {
+        this.address = address;
+        this.transferType = transferType;
+        this.maxPacketSize = maxPacketSize;
+        this.interfaceNumber = interfaceNumber;
+        this.altSetting = altSetting;
+    }
+
+    public static UsbEndpointInfo FromDescriptor(EndpointDescriptor d,
+                                                 int interfaceNumber,
+                                                 int altSetting) {
+        /* Bits 10..0 are the packet size; 12..11 are high-bandwidth extra
+         * transactions per microframe, which we don't use. */
+        return new UsbEndpointInfo(d.bEndpointAddress(),
+                (byte) (d.bmAttributes() & LibUsb.TRANSFER_TYPE_MASK),
+                d.wMaxPacketSize() & 0x7FF, interfaceNumber, altSetting);
+    }
+
+    public boolean isIn() {
+        return (address & LibUsb.ENDPOINT_IN) != 0;
+    }
+
+    public boolean isBulk() {
+        return transferType == LibUsb.TRANSFER_TYPE_BULK;
+    }
+
+    public boolean isInterrupt() {
+        return transferType == LibUsb.TRANSFER_TYPE_INTERRUPT;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("0x%02X (%s %s, %d B packets, if %d alt %d)",
+                address & 0xFF, isBulk() ? "bulk" : isInterrupt() ? "interrupt" : "other",
+                isIn() ? "IN" : "OUT", maxPacketSize, interfaceNumber, altSetting);
+    }
+}
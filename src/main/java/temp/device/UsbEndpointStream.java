@@ -0,0 +1,160 @@
+package temp.device;
+
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/* An independent data channel on one bulk endpoint of a claimed interface.
+ *
+ * Composite devices expose several interfaces, each with its own pipes, and
+ * nothing stops traffic on one from overlapping traffic on another. A stream
+ * owns its endpoint outright: an OUT stream has its own chunked pipeline, and
+ * an IN stream keeps its own reads queued, so several streams on the same
+ * device move data in parallel through the shared transfer engine.
+ *
+ * Streams are opened by the communicator for endpoints the lexicon declares
+ * (see "usbInterfaces"), and die with the connection. A read that fails is
+ * retried with a backoff, and one that keeps failing is reported lost; see
+ * UsbReadRetry. */
+public final class UsbEndpointStream {
+    /* Called on the libusb event thread. data is only valid for the duration
+     * of the call, and is positioned at the received bytes. */
+    public interface Receiver {
+        void onData(ByteBuffer data);
+    }
+
+    private final UsbTransferEngine engine;
+    private final DirectBufferPool pool;
+    private final DeviceHandle handle;
+    private final UsbEndpointInfo endpoint;
+    private final int readSize;
+    private final int queuedReads;
+    private final ChunkedBulkWriter writer;
+    private final UsbReadRetry retry;
+
+    private volatile Receiver receiver;
+    private volatile boolean receiving;
+
+    public UsbEndpointStream(UsbTransferEngine engine, DirectBufferPool pool,
+                             DeviceHandle handle, UsbEndpointInfo endpoint,
+                             int chunkSize, int maxInFlight, Consumer<String> lost) {
+        this.engine = engine;
+        this.pool = pool;
+        this.handle = handle;
+        this.endpoint = endpoint;
+        this.queuedReads = maxInFlight;
+
+        /* Whole packets, so a short packet still marks the end of a read */
+        int packet = endpoint.maxPacketSize > 0 ? endpoint.maxPacketSize : 64;
+        this.readSize = Math.max(packet, (chunkSize / packet) * packet);
+
+        this.writer = endpoint.isIn() ? null : new ChunkedBulkWriter(engine, pool,
+                handle, endpoint.address, chunkSize, maxInFlight,
+                ChunkedBulkWriter.DEF_CHUNK_TIMEOUT_MS);
+        this.retry = new UsbReadRetry(handle, endpoint.address, () -> receiving, lost);
+    }
+
+    public UsbEndpointInfo getEndpoint() {
+        return endpoint;
+    }
+
+    /* Bytes requested per read; a read that returns fewer ended short */
+    public int getReadSize() {
+        return readSize;
+    }
+
+    public CompletableFuture<Long> write(ByteBuffer source,
+                                         ChunkedBulkWriter.ProgressListener listener) {
+        if (writer == null) {
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException(ERR_STR_WRITE_ON_IN));
+        }
+        return writer.write(source, listener);
+    }
+
+    public CompletableFuture<Long> write(InputStream in, long totalHint,
+                                         ChunkedBulkWriter.ProgressListener listener) {
+        if (writer == null) {
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException(ERR_STR_WRITE_ON_IN));
+        }
+        return writer.write(in, totalHint, listener);
+    }
+
+    /* Starts a continuous read loop on an IN endpoint. The loop runs until
+     * stopReceiving() or until the transfers are cancelled by disconnect. */
+    public void startReceiving(Receiver r) {
+        if (!endpoint.isIn()) {
+            throw new IllegalStateException(ERR_STR_READ_ON_OUT);
+        }
+        if (receiving) {
+            receiver = r;
+            return;
+        }
+
+        receiver = r;
+        receiving = true;
+        for (int i = 0; i < queuedReads; ++i) {
+            submitRead(pool.acquire(readSize), new UsbReadRetry.Failures());
+        }
+    }
+
+    public void stopReceiving() {
+        receiving = false;
+    }
+
+    public boolean isReceiving() {
+        return receiving;
+    }
+
+    private void submitRead(ByteBuffer buffer, UsbReadRetry.Failures failures) {
+        buffer.clear().limit(readSize);
+        engine.bulkIn(handle, endpoint.address, buffer, 0)
+                .whenComplete((n, e) -> onRead(buffer, failures, n, e));
+    }
+
+    private void onRead(ByteBuffer buffer, UsbReadRetry.Failures failures, Integer n,
+                        Throwable e) {
+        if (e != null) {
+            int code = UsbReadRetry.ErrorCode(e);
+            if (code == LibUsb.ERROR_INTERRUPTED || code == LibUsb.ERROR_NO_DEVICE) {
+                receiving = false;
+            } else if (code == LibUsb.ERROR_TIMEOUT) {
+                /* An idle endpoint; nothing wrong */
+            } else if (receiving) {
+                System.err.println(CLASS + " " + endpoint + ": read failed: " +
+                        LibUsb.errorName(code));
+                if (retry.retry(failures, code, () -> resubmitRead(buffer, failures))) {
+                    return;
+                }
+                receiving = false;
+            }
+        } else if (n > 0) {
+            retry.succeeded(failures);
+            Receiver r = receiver;
+            if (r != null) {
+                buffer.limit(n).position(0);
+                r.onData(buffer);
+            }
+        }
+        resubmitRead(buffer, failures);
+    }
+
+    private void resubmitRead(ByteBuffer buffer, UsbReadRetry.Failures failures) {
+        if (receiving) {
+            submitRead(buffer, failures);
+        } else {
+            pool.release(buffer);
+        }
+    }
+
+    private static final String CLASS = UsbEndpointStream.class.getSimpleName();
+    private static final String ERR_STR_WRITE_ON_IN = CLASS + " was asked to " +
+            "write to an IN endpoint.\n";
+    private static final String ERR_STR_READ_ON_OUT = CLASS + " was asked to " +
+            "read from an OUT endpoint.\n";
+}
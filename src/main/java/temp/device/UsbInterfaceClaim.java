@@ -0,0 +1,61 @@
+package temp.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/* One interface the lexicon wants claimed, from the optional "usbInterfaces"
+ * array:
+ *
+ *   "usbInterfaces": [
+ *     { "interface": 0, "altSetting": 0 },
+ *     { "interface": 2, "altSetting": 1, "endpoints": ["0x83", "0x04"] }
+ *   ]
+ *
+ * "endpoints" limits which of the setting's endpoints are used; if it is
+ * absent, all of them are. Without the array at all, interface 0 / alt
+ * setting 0 is claimed, which is what single-function printers need. */
+public final class UsbInterfaceClaim {
+    public final int number;
+    public final int altSetting;
+    private final List<Byte> endpoints;
+
+    public UsbInterfaceClaim(int number, int altSetting, List<Byte> endpoints) {
+        this.number = number;
+        this.altSetting = altSetting;
+        this.endpoints = endpoints;
+    }
+
+    /* true if this claim uses the endpoint at address */
+    public boolean wants(byte address) {
+        return endpoints == null || endpoints.contains(address);
+    }
+
+    public static List<UsbInterfaceClaim> FromLexicon(JsonNode lexicon) {
+        JsonNode declared = lexicon.path(LexiconStrings.usbInterfaces);
+        if (!declared.isArray() || declared.isEmpty()) {
+            return Collections.singletonList(new UsbInterfaceClaim(0, 0, null));
+        }
+
+        List<UsbInterfaceClaim> claims = new ArrayList<>();
+        for (JsonNode d : declared) {
+            List<Byte> eps = null;
+            if (d.has(LexiconStrings.endpoints)) {
+                eps = new ArrayList<>();
+                for (JsonNode ep : d.get(LexiconStrings.endpoints)) {
+                    eps.add((byte) (int) Integer.decode(ep.asText()));
+                }
+            }
+            claims.add(new UsbInterfaceClaim(d.path(LexiconStrings.iface).asInt(0),
+                    d.path(LexiconStrings.altSetting).asInt(0), eps));
+        }
+        return claims;
+    }
+
+    @Override
+    public String toString() {
+        return "interface " + number + " alt " + altSetting;
+    }
+}
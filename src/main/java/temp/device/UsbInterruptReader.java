@@ -0,0 +1,117 @@
+package temp.device;
+
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+/* Keeps an interrupt IN endpoint permanently serviced, so status reports
+ * reach listeners as soon as the host controller polls them in, instead of
+ * waiting for a command round trip.
+ *
+ * Two transfers are kept queued, with no timeout, so there is always one
+ * waiting while the other's completion is being handled. Each is resubmitted
+ * from its own completion. The loop stops when stop() is called, or when the
+ * device goes away; cancellation itself is done by the engine's
+ * cancelAndDrain() on disconnect. A failed read is retried with a backoff,
+ * and one that keeps failing is reported lost; see UsbReadRetry. */
+public final class UsbInterruptReader {
+    private static final int QUEUED_TRANSFERS = 2;
+
+    private final UsbTransferEngine engine;
+    private final DirectBufferPool pool;
+    private final DeviceHandle handle;
+    private final byte endpoint;
+    private final int packetSize;
+    private final StatusReportDecoder decoder;
+    private final List<DeviceStatusListener> listeners;
+    private final UsbReadRetry retry;
+
+    /* Scratch for handing reports to listeners. Completions are serialized
+     * on the event thread, so one array suffices. */
+    private final byte[] report;
+
+    /* The decoder tracks changes once, for everyone */
+    private final DeviceStatusListener fanOut = this::notifyChanged;
+
+    private volatile boolean running;
+
+    public UsbInterruptReader(UsbTransferEngine engine, DirectBufferPool pool,
+                              DeviceHandle handle, UsbEndpointInfo endpoint,
+                              StatusReportDecoder decoder,
+                              List<DeviceStatusListener> listeners, Consumer<String> lost) {
+        this.engine = engine;
+        this.pool = pool;
+        this.handle = handle;
+        this.endpoint = endpoint.address;
+        this.packetSize = endpoint.maxPacketSize > 0 ? endpoint.maxPacketSize : 64;
+        this.decoder = decoder;
+        this.listeners = listeners;
+        this.report = new byte[packetSize];
+        this.retry = new UsbReadRetry(handle, this.endpoint, () -> running, lost);
+    }
+
+    public void start() {
+        running = true;
+        for (int i = 0; i < QUEUED_TRANSFERS; ++i) {
+            submit(pool.acquire(packetSize), new UsbReadRetry.Failures());
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void submit(ByteBuffer buffer, UsbReadRetry.Failures failures) {
+        buffer.clear().limit(packetSize);
+        engine.interruptIn(handle, endpoint, buffer, 0)
+                .whenComplete((n, e) -> onReport(buffer, failures, n, e));
+    }
+
+    private void onReport(ByteBuffer buffer, UsbReadRetry.Failures failures,
+                          Integer n, Throwable e) {
+        if (e != null) {
+            int code = UsbReadRetry.ErrorCode(e);
+            if (code == LibUsb.ERROR_INTERRUPTED || code == LibUsb.ERROR_NO_DEVICE) {
+                /* Cancelled for disconnect, or the device is gone */
+                running = false;
+            } else if (running) {
+                System.err.println(CLASS + ": status read failed: " + LibUsb.errorName(code));
+                if (retry.retry(failures, code, () -> resubmit(buffer, failures))) {
+                    return;
+                }
+                running = false;
+            }
+        } else if (n > 0) {
+            retry.succeeded(failures);
+            buffer.get(report, 0, n);
+            for (DeviceStatusListener l : listeners) {
+                l.statusReport(report, n);
+            }
+            decoder.decode(report, n, fanOut);
+        }
+        resubmit(buffer, failures);
+    }
+
+    private void resubmit(ByteBuffer buffer, UsbReadRetry.Failures failures) {
+        if (running) {
+            submit(buffer, failures);
+        } else {
+            pool.release(buffer);
+        }
+    }
+
+    private void notifyChanged(String field, int value) {
+        for (DeviceStatusListener l : listeners) {
+            l.statusChanged(field, value);
+        }
+    }
+
+    private static final String CLASS = UsbInterruptReader.class.getSimpleName();
+}
@@ -0,0 +1,98 @@
+package temp.device;
+
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/* How a continuous IN read loop gets over a failed transfer, without
+ * hot-looping the libusb event thread every transfer shares.
+ *
+ * A failed read is resubmitted after a backoff that doubles with each
+ * failure in a row, and a stalled endpoint has its halt cleared first. The
+ * wait and the clear happen off the event thread: libusb's synchronous calls
+ * must not be made from inside a callback. After too many failures in a row
+ * the loop gives up and reports the connection lost, for the supervisor to
+ * rebuild. A successful read starts the count again.
+ *
+ * Failures are counted per queued transfer, not per loop: with several
+ * transfers queued, one bad moment fails them all at once, and that is one
+ * failure, not several. */
+final class UsbReadRetry {
+    static final int DEF_MAX_FAILURES = 8;
+    static final long DEF_INITIAL_BACKOFF_MS = 50;
+    static final long DEF_MAX_BACKOFF_MS = 1000;
+
+    private final DeviceHandle handle;
+    private final byte endpoint;
+    private final BooleanSupplier active;
+    private final Consumer<String> lost;
+    private final AtomicBoolean reported = new AtomicBoolean();
+
+    /* One queued transfer's failures in a row. A transfer completes on the
+     * event thread, one completion at a time, so this needs no lock. */
+    static final class Failures {
+        private int inARow;
+    }
+
+    /* active says whether the loop is still wanted, so a halt isn't cleared
+     * on a handle that is closing. lost is called once, with the reason,
+     * when the loop gives up; it may be null. */
+    UsbReadRetry(DeviceHandle handle, byte endpoint, BooleanSupplier active,
+                 Consumer<String> lost) {
+        this.handle = handle;
+        this.endpoint = endpoint;
+        this.active = active;
+        this.lost = lost;
+    }
+
+    static int ErrorCode(Throwable e) {
+        Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+        return (cause instanceof LibUsbException)
+                ? ((LibUsbException) cause).getErrorCode() : LibUsb.ERROR_OTHER;
+    }
+
+    void succeeded(Failures f) {
+        f.inARow = 0;
+    }
+
+    /* Schedules resubmit after the transfer counted by f failed with code,
+     * and returns true; or returns false, having reported the loss once for
+     * the whole loop, if it has failed too often */
+    boolean retry(Failures f, int code, Runnable resubmit) {
+        int n = ++f.inARow;
+        if (n > DEF_MAX_FAILURES) {
+            if (reported.compareAndSet(false, true) && lost != null) {
+                lost.accept(ErrStrGaveUp(endpoint, code));
+            }
+            return false;
+        }
+
+        long delay = Math.min(DEF_MAX_BACKOFF_MS, DEF_INITIAL_BACKOFF_MS << (n - 1));
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+            if (code == LibUsb.ERROR_PIPE && active.getAsBoolean()) {
+                int result = LibUsb.clearHalt(handle, endpoint);
+                if (result != LibUsb.SUCCESS) {
+                    System.err.println(ErrStrClearHalt(endpoint, result));
+                }
+            }
+            resubmit.run();
+        });
+        return true;
+    }
+
+    private static final String CLASS = UsbReadRetry.class.getSimpleName();
+    private static String ErrStrGaveUp(byte endpoint, int code) {
+        return String.format("%s: reads on endpoint 0x%02X kept failing [%s]",
+                CLASS, endpoint & 0xFF, LibUsb.errorName(code));
+    }
+    private static String ErrStrClearHalt(byte endpoint, int result) {
+        return String.format("%s was unable to clear the halt on endpoint 0x%02X " +
+                "[%s].\n", CLASS, endpoint & 0xFF, LibUsb.errorName(result));
+    }
+}
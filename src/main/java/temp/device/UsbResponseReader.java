@@ -0,0 +1,114 @@
+package temp.device;
+
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/* Reassembles a response that spans more than one bulk IN packet.
+ *
+ * Reads are issued in whole multiples of the endpoint's wMaxPacketSize and
+ * appended to a single pooled buffer, which is swapped for a larger one from
+ * the pool when it fills. The response is complete when any of these happen:
+ *   - a short (or zero-length) packet arrives, which is how USB itself marks
+ *     the end of a transfer;
+ *   - the expected length, if the lexicon declares one, has been received;
+ *   - the terminator, if the lexicon declares one, has been received;
+ *   - a follow-up read times out after some data has already arrived.
+ * Only a timeout before the first byte is reported as a failure. */
+public final class UsbResponseReader {
+    public static final int DEF_MAX_RESPONSE_LENGTH = 1 << 20;
+
+    /* Packets requested per read when the length isn't known up front */
+    private static final int PACKETS_PER_READ = 8;
+
+    private final UsbTransferEngine engine;
+    private final DirectBufferPool pool;
+    private final DeviceHandle handle;
+    private final byte endpoint;
+    private final int packetSize;
+
+    public UsbResponseReader(UsbTransferEngine engine, DirectBufferPool pool,
+                             DeviceHandle handle, byte endpoint, int maxPacketSize) {
+        this.engine = engine;
+        this.pool = pool;
+        this.handle = handle;
+        this.endpoint = endpoint;
+        this.packetSize = maxPacketSize > 0 ? maxPacketSize : 64;
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /* Reads one complete response. expectedLength is -1 if unknown, and
+     * terminator may be null. The future yields a flipped buffer that came
+     * from the pool; the caller must release() it once done with it. */
+    public CompletableFuture<ByteBuffer> read(int expectedLength, byte[] terminator,
+                                              long timeoutMs, int maxLength) {
+        Assembly a = new Assembly(new ResponseAssembler(pool, expectedLength,
+                terminator, Math.max(maxLength, packetSize),
+                initialCapacity(expectedLength)), timeoutMs);
+        a.next();
+        return a.result;
+    }
+
+    private int initialCapacity(int expectedLength) {
+        return (expectedLength > 0)
+                ? roundUpToPacket(expectedLength)
+                : packetSize * PACKETS_PER_READ;
+    }
+
+    private int roundUpToPacket(int n) {
+        return ((n + packetSize - 1) / packetSize) * packetSize;
+    }
+
+    /* State for one response in progress. Every step after the first runs on
+     * the libusb event thread, chained from the previous completion. Reads
+     * land directly in the assembler's buffer. */
+    private final class Assembly {
+        final ResponseAssembler assembler;
+        final long timeoutMs;
+        final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+
+        Assembly(ResponseAssembler assembler, long timeoutMs) {
+            this.assembler = assembler;
+            this.timeoutMs = timeoutMs;
+        }
+
+        void next() {
+            int expectedLength = assembler.getExpectedLength();
+            int want = (expectedLength > 0)
+                    ? roundUpToPacket(expectedLength - assembler.getFilled())
+                    : packetSize * PACKETS_PER_READ;
+
+            ByteBuffer buffer = assembler.reserve(want);
+            final int requested = want;
+            engine.bulkIn(handle, endpoint, buffer, timeoutMs)
+                    .whenComplete((n, e) -> onRead(requested, n, e));
+        }
+
+        void onRead(int requested, Integer n, Throwable e) {
+            if (e != null) {
+                Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+                boolean timedOut = cause instanceof LibUsbException &&
+                        ((LibUsbException) cause).getErrorCode() == LibUsb.ERROR_TIMEOUT;
+                if (timedOut && assembler.getFilled() > 0) {
+                    result.complete(assembler.take());
+                } else {
+                    assembler.discard();
+                    result.completeExceptionally(cause);
+                }
+                return;
+            }
+
+            if (assembler.commit(n, n < requested)) {
+                result.complete(assembler.take());
+            } else {
+                next();
+            }
+        }
+    }
+}
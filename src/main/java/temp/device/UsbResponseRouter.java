@@ -0,0 +1,203 @@
+package temp.device;
+
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/* The receive half of a full-duplex command pipe.
+ *
+ * A continuous reader keeps the bulk IN endpoint serviced whether or not a
+ * query is outstanding, so the device never stalls on a full FIFO and the
+ * host never has to wait for a write to finish before it can read. Bytes
+ * that arrive are routed here:
+ *   - to the oldest pending query, through its own ResponseAssembler, until
+ *     that response is complete; whatever is left goes to the next one;
+ *   - to the unsolicited handler when no query is waiting for them.
+ *
+ * Queries are expected in the order their commands went out, which the
+ * communicator guarantees by registering each one just before its write is
+ * submitted on the (single-owner) OUT side. Each query has an idle timeout:
+ * it fails with ERROR_TIMEOUT if nothing arrives at all, and completes with
+ * what it has if the device goes quiet part way through, the same as
+ * UsbResponseReader. */
+public final class UsbResponseRouter {
+    /* Called on the libusb event thread. data is only valid for the duration
+     * of the call. */
+    public interface UnsolicitedHandler {
+        void onUnsolicited(ByteBuffer data);
+    }
+
+    private final DirectBufferPool pool;
+    private final UsbEndpointStream stream;
+    private final UnsolicitedHandler unsolicited;
+    private final int packetSize;
+
+    /* Guarded by this */
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private boolean closed;
+
+    public UsbResponseRouter(DirectBufferPool pool, UsbEndpointStream stream,
+                             UnsolicitedHandler unsolicited) {
+        this.pool = pool;
+        this.stream = stream;
+        this.unsolicited = unsolicited;
+        this.packetSize = stream.getEndpoint().maxPacketSize > 0
+                ? stream.getEndpoint().maxPacketSize : 64;
+    }
+
+    public void start() {
+        stream.startReceiving(this::onData);
+    }
+
+    /* Stops the reader and fails every query still waiting */
+    public void close() {
+        stream.stopReceiving();
+
+        List<Pending> dropped;
+        synchronized (this) {
+            closed = true;
+            dropped = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Pending p : dropped) {
+            p.assembler.discard();
+            p.result.completeExceptionally(new LibUsbException(
+                    "Connection closed", LibUsb.ERROR_INTERRUPTED));
+        }
+    }
+
+    /* Registers a query whose response is to complete result. result may be
+     * completed (or failed) from outside, e.g. because the command's write
+     * failed; the router then drops it. The buffer result yields came from
+     * the pool and must be released by the caller. */
+    public void expect(CompletableFuture<ByteBuffer> result, int expectedLength,
+                       byte[] terminator, long timeoutMs, int maxLength) {
+        int initial = (expectedLength > 0) ? expectedLength : packetSize;
+        Pending p = new Pending(new ResponseAssembler(pool, expectedLength,
+                terminator, Math.max(maxLength, packetSize), initial), result, timeoutMs);
+
+        synchronized (this) {
+            if (!closed) {
+                pending.addLast(p);
+                p.touch();
+                scheduleExpiry(p, timeoutMs);
+                return;
+            }
+        }
+        p.assembler.discard();
+        result.completeExceptionally(new LibUsbException("Connection closed",
+                LibUsb.ERROR_INTERRUPTED));
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private void onData(ByteBuffer data) {
+        /* A read that comes back short ends a USB transfer */
+        boolean endOfTransfer = data.remaining() < stream.getReadSize();
+        List<Pending> finished = null;
+
+        synchronized (this) {
+            while (data.hasRemaining()) {
+                Pending p = pending.peekFirst();
+                if (p == null) {
+                    break;
+                }
+                if (p.result.isDone()) {
+                    pending.pollFirst();
+                    p.assembler.discard();
+                    continue;
+                }
+
+                p.touch();
+                if (p.assembler.append(data, endOfTransfer)) {
+                    pending.pollFirst();
+                    if (finished == null) {
+                        finished = new ArrayList<>(1);
+                    }
+                    finished.add(p);
+                }
+            }
+        }
+
+        /* Complete outside the lock; dependants run on this thread */
+        if (finished != null) {
+            for (Pending p : finished) {
+                ByteBuffer response = p.assembler.take();
+                if (!p.result.complete(response)) {
+                    /* Already failed from outside; the buffer is still ours */
+                    pool.release(response);
+                }
+            }
+        }
+
+        if (data.hasRemaining() && unsolicited != null) {
+            unsolicited.onUnsolicited(data);
+        }
+    }
+
+    private void scheduleExpiry(Pending p, long delayMs) {
+        Executor delayed = CompletableFuture.delayedExecutor(
+                Math.max(1, delayMs), TimeUnit.MILLISECONDS);
+        CompletableFuture.runAsync(() -> expire(p), delayed);
+    }
+
+    /* Runs on a timer thread. The timeout is an idle timeout, so if data
+     * arrived since the check was scheduled, it is pushed back. */
+    private void expire(Pending p) {
+        ByteBuffer partial = null;
+        synchronized (this) {
+            if (p.result.isDone() || !pending.contains(p)) {
+                return;
+            }
+
+            long idle = System.currentTimeMillis() - p.lastActivity;
+            if (idle < p.timeoutMs) {
+                scheduleExpiry(p, p.timeoutMs - idle);
+                return;
+            }
+
+            pending.remove(p);
+            if (p.assembler.getFilled() > 0) {
+                partial = p.assembler.take();
+            } else {
+                p.assembler.discard();
+            }
+        }
+
+        if (partial != null) {
+            if (!p.result.complete(partial)) {
+                pool.release(partial);
+            }
+        } else {
+            p.result.completeExceptionally(new LibUsbException(
+                    "No response", LibUsb.ERROR_TIMEOUT));
+        }
+    }
+
+    private static final class Pending {
+        final ResponseAssembler assembler;
+        final CompletableFuture<ByteBuffer> result;
+        final long timeoutMs;
+        volatile long lastActivity;
+
+        Pending(ResponseAssembler assembler, CompletableFuture<ByteBuffer> result,
+                long timeoutMs) {
+            this.assembler = assembler;
+            this.result = result;
+            this.timeoutMs = timeoutMs;
+        }
+
+        void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+    }
+}
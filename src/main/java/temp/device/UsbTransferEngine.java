@@ -0,0 +1,286 @@
+package temp.device;
+
+import org.usb4java.Context;
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+import org.usb4java.Transfer;
+import org.usb4java.TransferCallback;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Wraps libusb's asynchronous transfer API. A single daemon thread pumps
+ * libusb events for the context, and every submitted transfer completes a
+ * CompletableFuture from that thread. Callers never block on the device, and
+ * any number of IN and OUT transfers may be in flight at once.
+ *
+ * Completions run on the event thread, so anything chained onto the returned
+ * futures must be short. Hand UI work off to the EDT.
+ *
+ * libusb Transfer structs are natively allocated, so completed ones are kept
+ * on a bounded free list and refilled for the next submission rather than
+ * freed and reallocated. They are released for real on shutdown(). */
+public final class UsbTransferEngine {
+    /* How long a single libusb event pump may block, in microseconds. This
+     * bounds how quickly shutdown() is noticed, not transfer latency. */
+    private static final long EVENT_POLL_TIMEOUT_US = 100_000;
+    private static final long SHUTDOWN_DRAIN_MS = 2000;
+    private static final int MAX_POOLED_TRANSFERS = 32;
+
+    private final Context context;
+    private final Map<Transfer, DeviceHandle> inFlight = new ConcurrentHashMap<>();
+    private final TransferCallback callback = this::onTransferComplete;
+    private final ArrayDeque<Transfer> freeTransfers = new ArrayDeque<>(MAX_POOLED_TRANSFERS);
+    private final AtomicLong transferHits = new AtomicLong();
+    private final AtomicLong transferMisses = new AtomicLong();
+
+    private Thread eventThread;
+    private volatile boolean running;
+
+    public UsbTransferEngine(Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException(ERR_STR_CONTEXT_NULL);
+        }
+        this.context = context;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        eventThread = new Thread(this::pumpEvents, "usb-event-handler");
+        eventThread.setDaemon(true);
+        eventThread.start();
+    }
+
+    /* Cancels anything still in flight, keeps pumping events until libusb has
+     * called back for every cancelled transfer (or the drain period expires),
+     * then stops the event thread. Must be called before the device handle is
+     * closed or the context exited. */
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+
+        cancelAndDrain(null);
+
+        running = false;
+        try {
+            eventThread.join(SHUTDOWN_DRAIN_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        eventThread = null;
+
+        if (!inFlight.isEmpty()) {
+            System.err.println(CLASS + ": " + inFlight.size() +
+                    " transfer(s) did not complete before shutdown");
+            inFlight.clear();
+        }
+
+        synchronized (freeTransfers) {
+            Transfer transfer;
+            while ((transfer = freeTransfers.poll()) != null) {
+                LibUsb.freeTransfer(transfer);
+            }
+        }
+    }
+
+    /* Cancels every in-flight transfer on handle (all transfers, if handle is
+     * null) and waits for libusb to call back for each of them. The engine
+     * may be shared between devices, so a disconnect must use this rather
+     * than shutdown() before closing its handle. */
+    public void cancelAndDrain(DeviceHandle handle) {
+        for (Map.Entry<Transfer, DeviceHandle> e : inFlight.entrySet()) {
+            if (handle == null || e.getValue().equals(handle)) {
+                LibUsb.cancelTransfer(e.getKey());
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + SHUTDOWN_DRAIN_MS;
+        while (hasInFlight(handle) && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private boolean hasInFlight(DeviceHandle handle) {
+        return (handle == null) ? !inFlight.isEmpty() : inFlight.containsValue(handle);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getTransferPoolHits() {
+        return transferHits.get();
+    }
+
+    public long getTransferPoolMisses() {
+        return transferMisses.get();
+    }
+
+    /* Sends the remaining bytes of data to an OUT endpoint. data must be a
+     * direct buffer, and must not be touched until the future completes. The
+     * future yields the number of bytes actually transferred. */
+    public CompletableFuture<Integer> bulkOut(DeviceHandle handle, byte endpoint,
+                                              ByteBuffer data, long timeoutMs) {
+        return submit(handle, endpoint, data, timeoutMs, LibUsb.TRANSFER_TYPE_BULK);
+    }
+
+    /* Reads up to dst.remaining() bytes from an IN endpoint into dst, starting
+     * at its position. dst must be a direct buffer. On completion the future
+     * yields the number of bytes received; dst's position and limit are left
+     * untouched. */
+    public CompletableFuture<Integer> bulkIn(DeviceHandle handle, byte endpoint,
+                                             ByteBuffer dst, long timeoutMs) {
+        return submit(handle, endpoint, dst, timeoutMs, LibUsb.TRANSFER_TYPE_BULK);
+    }
+
+    /* As bulkIn(), for an interrupt IN endpoint. A timeout of 0 waits
+     * indefinitely, which is what a status poll loop wants. */
+    public CompletableFuture<Integer> interruptIn(DeviceHandle handle, byte endpoint,
+                                                  ByteBuffer dst, long timeoutMs) {
+        return submit(handle, endpoint, dst, timeoutMs, LibUsb.TRANSFER_TYPE_INTERRUPT);
+    }
+
+    private CompletableFuture<Integer> submit(DeviceHandle handle, byte endpoint,
+                                              ByteBuffer buffer, long timeoutMs,
+                                              byte type) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException(ERR_STR_NOT_RUNNING));
+            return future;
+        }
+        if (!buffer.isDirect()) {
+            future.completeExceptionally(new IllegalArgumentException(ERR_STR_NOT_DIRECT));
+            return future;
+        }
+
+        /* libusb reads and writes from the buffer's base address, so hand it
+         * a view that starts at the caller's position. */
+        ByteBuffer view = buffer.position() == 0 ? buffer : buffer.slice();
+        int length = buffer.remaining();
+
+        Transfer transfer = obtainTransfer();
+        if (type == LibUsb.TRANSFER_TYPE_INTERRUPT) {
+            LibUsb.fillInterruptTransfer(transfer, handle, endpoint, view, callback,
+                    future, timeoutMs);
+        } else {
+            LibUsb.fillBulkTransfer(transfer, handle, endpoint, view, callback,
+                    future, timeoutMs);
+        }
+        transfer.setLength(length);
+
+        inFlight.put(transfer, handle);
+        int result = LibUsb.submitTransfer(transfer);
+        if (result != LibUsb.SUCCESS) {
+            inFlight.remove(transfer);
+            recycleTransfer(transfer);
+            future.completeExceptionally(
+                    new LibUsbException("Unable to submit transfer", result));
+        }
+
+        return future;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onTransferComplete(Transfer transfer) {
+        CompletableFuture<Integer> future =
+                (CompletableFuture<Integer>) transfer.userData();
+        int status = transfer.status();
+        int actualLength = transfer.actualLength();
+
+        inFlight.remove(transfer);
+        recycleTransfer(transfer);
+
+        if (status == LibUsb.TRANSFER_COMPLETED) {
+            future.complete(actualLength);
+        } else {
+            future.completeExceptionally(new LibUsbException(
+                    "Transfer failed", TransferStatusToError(status)));
+        }
+    }
+
+    private Transfer obtainTransfer() {
+        Transfer transfer;
+        synchronized (freeTransfers) {
+            transfer = freeTransfers.poll();
+        }
+
+        if (transfer != null) {
+            transferHits.incrementAndGet();
+            return transfer;
+        }
+        transferMisses.incrementAndGet();
+        return LibUsb.allocTransfer();
+    }
+
+    private void recycleTransfer(Transfer transfer) {
+        /* Drop the user data so a pooled transfer doesn't pin a future */
+        transfer.setUserData(null);
+
+        synchronized (freeTransfers) {
+            if (running && freeTransfers.size() < MAX_POOLED_TRANSFERS) {
+                freeTransfers.push(transfer);
+                return;
+            }
+        }
+        LibUsb.freeTransfer(transfer);
+    }
+
+    private void pumpEvents() {
+        while (running) {
+            int result = LibUsb.handleEventsTimeout(context, EVENT_POLL_TIMEOUT_US);
+            if (result != LibUsb.SUCCESS && result != LibUsb.ERROR_INTERRUPTED) {
+                System.err.println(CLASS + ": libusb event handling failed: " +
+                        LibUsb.errorName(result));
+            }
+        }
+    }
+
+    /* Transfer status codes are a separate enumeration from libusb error
+     * codes. Map them so callers can use LibUsbException.getErrorCode()
+     * uniformly for sync and async failures. */
+    static int TransferStatusToError(int status) {
+        switch (status) {
+            case LibUsb.TRANSFER_TIMED_OUT:
+                return LibUsb.ERROR_TIMEOUT;
+            case LibUsb.TRANSFER_STALL:
+                return LibUsb.ERROR_PIPE;
+            case LibUsb.TRANSFER_NO_DEVICE:
+                return LibUsb.ERROR_NO_DEVICE;
+            case LibUsb.TRANSFER_OVERFLOW:
+                return LibUsb.ERROR_OVERFLOW;
+            case LibUsb.TRANSFER_CANCELLED:
+                return LibUsb.ERROR_INTERRUPTED;
+            default:
+                return LibUsb.ERROR_IO;
+        }
+    }
+
+    private static final String CLASS =
+            UsbTransferEngine.class.getSimpleName();
+    private static final String ERR_STR_CONTEXT_NULL = CLASS + " was " +
+            "constructed with a null libusb context!\n";
+    private static final String ERR_STR_NOT_RUNNING = CLASS + " received a " +
+            "transfer while not running.\n";
+    private static final String ERR_STR_NOT_DIRECT = CLASS + " received a " +
+            "transfer buffer that is not direct.\n";
+}